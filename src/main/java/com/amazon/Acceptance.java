@@ -0,0 +1,34 @@
+package com.amazon;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The receiver's answer to a {@link Header}: whether the file will be received, which
+ * checksum algorithm the receiver expects the sender to use and how many bytes of the
+ * file the receiver already has.
+ */
+public record Acceptance(byte status, ChecksumAlgorithm algorithm, long offset) {
+    static final byte REJECTED = 0;
+    static final byte ACCEPTED = 1;
+
+    static final int LENGTH = Byte.BYTES + Byte.BYTES + Long.BYTES;
+
+    boolean accepted() {
+        return status == ACCEPTED;
+    }
+
+    byte[] encode() {
+        var buffer = ByteBuffer.allocate(LENGTH);
+        buffer.put(status);
+        buffer.put(algorithm.id());
+        buffer.putLong(offset);
+        return buffer.array();
+    }
+
+    static Acceptance decode(ByteBuffer buffer) {
+        var status = buffer.get();
+        var algorithm = ChecksumAlgorithm.fromId(buffer.get());
+        var offset = buffer.getLong();
+        return new Acceptance(status, algorithm, offset);
+    }
+}
@@ -0,0 +1,164 @@
+package com.amazon;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Listens on a port with several channels bound with SO_REUSEPORT, each accepted from by a
+ * thread of its own, so the kernel spreads a storm of new connections over them instead of
+ * queueing them all behind one accept loop. Where SO_REUSEPORT is not supported there is a
+ * single channel, since threads accepting from the same channel take turns anyway.
+ * <p>
+ * The threads block in accept. Closing the group closes the channels, which wakes them, so
+ * stopping does not wait on a poll timeout.
+ */
+class AcceptorGroup implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(AcceptorGroup.class);
+
+    // Connections the kernel holds for each channel until it is accepted from; the default of
+    // 50 drops SYNs in a reconnect storm, costing a second or more each. Capped by somaxconn.
+    static final int BACKLOG = 1024;
+
+    interface Handler {
+        /**
+         * Takes a connection the acceptor-th channel accepted, on that acceptor's thread.
+         */
+        void accepted(int acceptor, SocketChannel channel) throws IOException;
+    }
+
+    private final List<ServerSocketChannel> channels;
+    private final List<Thread> threads = new CopyOnWriteArrayList<>();
+    private volatile boolean closed;
+
+    private AcceptorGroup(List<ServerSocketChannel> channels) {
+        this.channels = channels;
+    }
+
+    /**
+     * Binds count channels to port, or one if the platform cannot share a port, with receive
+     * buffers of receiveBuffer bytes unless it is 0.
+     */
+    static AcceptorGroup open(int port, int count, int receiveBuffer) throws IOException {
+        var channels = new ArrayList<ServerSocketChannel>(count);
+        try {
+            for (int i = 0; i < count; ++i) {
+                var channel = ServerSocketChannel.open();
+                channels.add(channel);
+                if (count > 1) {
+                    if (!channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                        logger.warn("SO_REUSEPORT is not supported, accepting on one channel.");
+                        channel.close();
+                        channels.remove(channel);
+                        break;
+                    }
+                    channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                }
+                if (receiveBuffer > 0) {
+                    channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBuffer);
+                }
+                channel.bind(new InetSocketAddress(port), BACKLOG);
+            }
+        } catch (IOException e) {
+            for (var channel : channels) {
+                channel.close();
+            }
+            throw e;
+        }
+        return new AcceptorGroup(channels);
+    }
+
+    int size() {
+        return channels.size();
+    }
+
+    /**
+     * Starts a thread per channel that hands what it accepts to handler.
+     */
+    void start(Handler handler) {
+        for (int i = 0; i < channels.size(); ++i) {
+            int acceptor = i;
+            var channel = channels.get(i);
+            var thread = new Thread(() -> accept(acceptor, channel, handler), "accept-" + (i + 1));
+            thread.start();
+            threads.add(thread);
+        }
+    }
+
+    private void accept(int acceptor, ServerSocketChannel channel, Handler handler) {
+        while (!closed) {
+            SocketChannel clientSocket;
+            try {
+                clientSocket = channel.accept();
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                if (closed) {
+                    return;
+                }
+                // Out of file descriptors, say; the sender will see its connect time out or retry.
+                logger.warn("Accept failed: {}", e.getMessage());
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+                continue;
+            }
+            try {
+                handler.accepted(acceptor, clientSocket);
+            } catch (Exception e) {
+                logger.warn("Could not take {}", clientSocket, e);
+                try {
+                    clientSocket.close();
+                } catch (IOException ignore) {}
+            }
+        }
+    }
+
+    /**
+     * Waits until the group is closed and its threads are done.
+     */
+    void await() throws InterruptedException {
+        for (var thread : threads) {
+            thread.join();
+        }
+    }
+
+    /**
+     * Closes the channels and waits for the acceptor threads to hand over what they accepted.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (var channel : channels) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.debug("Error closing {}", channel, e);
+            }
+        }
+        boolean interrupted = false;
+        for (var thread : threads) {
+            while (thread != Thread.currentThread() && thread.isAlive()) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package com.amazon;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The receiver's first word on a connection, sent as soon as it accepts it: whether it will
+ * serve the connection, and if not how many milliseconds the sender should wait before
+ * connecting again.
+ */
+record Admission(byte status, int retryAfterMillis) {
+    static final byte BUSY = 0;
+    static final byte ADMITTED = 1;
+
+    static final int LENGTH = Byte.BYTES + Integer.BYTES;
+
+    boolean admitted() {
+        return status == ADMITTED;
+    }
+
+    byte[] encode() {
+        return ByteBuffer.allocate(LENGTH).put(status).putInt(retryAfterMillis).array();
+    }
+
+    static Admission decode(ByteBuffer buffer) {
+        return new Admission(buffer.get(), buffer.getInt());
+    }
+}
@@ -0,0 +1,150 @@
+package com.amazon;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+/**
+ * Decides which connections a receiver takes. A receiver with a thread per connection serves as
+ * many at once as it has threads and queues up to maxQueued more; beyond that a connection is
+ * told the receiver is busy, and when to try again, and closed at once. Otherwise accepted
+ * sockets would wait in the executor's queue with nobody reading them, their windows full and
+ * their senders stalled without knowing why.
+ * <p>
+ * A receiver that serves every connection it has at once is not short of threads but of
+ * buffers. It takes connections while fewer than maxQueued wait for a buffer, however many are
+ * open.
+ */
+public class AdmissionControl {
+    private static final Logger logger = LoggerFactory.getLogger(AdmissionControl.class);
+
+    static final int DEFAULT_MAX_QUEUED = 64;
+    static final int DEFAULT_RETRY_AFTER_MILLIS = 1000;
+
+    private final int maxActive;
+    private final IntSupplier waiting;
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger active = new AtomicInteger();
+    private final LongAdder rejected = new LongAdder();
+    private volatile int maxQueued = DEFAULT_MAX_QUEUED;
+    private volatile int retryAfterMillis = DEFAULT_RETRY_AFTER_MILLIS;
+
+    AdmissionControl(int maxActive) {
+        this.maxActive = maxActive;
+        this.waiting = null;
+    }
+
+    /**
+     * Admission for a receiver that serves all its connections at once, of which waiting tells
+     * how many wait for a buffer.
+     */
+    AdmissionControl(IntSupplier waiting) {
+        this.maxActive = 0;
+        this.waiting = waiting;
+    }
+
+    void setMaxQueued(int maxQueued) {
+        this.maxQueued = maxQueued;
+    }
+
+    void setRetryAfter(int retryAfterMillis) {
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    /**
+     * Tells a just accepted connection whether it is admitted. One that is not is closed.
+     */
+    boolean admit(Socket socket) {
+        boolean admitted;
+        if (waiting != null) {
+            admitted = waiting.getAsInt() < maxQueued;
+            if (admitted) {
+                connections.incrementAndGet();
+            }
+        } else {
+            admitted = connections.incrementAndGet() <= maxActive + maxQueued;
+            if (!admitted) {
+                connections.decrementAndGet();
+            }
+        }
+        if (!admitted) {
+            rejected.increment();
+            Metrics.SHARED.turnedAway.increment();
+            logger.debug("Turning away {}: {}", socket, this);
+        }
+        try {
+            socket.getOutputStream().write(new Admission(admitted ? Admission.ADMITTED : Admission.BUSY,
+                    retryAfterMillis).encode());
+        } catch (IOException e) {
+            logger.debug("Could not answer {}", socket, e);
+            if (admitted) {
+                connections.decrementAndGet();
+            }
+            admitted = false;
+        }
+        if (admitted) {
+            Metrics.SHARED.connections.increment();
+        }
+        if (!admitted) {
+            try {
+                socket.close();
+            } catch (IOException ignore) {}
+        }
+        return admitted;
+    }
+
+    /**
+     * Counts an admitted connection as served until finished is called.
+     */
+    void started() {
+        active.incrementAndGet();
+        Metrics.SHARED.activeConnections.increment();
+    }
+
+    void finished() {
+        active.decrementAndGet();
+        connections.decrementAndGet();
+        Metrics.SHARED.activeConnections.decrement();
+        Metrics.SHARED.connections.decrement();
+    }
+
+    /**
+     * Serves an admitted connection on the calling thread.
+     */
+    void serve(Runnable connection) {
+        started();
+        try {
+            connection.run();
+        } finally {
+            finished();
+        }
+    }
+
+    public int active() {
+        return active.get();
+    }
+
+    /**
+     * Connections admitted but not yet served by a thread, or waiting for a buffer.
+     */
+    public int queued() {
+        return waiting != null ? waiting.getAsInt() : Math.max(0, connections.get() - active.get());
+    }
+
+    /**
+     * Connections turned away since the receiver started.
+     */
+    public long rejected() {
+        return rejected.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d active, %d queued, %d turned away", active(), queued(), rejected());
+    }
+}
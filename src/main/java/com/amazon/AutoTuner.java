@@ -0,0 +1,250 @@
+package com.amazon;
+
+import com.amazon.Wormhole.NamingThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.NetworkChannel;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * Settles how many connections of a directory transfer send at once and how much each write
+ * hands to the socket, by watching the throughput. Every WINDOW it tries a change to one of the
+ * two, doubling or halving it, and keeps the change if the next window is faster by GAIN;
+ * otherwise it undoes it and tries the other setting, or the other direction. On a LAN that
+ * ends at few connections, on a long fat link at many, without either being given.
+ * <p>
+ * Workers past the active count wait between files, so the sender starts its most connections
+ * and the tuner only decides how many of them work. Without auto tuning every worker is active
+ * and writes are the chunk size.
+ * <p>
+ * It also sizes the socket send buffer: a declared one, or the bandwidth times the round trip
+ * time of the last connect when a bandwidth is declared. Otherwise the buffers are left to the
+ * system, which on Linux grows them as needed as long as no size is set.
+ */
+class AutoTuner implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(AutoTuner.class);
+
+    static final int DEFAULT_MAX_CONNECTIONS = 16;
+    static final long WINDOW_MILLIS = 2000;
+    static final double GAIN = 0.05;
+    static final int MIN_CHUNK_SIZE = 64 * 1024;
+
+    private enum Setting { CONNECTIONS, CHUNK }
+
+    private final boolean enabled;
+    private final int maxConnections;
+    private final int maxChunkSize;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition turn = lock.newCondition();
+    private volatile int active;
+    private volatile int chunkSize;
+    private volatile int socketBuffer;
+    private volatile long bandwidth;
+    private volatile long rttNanos;
+
+    private ScheduledExecutorService sampler;
+    private LongSupplier progress;
+    private long lastBytes;
+    private long lastNanos;
+    private double baseline;
+    private Setting setting = Setting.CONNECTIONS;
+    private int direction = 1;
+    private boolean trying;
+    private int previousActive;
+    private int previousChunkSize;
+
+    AutoTuner(boolean enabled, int maxConnections, int maxChunkSize) {
+        this.enabled = enabled;
+        this.maxConnections = maxConnections;
+        this.maxChunkSize = maxChunkSize;
+        this.active = enabled ? Math.min(4, maxConnections) : maxConnections;
+        this.chunkSize = enabled ? Math.min(maxChunkSize, Math.max(MIN_CHUNK_SIZE, maxChunkSize / 4)) : maxChunkSize;
+    }
+
+    void setSocketBuffer(int socketBuffer) {
+        this.socketBuffer = socketBuffer;
+    }
+
+    void setBandwidth(long bandwidth) {
+        this.bandwidth = bandwidth;
+    }
+
+    /**
+     * Starts sampling progress, the bytes sent so far, every WINDOW.
+     */
+    void start(LongSupplier progress) {
+        if (!enabled) {
+            return;
+        }
+        this.progress = progress;
+        lastBytes = progress.getAsLong();
+        lastNanos = System.nanoTime();
+        sampler = Executors.newSingleThreadScheduledExecutor(new NamingThreadFactory("tune", true));
+        sampler.scheduleAtFixedRate(this::sample, WINDOW_MILLIS, WINDOW_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    int chunkSize() {
+        return chunkSize;
+    }
+
+    int activeConnections() {
+        return active;
+    }
+
+    /**
+     * Waits until worker, counted from zero, is one of the active connections, or until there
+     * is nothing left for it to send.
+     */
+    void awaitTurn(int worker, DirectoryScanner files) throws InterruptedException {
+        lock.lock();
+        try {
+            while (worker >= active && !files.isDrained()) {
+                turn.await(100, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Connects, timing the handshake for the round trip time, and sizes the send buffer of the socket.
+     */
+    Socket connect(String host, int port) throws IOException {
+        var socket = Protocol.connect(host, port, this::connected);
+        int size = sendBufferSize();
+        if (size > 0) {
+            socket.setSendBufferSize(size);
+        }
+        return socket;
+    }
+
+    <T extends NetworkChannel> T configure(T channel) throws IOException {
+        int size = sendBufferSize();
+        if (size > 0) {
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, size);
+        }
+        return channel;
+    }
+
+    /**
+     * Takes the time of an admitted connection's TCP handshake as a round trip. The fastest one
+     * is the least delayed by anything else.
+     */
+    void connected(long handshakeNanos) {
+        long rtt = rttNanos;
+        if (rtt == 0 || handshakeNanos < rtt) {
+            rttNanos = handshakeNanos;
+        }
+    }
+
+    int sendBufferSize() {
+        if (socketBuffer > 0) {
+            return socketBuffer;
+        }
+        if (bandwidth > 0 && rttNanos > 0) {
+            return bandwidthDelayProduct(bandwidth, rttNanos);
+        }
+        return 0;
+    }
+
+    static int bandwidthDelayProduct(long bytesPerSecond, long rttNanos) {
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(MIN_CHUNK_SIZE, bytesPerSecond * rttNanos / 1_000_000_000L));
+    }
+
+    private void sample() {
+        try {
+            long bytes = progress.getAsLong();
+            long now = System.nanoTime();
+            double rate = (bytes - lastBytes) * 1e9 / (now - lastNanos);
+            lastBytes = bytes;
+            lastNanos = now;
+            adjust(rate);
+        } catch (RuntimeException e) {
+            logger.warn("Tuning stopped.", e);
+            throw e;
+        }
+    }
+
+    /**
+     * Takes the throughput of the window that just ended and decides the settings for the next.
+     */
+    void adjust(double rate) {
+        if (trying) {
+            trying = false;
+            if (rate > baseline * (1 + GAIN)) {
+                // It helped, so keep going the same way.
+                logger.debug("{} B/s with {} connections and {} byte writes, keeping them.", (long) rate, active, chunkSize);
+                baseline = rate;
+                trying = change();
+                return;
+            }
+            logger.debug("{} B/s with {} connections and {} byte writes, going back.", (long) rate, active, chunkSize);
+            setActive(previousActive);
+            chunkSize = previousChunkSize;
+            turn();
+            return;
+        }
+        baseline = rate;
+        for (int tries = 0; tries < 4 && !trying; ++tries) {
+            trying = change();
+            if (!trying) {
+                turn();
+            }
+        }
+    }
+
+    /**
+     * Tries the other direction of the setting next, and after both directions the other setting.
+     */
+    private void turn() {
+        if (direction > 0) {
+            direction = -1;
+        } else {
+            direction = 1;
+            setting = setting == Setting.CONNECTIONS ? Setting.CHUNK : Setting.CONNECTIONS;
+        }
+    }
+
+    /**
+     * Doubles or halves the current setting, returning false if it is already at its bound.
+     */
+    private boolean change() {
+        previousActive = active;
+        previousChunkSize = chunkSize;
+        if (setting == Setting.CONNECTIONS) {
+            int next = direction > 0 ? Math.min(maxConnections, active * 2) : Math.max(1, active / 2);
+            setActive(next);
+            return next != previousActive;
+        }
+        int next = direction > 0 ? Math.min(maxChunkSize, chunkSize * 2) : Math.max(Math.min(MIN_CHUNK_SIZE, maxChunkSize), chunkSize / 2);
+        chunkSize = next;
+        return next != previousChunkSize;
+    }
+
+    private void setActive(int active) {
+        lock.lock();
+        try {
+            this.active = active;
+            turn.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (sampler != null) {
+            sampler.shutdownNow();
+            logger.info("Tuned to {} connections and {} byte writes.", active, chunkSize);
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package com.amazon;
+
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static com.amazon.Wormhole.DEFAULT_CHUNK_SIZE;
+import static com.amazon.Wormhole.DEFAULT_RECEIVER_PORT;
+import static com.amazon.Wormhole.DEFAULT_THREAD_COUNT;
+
+@Command(name = "bench", description = "Measure checksum throughput of each supported algorithm, receive CPU cost, or connection setup under a storm.",
+        mixinStandardHelpOptions = true)
+public class BenchmarkCommand implements Runnable {
+    // Threads that connect in the storm benchmark, each opening its share of the connections.
+    private static final int STORM_THREADS = 256;
+
+    @Option(names = {"-b", "--bytes"}, description = "Bytes to hash with each algorithm")
+    long totalBytes = 4L * 1024 * 1024 * 1024;
+
+    @Option(names = {"-c", "--chunk"}, description = "Chunk size for the hashed buffer in bytes")
+    int chunkSize = DEFAULT_CHUNK_SIZE;
+
+    @Option(names = {"-w", "--warmup"}, description = "Warm up passes over the buffer before measuring")
+    int warmupCount = 20;
+
+    @Option(names = {"-r", "--receive"}, description = "Instead, send a file of --bytes over loopback and measure the CPU each receive path uses")
+    boolean receive;
+
+    @Option(names = {"-p", "--port"}, description = "Port for the receive benchmark")
+    int port = DEFAULT_RECEIVER_PORT;
+
+    @Option(names = {"-s", "--storm"}, description = "Instead, open this many connections at once over loopback and measure how long each takes to be admitted")
+    int stormConnections;
+
+    @Option(names = {"--acceptors"}, description = "Acceptors to compare with a single one in the storm benchmark")
+    int acceptors = DEFAULT_THREAD_COUNT;
+
+    @Override
+    public void run() {
+        if (stormConnections > 0) {
+            benchmarkStorm();
+            return;
+        }
+        if (receive) {
+            try {
+                benchmarkReceive();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            return;
+        }
+
+        var chunk = new byte[chunkSize];
+        new Random(42).nextBytes(chunk);
+        var direct = ByteBuffer.allocateDirect(chunkSize);
+        direct.put(chunk);
+
+        System.out.printf("Hashing %s bytes in %s byte chunks\n", totalBytes, chunkSize);
+        for (var algorithm : ChecksumAlgorithm.values()) {
+            var digester = algorithm.newDigester();
+            for (int i = 0; i < warmupCount; ++i) {
+                digester.update(chunk, 0, chunk.length);
+                digester.update(direct.flip());
+            }
+            digester.digest();
+
+            double heapRate = measure(totalBytes, () -> digester.update(chunk, 0, chunk.length), digester);
+            double directRate = measure(totalBytes, () -> digester.update(direct.flip()), digester);
+            System.out.printf("%-10s heap: %,10.1f MB/s  direct: %,10.1f MB/s\n", algorithm, heapRate, directRate);
+        }
+    }
+
+    private double measure(long bytes, Runnable update, Digester digester) {
+        long start = System.nanoTime();
+        for (long hashed = 0; hashed < bytes; hashed += chunkSize) {
+            update.run();
+        }
+        digester.digest();
+        double elapsed = (System.nanoTime() - start) / 1_000_000_000d;
+        return bytes / elapsed / (1024 * 1024);
+    }
+
+    /**
+     * Both ends run in this process and the sender does the same work for each path, so the
+     * difference in process CPU time is the difference between the receive paths.
+     */
+    private void benchmarkReceive() throws IOException {
+        var source = Files.createTempFile("bench", ".bin");
+        var targetDirectory = Files.createTempDirectory("bench");
+        try {
+            var chunk = new byte[chunkSize];
+            new Random(42).nextBytes(chunk);
+            try (var out = Files.newOutputStream(source)) {
+                for (long written = 0; written < totalBytes; written += chunk.length) {
+                    out.write(chunk, 0, (int) Math.min(chunk.length, totalBytes - written));
+                }
+            }
+
+            System.out.printf("Receiving %s bytes in %s byte chunks\n", totalBytes, chunkSize);
+            var os = (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+            for (var mode : new String[] {"serial", "buffered", "transferFrom"}) {
+                // The first transfer warms up both ends.
+                receiveOnce(source, targetDirectory, mode);
+                long cpuStart = os.getProcessCpuTime();
+                long start = System.nanoTime();
+                receiveOnce(source, targetDirectory, mode);
+                double elapsed = (System.nanoTime() - start) / 1_000_000_000d;
+                double cpu = (os.getProcessCpuTime() - cpuStart) / 1_000_000_000d;
+                double gigabytes = totalBytes / (1024d * 1024 * 1024);
+                System.out.printf("%-12s %,10.1f MB/s  %,8.3f CPU s/GB\n", mode,
+                        totalBytes / elapsed / (1024 * 1024), cpu / gigabytes);
+            }
+        } finally {
+            Files.deleteIfExists(source);
+            try (var files = Files.walk(targetDirectory)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    /**
+     * Connects stormConnections senders at once to a selector receiver, first with one acceptor
+     * and then with --acceptors, and reports how long the connects took until admitted.
+     */
+    private void benchmarkStorm() {
+        System.out.printf("Connecting %d senders at once\n", stormConnections);
+        for (int count : new int[] {1, acceptors}) {
+            var receiver = new SelectorReceiver(port, chunkSize, 1, false);
+            receiver.setAcceptors(count);
+            var receiverThread = new Thread(receiver::receive, "Receiver");
+            receiverThread.start();
+            var clients = Executors.newFixedThreadPool(Math.min(stormConnections, STORM_THREADS));
+            try {
+                Thread.sleep(100);
+                // The first storm warms up both ends.
+                storm(clients, Math.min(stormConnections, STORM_THREADS));
+                var latencies = storm(clients, stormConnections);
+                Arrays.sort(latencies);
+                System.out.printf("%2d acceptors  p50 %,8.3f ms  p99 %,8.3f ms  max %,8.3f ms\n", count,
+                        latencies[latencies.length / 2] / 1e6, latencies[latencies.length * 99 / 100] / 1e6,
+                        latencies[latencies.length - 1] / 1e6);
+                receiver.stop();
+                receiverThread.interrupt();
+                receiverThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                clients.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Opens connections all at once, holding each until every one is open, and returns how many
+     * nanoseconds each connect took.
+     */
+    private long[] storm(ExecutorService clients, int connections) throws InterruptedException {
+        var latencies = new long[connections];
+        var sockets = new ConcurrentLinkedQueue<Socket>();
+        var go = new CountDownLatch(1);
+        var done = new CountDownLatch(connections);
+        for (int i = 0; i < connections; ++i) {
+            int connection = i;
+            clients.execute(() -> {
+                try {
+                    go.await();
+                    long start = System.nanoTime();
+                    sockets.add(Protocol.connect("127.0.0.1", port));
+                    latencies[connection] = System.nanoTime() - start;
+                } catch (IOException e) {
+                    latencies[connection] = Long.MAX_VALUE;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        go.countDown();
+        done.await();
+        for (var socket : sockets) {
+            try {
+                socket.close();
+            } catch (IOException ignore) {}
+        }
+        return latencies;
+    }
+
+    private void receiveOnce(Path source, Path targetDirectory, String mode) {
+        var receiver = new ChannelReceiver(port, chunkSize, 1, false);
+        receiver.setZeroCopy(mode.equals("transferFrom"));
+        receiver.setRingBuffers(mode.equals("serial") ? 1 : Math.max(2, BufferRing.DEFAULT_BUFFERS));
+        receiver.setAcceptor((sender, filename, length) -> true);
+        receiver.setTargetDirectory(targetDirectory);
+        var receiverThread = new Thread(receiver::receive, "Receiver");
+        receiverThread.start();
+        try {
+            Thread.sleep(100);
+            var sender = new ChannelSender("bench", chunkSize, 1, false);
+            sender.setMinimumStripeSize(0);
+            sender.send(source.toFile(), "127.0.0.1", port);
+            receiver.stop();
+            receiverThread.interrupt();
+            receiverThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
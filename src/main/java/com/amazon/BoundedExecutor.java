@@ -0,0 +1,65 @@
+package com.amazon;
+
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs every task on its own thread, but no more than permits tasks at once. A task waits for a
+ * permit on its own thread, which for virtual threads costs next to nothing, so submitting
+ * never blocks and a loop that accepts connections stays free to turn away the ones its
+ * AdmissionControl has no room for.
+ */
+class BoundedExecutor extends AbstractExecutorService {
+    private final ExecutorService threads;
+    private final Semaphore permits;
+
+    BoundedExecutor(ExecutorService threads, int permits) {
+        this.threads = threads;
+        this.permits = new Semaphore(permits);
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        threads.execute(() -> {
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            try {
+                task.run();
+            } finally {
+                permits.release();
+            }
+        });
+    }
+
+    @Override
+    public void shutdown() {
+        threads.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        return threads.shutdownNow();
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return threads.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return threads.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return threads.awaitTermination(timeout, unit);
+    }
+}
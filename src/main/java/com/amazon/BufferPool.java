@@ -0,0 +1,302 @@
+package com.amazon;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hands out the chunk buffers that senders, receivers and hashers read files and sockets into,
+ * so that a connection or a hash borrows one for as long as it runs instead of allocating a new
+ * one or keeping one per thread. Returned buffers are kept for the next lease of the same size
+ * class, heap and direct apart.
+ * <p>
+ * All heap buffers together, leased or kept, stay within a limit, and direct buffers within a
+ * limit of their own, since the JVM caps direct memory apart from the heap. When a new buffer
+ * would exceed its limit kept buffers of its kind are dropped, and if that is not enough the
+ * lease waits until others are returned. A thread that already holds a lease never waits, so a
+ * connection that needs a second buffer cannot deadlock with connections waiting for their
+ * first; the limit can be exceeded by those. A thread that must not block, such as an event
+ * loop, uses tryLease, which gives up instead of waiting.
+ * <p>
+ * With tracking on, every lease remembers where it was taken so tests can report the ones that
+ * were never returned.
+ */
+class BufferPool {
+    private static final Logger logger = LoggerFactory.getLogger(BufferPool.class);
+
+    static final int MIN_SIZE = 1024;
+    static final long DEFAULT_LIMIT = Runtime.getRuntime().maxMemory() / 2;
+    static final long DEFAULT_DIRECT_LIMIT = maxDirectMemory() / 2;
+    static final BufferPool SHARED = new BufferPool(DEFAULT_LIMIT, DEFAULT_DIRECT_LIMIT,
+            Boolean.getBoolean("wormhole.buffers.track"));
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition returned = lock.newCondition();
+    private final Map<Integer, ArrayDeque<ByteBuffer>> heap = new HashMap<>();
+    private final Map<Integer, ArrayDeque<ByteBuffer>> direct = new HashMap<>();
+    private final Map<Lease, Exception> outstanding = new IdentityHashMap<>();
+    private final ThreadLocal<int[]> held = ThreadLocal.withInitial(() -> new int[1]);
+    private volatile long limit;
+    private volatile long directLimit;
+    private volatile boolean tracking;
+    private long allocated;
+    private long allocatedDirect;
+    private int leased;
+
+    BufferPool(long limit, boolean tracking) {
+        this(limit, limit, tracking);
+    }
+
+    BufferPool(long limit, long directLimit, boolean tracking) {
+        this.limit = limit;
+        this.directLimit = directLimit;
+        this.tracking = tracking;
+    }
+
+    /**
+     * Without -XX:MaxDirectMemorySize the JVM allows as much direct memory as heap.
+     */
+    private static long maxDirectMemory() {
+        try {
+            var option = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class).getVMOption("MaxDirectMemorySize");
+            long size = Long.parseLong(option.getValue());
+            if (size > 0) {
+                return size;
+            }
+        } catch (RuntimeException e) {
+            logger.debug("Could not read MaxDirectMemorySize.", e);
+        }
+        return Runtime.getRuntime().maxMemory();
+    }
+
+    /**
+     * Borrows a buffer of exactly size bytes. Close the lease to give it back.
+     */
+    Lease lease(int size, boolean direct) {
+        return lease(size, direct, true);
+    }
+
+    /**
+     * Borrows a buffer like lease, but returns null instead of waiting for one to be returned.
+     * Leases the thread already holds do not let it exceed the limit, since an event loop holds
+     * one for each connection it reads content on.
+     */
+    Lease tryLease(int size, boolean direct) {
+        return lease(size, direct, false);
+    }
+
+    private Lease lease(int size, boolean direct, boolean wait) {
+        int capacity = sizeClass(size);
+        var owner = held.get();
+        lock.lock();
+        try {
+            var free = (direct ? this.direct : heap).computeIfAbsent(capacity, c -> new ArrayDeque<>());
+            var buffer = free.poll();
+            if (buffer == null) {
+                if (!reserve(capacity, direct, wait && owner[0] > 0, wait)) {
+                    return null;
+                }
+                buffer = direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+            }
+            var lease = new Lease(buffer, size, owner);
+            ++owner[0];
+            ++leased;
+            if (tracking) {
+                outstanding.put(lease, new Exception("Leased " + size + " bytes here"));
+            }
+            return lease;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean reserve(int capacity, boolean direct, boolean mayExceed, boolean wait) {
+        long limit = direct ? directLimit : this.limit;
+        while (allocated(direct) + capacity > limit) {
+            if (dropKept(direct)) {
+                continue;
+            }
+            if (mayExceed || leased == 0) {
+                logger.debug("Exceeding the buffer limit of {} by {} bytes.", limit, allocated(direct) + capacity - limit);
+                break;
+            }
+            if (!wait) {
+                return false;
+            }
+            try {
+                returned.await(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for a buffer.", e);
+            }
+        }
+        allocate(direct, capacity);
+        return true;
+    }
+
+    private long allocated(boolean direct) {
+        return direct ? allocatedDirect : allocated - allocatedDirect;
+    }
+
+    private void allocate(boolean direct, long bytes) {
+        allocated += bytes;
+        if (direct) {
+            allocatedDirect += bytes;
+        }
+    }
+
+    private boolean dropKept(boolean direct) {
+        for (var free : (direct ? this.direct : heap).values()) {
+            var buffer = free.poll();
+            if (buffer != null) {
+                allocate(direct, -buffer.capacity());
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void giveBack(Lease lease) {
+        lock.lock();
+        try {
+            --lease.owner[0];
+            --leased;
+            outstanding.remove(lease);
+            var buffer = lease.memory.clear();
+            if (allocated(buffer.isDirect()) > (buffer.isDirect() ? directLimit : limit)) {
+                allocate(buffer.isDirect(), -buffer.capacity());
+            } else {
+                (buffer.isDirect() ? direct : heap).get(buffer.capacity()).push(buffer);
+            }
+            returned.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Bytes of all buffers, leased or kept.
+     */
+    long allocated() {
+        lock.lock();
+        try {
+            return allocated;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int leased() {
+        lock.lock();
+        try {
+            return leased;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Bytes of direct buffers, leased or kept.
+     */
+    long allocatedDirect() {
+        lock.lock();
+        try {
+            return allocatedDirect;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long limit() {
+        return limit;
+    }
+
+    void setLimit(long limit) {
+        this.limit = limit;
+    }
+
+    long directLimit() {
+        return directLimit;
+    }
+
+    void setDirectLimit(long directLimit) {
+        this.directLimit = directLimit;
+    }
+
+    void setTracking(boolean tracking) {
+        this.tracking = tracking;
+    }
+
+    /**
+     * Throws if a lease taken while tracking was on has not been returned, with the place it was
+     * taken as the cause.
+     */
+    void checkLeaks() {
+        lock.lock();
+        try {
+            if (!outstanding.isEmpty()) {
+                var leak = outstanding.values().iterator().next();
+                throw new IllegalStateException(outstanding.size() + " buffers were not returned.", leak);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Buffers come in four sizes between each power of two, so a 10 MiB chunk takes a 10 MiB
+     * buffer rather than a 16 MiB one.
+     */
+    static int sizeClass(int size) {
+        if (size <= MIN_SIZE) {
+            return MIN_SIZE;
+        }
+        int step = Integer.highestOneBit(size - 1) / 4;
+        return (int) Math.min(Integer.MAX_VALUE, ((long) size + step - 1) / step * step);
+    }
+
+    /**
+     * A borrowed buffer, given back by closing it. Closing twice gives it back once.
+     */
+    class Lease implements AutoCloseable {
+        private final ByteBuffer memory;
+        private final ByteBuffer buffer;
+        private final int[] owner;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private Lease(ByteBuffer memory, int size, int[] owner) {
+            this.memory = memory;
+            this.buffer = memory.clear().slice(0, size);
+            this.owner = owner;
+        }
+
+        ByteBuffer buffer() {
+            return buffer;
+        }
+
+        /**
+         * The heap array behind the buffer, which can be longer than the size that was asked for.
+         */
+        byte[] array() {
+            return buffer.array();
+        }
+
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                giveBack(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package com.amazon;
+
+import com.amazon.Wormhole.NamingThreadFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lets a connection read the next part of a file from the network while earlier parts are
+ * written to disk and validated. The reading thread takes empty buffers and puts full ones;
+ * a writer stage writes each buffer at its position and a validator stage hashes it, each on a
+ * thread of its own, and then the buffer goes back to the reader. A file that fits in one
+ * buffer, or any file when the ring has one buffer, is written and hashed by the reader.
+ */
+class BufferRing {
+    // With one core the stages could only take turns with the reader, so it does everything itself.
+    static final int DEFAULT_BUFFERS = Runtime.getRuntime().availableProcessors() > 1 ? 4 : 1;
+
+    private static final ExecutorService stages = Executors.newCachedThreadPool(new NamingThreadFactory("ring", true));
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private final List<ByteBuffer> buffers = new ArrayList<>();
+    private final int bufferSize;
+    private final BlockingQueue<ByteBuffer> free = new LinkedBlockingQueue<>();
+    private final BlockingQueue<ByteBuffer> filled = new LinkedBlockingQueue<>();
+    private final BlockingQueue<ByteBuffer> written = new LinkedBlockingQueue<>();
+
+    private FileChannel fileChannel;
+    private long position;
+    private Validator validator;
+    private boolean inline;
+    private Future<?> writer;
+    private Future<?> hasher;
+    private volatile Exception failure;
+
+    /**
+     * Splits memory into count buffers, so the ring holds as much as a single buffer would. The
+     * memory is only used between start and finish, so a connection can read other messages into
+     * it in between.
+     */
+    BufferRing(int count, ByteBuffer memory) {
+        count = Math.max(1, Math.min(count, memory.capacity()));
+        bufferSize = memory.capacity() / count;
+        var whole = memory.duplicate().clear();
+        for (int i = 0; i < count; ++i) {
+            buffers.add(whole.slice(i * bufferSize, bufferSize));
+        }
+    }
+
+    /**
+     * Starts on length bytes of a file, which are written to fileChannel from position on and
+     * given to the validator unless it is null.
+     */
+    void start(FileChannel fileChannel, long position, long length, Validator validator) {
+        this.fileChannel = fileChannel;
+        this.position = position;
+        this.validator = validator;
+        this.inline = length <= bufferSize || buffers.size() == 1;
+        this.writer = null;
+        this.hasher = null;
+        this.failure = null;
+        free.clear();
+        filled.clear();
+        written.clear();
+        for (var buffer : buffers) {
+            free.add(buffer.clear());
+        }
+    }
+
+    /**
+     * Returns an empty buffer, waiting for the stages to finish with one if they all hold data.
+     */
+    ByteBuffer take() throws IOException {
+        try {
+            while (true) {
+                var buffer = free.poll(100, TimeUnit.MILLISECONDS);
+                if (buffer != null) {
+                    return buffer.clear();
+                }
+                rethrow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    /**
+     * Hands over a buffer that was filled and flipped.
+     */
+    void put(ByteBuffer buffer) throws IOException {
+        rethrow();
+        if (inline) {
+            writeFully(buffer.duplicate());
+            if (validator != null) {
+                validator.update(buffer);
+            }
+            free.add(buffer);
+            return;
+        }
+        if (writer == null) {
+            writer = stages.submit(this::write);
+            if (validator != null) {
+                hasher = stages.submit(this::hash);
+            }
+        }
+        filled.add(buffer);
+    }
+
+    /**
+     * Waits until every buffer that was put is written and validated.
+     */
+    void finish() throws IOException {
+        if (writer == null) {
+            return;
+        }
+        filled.add(END);
+        try {
+            writer.get();
+            if (hasher != null) {
+                hasher.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            failure = e.getCause() instanceof Exception cause ? cause : e;
+        }
+        rethrow();
+    }
+
+    private Void write() throws Exception {
+        try {
+            while (true) {
+                var buffer = filled.take();
+                if (buffer == END) {
+                    return null;
+                }
+                writeFully(buffer.duplicate());
+                if (validator != null) {
+                    written.add(buffer);
+                } else {
+                    free.add(buffer);
+                }
+            }
+        } catch (Exception e) {
+            failure = e;
+            throw e;
+        } finally {
+            written.add(END);
+        }
+    }
+
+    private Void hash() throws Exception {
+        try {
+            while (true) {
+                var buffer = written.take();
+                if (buffer == END) {
+                    return null;
+                }
+                validator.update(buffer);
+                free.add(buffer);
+            }
+        } catch (Exception e) {
+            failure = e;
+            throw e;
+        }
+    }
+
+    private void writeFully(ByteBuffer data) throws IOException {
+        var event = new TransferEvents.ChunkWritten();
+        event.begin();
+        long offset = position;
+        while (data.hasRemaining()) {
+            position += fileChannel.write(data, position);
+        }
+        if (event.shouldCommit()) {
+            event.offset = offset;
+            event.bytes = position - offset;
+            event.commit();
+        }
+    }
+
+    private void rethrow() throws IOException {
+        var e = failure;
+        if (e instanceof IOException io) {
+            throw io;
+        } else if (e != null) {
+            throw new IOException(e);
+        }
+    }
+}
@@ -4,14 +4,19 @@ import com.amazon.Wormhole.NamingThreadFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.FileOutputStream;
-import java.net.InetSocketAddress;
+import java.io.EOFException;
+import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.ClosedByInterruptException;
-import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
@@ -24,19 +29,28 @@ public class ChannelReceiver implements Receiver {
     private final boolean validate;
     private final int threadCount;
 
-    private final ThreadLocal<ByteBuffer> buffers;
+    private int ringBuffers = BufferRing.DEFAULT_BUFFERS;
     private Path targetDirectory;
 
     private SimpleBlockingReceiver.Acceptor acceptor;
+    private ChecksumAlgorithm checksumAlgorithm;
 
     private volatile boolean shouldRun = true;
+    private ExecutorService verifiers;
+    private final Map<String, StripedFile> stripedFiles = new ConcurrentHashMap<>();
+    private boolean zeroCopy;
+    private boolean virtualThreads;
+    private int socketBuffer;
+    private final AdmissionControl admission;
+    private volatile AcceptorGroup acceptors;
+    private int acceptorCount = 1;
 
     public ChannelReceiver(int port, int chunkSize, int threadCount, boolean validate) {
         this.port = port;
         this.chunkSize = chunkSize;
         this.validate = validate;
         this.threadCount = threadCount;
-        this.buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(chunkSize));
+        this.admission = new AdmissionControl(threadCount);
     }
 
     public ChannelReceiver() {
@@ -46,27 +60,31 @@ public class ChannelReceiver implements Receiver {
     @Override
     public void stop() {
         shouldRun = false;
+        var acceptors = this.acceptors;
+        if (acceptors != null) {
+            acceptors.close();
+        }
     }
 
     @Override
     public void receive() {
-        var executor = Executors.newFixedThreadPool(threadCount, new NamingThreadFactory("rx"));
-        try (ServerSocketChannel ss = ServerSocketChannel.open()) {
-            ss.bind(new InetSocketAddress(port));
-            while (shouldRun) {
-                try {
-                    var clientSocket = ss.accept();
-                    executor.submit(() -> receiveFiles(clientSocket));
-                } catch (ClosedByInterruptException ignore) {
-                    //noinspection ResultOfMethodCallIgnored
-                    Thread.interrupted();
-                    if (shouldRun) {
-                        logger.warn("Expected shouldRun to be false when interrupted.");
-                        break;
+        var executor = newExecutor("rx", threadCount, virtualThreads);
+        // Verifiers hash, so they stay platform threads and need no more of them than cores.
+        verifiers = Executors.newFixedThreadPool(virtualThreads ? DEFAULT_THREAD_COUNT : threadCount,
+                new NamingThreadFactory("verify"));
+        try (var acceptors = AcceptorGroup.open(port, acceptorCount, socketBuffer)) {
+            this.acceptors = acceptors;
+            if (shouldRun) {
+                acceptors.start((acceptor, clientSocket) -> {
+                    if (admission.admit(clientSocket.socket())) {
+                        executor.submit(() -> admission.serve(() -> receiveFiles(clientSocket)));
                     }
-                }
+                });
+                acceptors.await();
             }
-            logger.info("Receiver is exiting.");
+            logger.info("Receiver is exiting: {}", admission);
+        } catch (InterruptedException e) {
+            logger.info("Receiver was interrupted: {}", admission);
         } catch (Exception e) {
             throw new RuntimeException(e);
         } finally {
@@ -81,86 +99,523 @@ public class ChannelReceiver implements Receiver {
                     logger.debug("Interrupted: {}", Thread.currentThread().isInterrupted());
                 }
             } while (!terminated);
+            verifiers.shutdown();
         }
     }
 
     private void receiveFiles(SocketChannel clientSocket) {
-        boolean received;
-        do {
-            received = receiveFile(clientSocket);
-        } while (clientSocket.isConnected() && received);
+        try (clientSocket; var frameLease = newFrameLease(); var lease = BufferPool.SHARED.lease(chunkSize, true)) {
+            var frame = frameLease.buffer();
+            try {
+                frame.clear().limit(Protocol.PREAMBLE_LENGTH);
+                readFully(clientSocket, frame);
+                Protocol.checkPreamble(frame.flip());
+            } catch (IOException e) {
+                logger.warn("{} Closing connection: {}", clientSocket, e.getMessage());
+                clientSocket.close();
+                return;
+            }
+            var view = new HeaderView();
+            var timer = new Metrics.FileTimer();
+            boolean received;
+            do {
+                received = receiveFile(clientSocket, frame, view, lease.buffer(), timer);
+            } while (clientSocket.isConnected() && received);
+        } catch (IOException e) {
+            logger.debug("Error closing {}", clientSocket, e);
+        }
     }
 
-    private boolean receiveFile(SocketChannel clientSocket) {
-        try {
-            var validator = validate ? new Validator() : null;
-            var buffer = buffers.get();
+    private static BufferPool.Lease newFrameLease() {
+        return BufferPool.SHARED.lease(Protocol.FRAME_PREFIX_LENGTH + Protocol.MAX_FRAME_LENGTH, false);
+    }
 
-            buffer.clear();
-            int read = clientSocket.read(buffer);
-            if (read <= 0) {
-                logger.debug("Did not read header: {}", read);
+    private boolean receiveFile(SocketChannel clientSocket, ByteBuffer frame, HeaderView view, ByteBuffer buffer,
+                                Metrics.FileTimer timer) {
+        try {
+            if (!readFrame(clientSocket, frame)) {
+                logger.debug("{} Closed by sender.", clientSocket);
                 return false;
             }
+            timer.header();
+            var header = view.wrap(frame).toHeader();
+            return receiveRequest(clientSocket, frame, view, buffer, header, timer);
+        } catch (Exception e) {
+            logger.warn("Error receiving file.", e);
+            throw new RuntimeException(e);
+        }
+    }
 
-            buffer.flip();
-            var header = Header.decode(buffer);
-            if (validator != null) {
-                validator.expect(header.checksum());
+    /**
+     * Serves one request whose header was already read from the connection. Returns false if
+     * the sender closed the connection instead of sending further requests.
+     */
+    boolean receiveRequest(SocketChannel clientSocket, Header header) throws IOException {
+        var timer = new Metrics.FileTimer();
+        timer.header();
+        try (var frameLease = newFrameLease(); var lease = BufferPool.SHARED.lease(chunkSize, true)) {
+            return receiveRequest(clientSocket, frameLease.buffer(), new HeaderView(), lease.buffer(), header, timer);
+        }
+    }
+
+    private boolean receiveRequest(SocketChannel clientSocket, ByteBuffer frame, HeaderView view, ByteBuffer buffer,
+                                   Header header, Metrics.FileTimer timer) throws IOException {
+        if (header.isManifest()) {
+            receiveManifest(clientSocket, header);
+            return true;
+        }
+        if (header.isStriped()) {
+            receiveStripe(clientSocket, buffer, header, timer);
+            return true;
+        }
+        if (header.isBatch()) {
+            receiveBatch(clientSocket, buffer, header, timer);
+            return true;
+        }
+        if (header.isPipelined()) {
+            return receivePipelined(clientSocket, frame, view, buffer, header, timer);
+        }
+
+        var algorithm = ChecksumAlgorithm.negotiate(header, checksumAlgorithm);
+        var validator = newValidator(header, algorithm);
+
+        if (!TransferEvents.accept(acceptor, header.sender(), header.filePath(), header.fileLength())) {
+            clientSocket.write(ByteBuffer.wrap(new Acceptance(Acceptance.REJECTED, algorithm, 0).encode()));
+            timer.answered();
+        } else {
+            Path withoutRoot = Wormhole.removeRoot(header.filePath());
+            var filePath = targetDirectory.resolve(withoutRoot);
+            Files.createDirectories(filePath.getParent());
+
+            long offset = ResumableFile.resumableLength(filePath, header);
+            clientSocket.write(ByteBuffer.wrap(new Acceptance(Acceptance.ACCEPTED, algorithm, offset).encode()));
+            timer.answered();
+
+            long writeTo = 0;
+            if (offset > 0) {
+                var prefix = ResumableFile.hashPrefix(filePath, offset, algorithm, validator);
+                clientSocket.write(ByteBuffer.wrap(Header.encodeTrailer(prefix)));
+                buffer.clear();
+                buffer.limit(Long.BYTES);
+                readFully(clientSocket, buffer);
+                writeTo = buffer.flip().getLong();
+                if (writeTo == 0 && validator != null) {
+                    // The sender did not recognise the partial file, it will send all of it.
+                    validator.reset();
+                }
+                logger.debug("Resuming {} at {} of {}", filePath, writeTo, offset);
             }
-            assert buffer.remaining() == 0: "Buffer should be empty here";
 
-            if (!acceptor.accept(header.sender(), header.filePath(), header.fileLength())) {
-                clientSocket.write(ByteBuffer.wrap(new byte[] {0}));
+            receiveContent(clientSocket, buffer, filePath, header, algorithm, validator, writeTo, timer);
+        }
+        return true;
+    }
+
+    private Validator newValidator(Header header, ChecksumAlgorithm algorithm) {
+        var validator = validate && !header.hasChunkChecksums() ? new Validator(algorithm) : null;
+        if (validator != null && !header.hasTrailingChecksum()) {
+            validator.expect(header.checksum());
+        }
+        return validator;
+    }
+
+    private void receiveContent(SocketChannel clientSocket, ByteBuffer buffer, Path filePath, Header header,
+                                ChecksumAlgorithm algorithm, Validator validator, long writeTo,
+                                Metrics.FileTimer timer) throws IOException {
+        var event = new TransferEvents.FileReceived();
+        event.begin();
+        long from = writeTo;
+        long remaining = header.fileLength() - writeTo;
+        logger.debug("Creating file at: <{}>", filePath);
+        try (var fileChannel = FileChannel.open(filePath, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            fileChannel.truncate(writeTo);
+
+            if (header.hasChunkChecksums()) {
+                receiveChunks(clientSocket, buffer, fileChannel, filePath, header, algorithm,
+                        (int) (writeTo / header.blockSize()), timer);
+                writeTo = header.fileLength();
+            } else if (header.isCompressed()) {
+                Compression.receive(Channels.newInputStream(clientSocket), fileChannel, writeTo, remaining, validator);
+                timer.received(remaining);
+                writeTo += remaining;
+            } else if (zeroCopy) {
+                transferFrom(clientSocket, fileChannel, writeTo, remaining, validator, timer);
+                writeTo += remaining;
             } else {
-                clientSocket.write(ByteBuffer.wrap(new byte[] {1}));
-                Path withoutRoot = Wormhole.removeRoot(header.filePath());
-                var filePath = targetDirectory.resolve(withoutRoot);
-                Files.createDirectories(filePath.getParent());
+                var ring = new BufferRing(ringBuffers, buffer);
+                ring.start(fileChannel, writeTo, remaining, validator);
+                try {
+                    while (remaining > 0) {
+                        var data = ring.take();
+                        data.limit((int) Math.min(remaining, data.capacity()));
+                        readChunk(clientSocket, data);
+                        int read = data.flip().remaining();
+                        timer.received(read);
+                        ring.put(data);
+                        remaining -= read;
+                        writeTo += read;
+                    }
+                } finally {
+                    ring.finish();
+                }
+            }
+        }
+        timer.lastByte();
 
-                long writeTo = 0;
-                long remaining = header.fileLength();
-                logger.debug("Creating file at: <{}>", filePath);
-                try (var fileOutputStream = new FileOutputStream(filePath.toFile());
-                     var fileChannel = fileOutputStream.getChannel()) {
+        if (header.hasTrailingChecksum()) {
+            var checksum = readTrailer(clientSocket, buffer);
+            if (validator != null) {
+                validator.expect(checksum);
+            }
+        }
 
-                    while (true) {
-                        long toRead = Math.min(remaining, chunkSize);
+        if (validator != null) {
+            validator.validate();
+        }
+        timer.completed(validator != null);
+        TransferEvents.received(event, filePath, header.fileLength() - from, validator != null);
+        if (header.lastModified() > 0) {
+            Files.setLastModifiedTime(filePath, FileTime.fromMillis(header.lastModified()));
+        }
+        logger.debug("{} Received: {}, size: {}", clientSocket, filePath, writeTo);
+    }
+
+    /**
+     * Serves a connection whose sender keeps several headers in flight. Acceptor decisions are
+     * made on their own thread and answered as soon as they are known, tagged with the request
+     * id, while this thread keeps reading the data of files that were already accepted. Returns
+     * false if the sender closed the connection instead of ending the session.
+     */
+    private boolean receivePipelined(SocketChannel clientSocket, ByteBuffer frame, HeaderView view, ByteBuffer buffer,
+                                     Header session, Metrics.FileTimer timer) throws IOException {
+        clientSocket.write(ByteBuffer.wrap(new Acceptance(Acceptance.ACCEPTED, session.algorithm(), 0).encode()));
+        var accepted = new ConcurrentHashMap<Integer, Header>();
+        var decisions = Executors.newSingleThreadExecutor(new NamingThreadFactory("accept"));
+        try {
+            while (true) {
+                buffer.clear();
+                buffer.limit(Pipeline.MESSAGE_LENGTH);
+                if (clientSocket.read(buffer) < 0) {
+                    return false;
+                }
+                readFully(clientSocket, buffer);
+                buffer.flip();
+                var type = buffer.get();
+                var requestId = buffer.getInt();
+                if (type == Pipeline.END) {
+                    // Every header was answered before the sender drained its window.
+                    var end = new Acceptance(Acceptance.ACCEPTED, session.algorithm(), 0);
+                    clientSocket.write(ByteBuffer.wrap(Pipeline.encodeResponse(Pipeline.END_ID, end)));
+                    return true;
+                } else if (type == Pipeline.HEADER) {
+                    if (!readFrame(clientSocket, frame)) {
+                        throw new EOFException("Connection closed by sender.");
+                    }
+                    long read = System.nanoTime();
+                    var header = view.wrap(frame).toHeader();
+                    decisions.execute(() -> decide(clientSocket, requestId, header, accepted, read));
+                } else {
+                    var header = accepted.remove(requestId);
+                    if (header == null) {
+                        throw new IllegalStateException("Data for unknown request: " + requestId);
+                    }
+                    var algorithm = ChecksumAlgorithm.negotiate(header, checksumAlgorithm);
+                    var filePath = targetDirectory.resolve(Wormhole.removeRoot(header.filePath()));
+                    timer.content();
+                    receiveContent(clientSocket, buffer, filePath, header, algorithm, newValidator(header, algorithm), 0, timer);
+                }
+            }
+        } finally {
+            decisions.shutdownNow();
+        }
+    }
+
+    /**
+     * Answers one pipelined request. A request that fails to be decided is rejected, and if the
+     * answer itself cannot be written the connection is closed, so the sender never waits on it.
+     */
+    private void decide(SocketChannel clientSocket, int requestId, Header header, Map<Integer, Header> accepted,
+                        long read) {
+        var algorithm = ChecksumAlgorithm.negotiate(header, checksumAlgorithm);
+        var status = Acceptance.REJECTED;
+        try {
+            if (TransferEvents.accept(acceptor, header.sender(), header.filePath(), header.fileLength())) {
+                Files.createDirectories(targetDirectory.resolve(Wormhole.removeRoot(header.filePath())).getParent());
+                accepted.put(requestId, header);
+                status = Acceptance.ACCEPTED;
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Rejecting request {} for {}", requestId, header.filePath(), e);
+        }
+        try {
+            clientSocket.write(ByteBuffer.wrap(Pipeline.encodeResponse(requestId, new Acceptance(status, algorithm, 0))));
+            Metrics.SHARED.answer.record(System.nanoTime() - read);
+        } catch (IOException e) {
+            logger.warn("Error answering request {} for {}, closing the connection", requestId, header.filePath(), e);
+            try {
+                clientSocket.close();
+            } catch (IOException ignore) {}
+        }
+    }
+
+    private void receiveManifest(SocketChannel clientSocket, Header header) throws IOException {
+        Manifest.receive(header, Channels.newInputStream(clientSocket), Channels.newOutputStream(clientSocket),
+                targetDirectory, verifiers);
+    }
+
+    private void receiveBatch(SocketChannel clientSocket, ByteBuffer buffer, Header header,
+                              Metrics.FileTimer timer) throws IOException {
+        var batch = FileBatch.receive(header, Channels.newInputStream(clientSocket), Channels.newOutputStream(clientSocket),
+                acceptor, validate);
+        timer.answered();
+
+        // The files arrive back to back, so one read can hold the end of one file and the start of the next.
+        long unread = batch.length();
+        buffer.clear().limit(0);
+        for (var entry : batch.files()) {
+            var filePath = batch.filePath(entry, targetDirectory);
+            var validator = batch.validator();
+            try (var fileChannel = FileChannel.open(filePath, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                long writeTo = 0;
+                while (writeTo < entry.fileLength()) {
+                    if (!buffer.hasRemaining()) {
                         buffer.clear();
-                        buffer.limit((int) toRead);
-                        read = clientSocket.read(buffer);
-                        if (read <= 0) {
-                            break;
+                        buffer.limit((int) Math.min(buffer.capacity(), unread));
+                        if (clientSocket.read(buffer) < 0) {
+                            throw new EOFException("Connection closed by sender.");
                         }
+                        unread -= buffer.position();
                         buffer.flip();
-                        int wrote = fileChannel.write(buffer, writeTo);
-                        if (wrote != read) {
-                            break;
-                        }
+                    }
+                    var data = buffer.slice(buffer.position(), (int) Math.min(buffer.remaining(), entry.fileLength() - writeTo));
+                    buffer.position(buffer.position() + data.remaining());
+                    timer.received(data.remaining());
+                    if (validator != null) {
+                        validator.update(data.duplicate());
+                    }
+                    while (data.hasRemaining()) {
+                        writeTo += fileChannel.write(data, writeTo);
+                    }
+                }
+            }
+            batch.finish(entry, filePath, validator, timer);
+        }
+        logger.debug("{} Received {} of {} files in batch.", clientSocket, batch.files().size(), batch.listed());
+    }
+
+    private void receiveStripe(SocketChannel clientSocket, ByteBuffer buffer, Header header,
+                               Metrics.FileTimer timer) throws IOException {
+        var algorithm = ChecksumAlgorithm.negotiate(header, checksumAlgorithm);
+        StripedFile.receive(stripedFiles, header, algorithm, Channels.newInputStream(clientSocket),
+                Channels.newOutputStream(clientSocket), acceptor, targetDirectory, validate, timer,
+                (fileChannel, position, length, validator) -> {
+                    if (zeroCopy) {
+                        transferFrom(clientSocket, fileChannel, position, length, validator, timer);
+                        return;
+                    }
+                    long end = position + length;
+                    while (position < end) {
+                        buffer.clear();
+                        buffer.limit((int) Math.min(end - position, buffer.capacity()));
+                        readFully(clientSocket, buffer);
+                        buffer.flip();
+                        timer.received(buffer.remaining());
                         if (validator != null) {
-                            buffer.flip();
-                            validator.update(buffer);
+                            validator.update(buffer.duplicate());
                         }
-                        remaining -= wrote;
-                        writeTo += wrote;
-                        if (remaining == 0) {
-                            break;
+                        while (buffer.hasRemaining()) {
+                            position += fileChannel.write(buffer, position);
                         }
                     }
-                }
+                });
+    }
+
+    /**
+     * Moves length bytes from the socket to the file without passing them through our buffers,
+     * in pieces of at most chunkSize. The validator reads each piece back from the page cache.
+     */
+    private void transferFrom(SocketChannel clientSocket, FileChannel fileChannel, long position, long length,
+                              Validator validator, Metrics.FileTimer timer) throws IOException {
+        long end = position + length;
+        while (position < end) {
+            long transferred = fileChannel.transferFrom(clientSocket, position, Math.min(chunkSize, end - position));
+            if (transferred <= 0) {
+                throw new EOFException("Connection closed by sender.");
+            }
+            timer.received(transferred);
+            if (validator != null) {
+                Wormhole.read(fileChannel, position, transferred, validator::update);
+            }
+            position += transferred;
+        }
+    }
+
+    private void receiveChunks(SocketChannel clientSocket, ByteBuffer buffer, FileChannel fileChannel,
+                               Path filePath, Header header, ChecksumAlgorithm algorithm, int firstChunk,
+                               Metrics.FileTimer timer) throws IOException {
+        var verifier = new ChunkVerifier(verifiers, filePath, algorithm);
+        for (int chunk = firstChunk; chunk < header.blockCount(); ++chunk) {
+            receiveChunk(clientSocket, buffer, fileChannel, header, chunk, verifier, timer);
+        }
 
-                if (validator != null) {
-                    validator.validate();
+        for (int attempt = 0; ; ++attempt) {
+            int[] failures = validate ? verifier.awaitFailures() : new int[0];
+            if (failures.length > 0 && attempt == ChunkVerifier.MAX_REPAIRS) {
+                clientSocket.write(ByteBuffer.wrap(ChunkVerifier.encodeGaveUp()));
+                throw new IllegalStateException("Invalid digest.");
+            }
+            clientSocket.write(ByteBuffer.wrap(ChunkVerifier.encodeRepairs(failures)));
+            if (failures.length == 0) {
+                break;
+            }
+            logger.warn("Requesting {} chunks of {} again.", failures.length, filePath);
+            for (int chunk : failures) {
+                receiveChunk(clientSocket, buffer, fileChannel, header, chunk, verifier, timer);
+            }
+        }
+    }
+
+    private void receiveChunk(SocketChannel clientSocket, ByteBuffer buffer, FileChannel fileChannel,
+                              Header header, int chunk, ChunkVerifier verifier, Metrics.FileTimer timer) throws IOException {
+        long position = (long) chunk * header.blockSize();
+        long length = Math.min(header.blockSize(), header.fileLength() - position);
+        long writeTo = position;
+        long remaining = length;
+        while (remaining > 0) {
+            buffer.clear();
+            buffer.limit((int) Math.min(remaining, buffer.capacity()));
+            readFully(clientSocket, buffer);
+            timer.received(buffer.flip().remaining());
+            while (buffer.hasRemaining()) {
+                writeTo += fileChannel.write(buffer, writeTo);
+            }
+            remaining = length - (writeTo - position);
+        }
+
+        var checksum = readTrailer(clientSocket, buffer);
+        if (validate) {
+            verifier.submit(chunk, position, length, checksum);
+        }
+    }
+
+    private static byte[] readTrailer(SocketChannel clientSocket, ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        buffer.limit(Short.BYTES);
+        readFully(clientSocket, buffer);
+        buffer.flip();
+        var checksum = new byte[buffer.getShort()];
+        buffer.clear();
+        buffer.limit(checksum.length);
+        readFully(clientSocket, buffer);
+        buffer.flip();
+        buffer.get(checksum);
+        return checksum;
+    }
+
+    /**
+     * Reads the next header frame into the frame buffer. Returns false if the sender closed the
+     * connection before it.
+     */
+    private static boolean readFrame(SocketChannel clientSocket, ByteBuffer frame) throws IOException {
+        frame.clear().limit(Protocol.FRAME_PREFIX_LENGTH);
+        while (frame.hasRemaining()) {
+            if (clientSocket.read(frame) < 0) {
+                if (frame.position() == 0) {
+                    return false;
                 }
-                logger.debug("{} Received: {}, size: {}", clientSocket, filePath, writeTo);
+                throw new EOFException("Connection closed by sender.");
             }
-        } catch (Exception e) {
-            logger.warn("Error receiving file.", e);
-            throw new RuntimeException(e);
         }
+        frame.limit(Protocol.FRAME_PREFIX_LENGTH + Protocol.checkFrameLength(frame.getInt(0)));
+        readFully(clientSocket, frame);
+        frame.flip();
         return true;
     }
 
+    private static void readFully(SocketChannel clientSocket, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (clientSocket.read(buffer) < 0) {
+                throw new EOFException("Connection closed by sender.");
+            }
+        }
+    }
+
+    /**
+     * Fills buffer from the socket like readFully, recording a SocketStall for each read that
+     * waited long. A blocking read returns as soon as there is something to read, so that is
+     * the wait for the socket to become readable rather than for the whole chunk to arrive.
+     */
+    private static void readChunk(SocketChannel clientSocket, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            var stall = new TransferEvents.SocketStall();
+            stall.begin();
+            int read = clientSocket.read(buffer);
+            if (read < 0) {
+                throw new EOFException("Connection closed by sender.");
+            }
+            if (stall.shouldCommit()) {
+                stall.bytes = read;
+                stall.commit();
+            }
+        }
+    }
+
+    /**
+     * How many buffers each connection reads into while earlier ones are written and validated.
+     * They share one chunk of memory, and one buffer reads and writes in turn.
+     */
+    public void setRingBuffers(int ringBuffers) {
+        this.ringBuffers = ringBuffers;
+    }
+
+    /**
+     * Write file data with FileChannel.transferFrom instead of reading it into a buffer first.
+     * Validation then reads the data back from the file, so it is best used without it.
+     */
+    public void setZeroCopy(boolean zeroCopy) {
+        this.zeroCopy = zeroCopy;
+    }
+
+    /**
+     * Pool for hashing local files and verifying chunks, for requests served through receiveRequest
+     * outside of receive.
+     */
+    void setVerifiers(ExecutorService verifiers) {
+        this.verifiers = verifiers;
+    }
+
+    @Override
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    @Override
+    public void setSocketBuffer(int socketBuffer) {
+        this.socketBuffer = socketBuffer;
+    }
+
+    @Override
+    public void setAcceptors(int acceptors) {
+        this.acceptorCount = acceptors;
+    }
+
+    @Override
+    public void setMaxQueued(int maxQueued) {
+        admission.setMaxQueued(maxQueued);
+    }
+
+    @Override
+    public void setRetryAfter(int retryAfterMillis) {
+        admission.setRetryAfter(retryAfterMillis);
+    }
+
+    @Override
+    public AdmissionControl getAdmissionControl() {
+        return admission;
+    }
+
     @Override
     public void setTargetDirectory(Path targetDirectory) {
         this.targetDirectory = targetDirectory;
@@ -170,4 +625,9 @@ public class ChannelReceiver implements Receiver {
     public void setAcceptor(SimpleBlockingReceiver.Acceptor acceptor) {
         this.acceptor = acceptor;
     }
+
+    @Override
+    public void setChecksumAlgorithm(ChecksumAlgorithm checksumAlgorithm) {
+        this.checksumAlgorithm = checksumAlgorithm;
+    }
 }
@@ -1,24 +1,34 @@
 package com.amazon;
 
-import com.amazon.Wormhole.NamingThreadFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
 
 import static com.amazon.Wormhole.DEFAULT_CHUNK_SIZE;
+import static com.amazon.Wormhole.DEFAULT_STRIPE_SIZE;
 import static com.amazon.Wormhole.DEFAULT_THREAD_COUNT;
+import static com.amazon.Wormhole.DEFAULT_WINDOW;
+import static com.amazon.Wormhole.newExecutor;
 
 public class ChannelSender implements Sender {
     private static final Logger logger = LoggerFactory.getLogger(ChannelSender.class);
@@ -27,8 +37,30 @@ public class ChannelSender implements Sender {
     private final int chunkSize;
     private final boolean validate;
     private final int threadCount;
+    private ChecksumMode checksumMode = ChecksumMode.HEADER;
+    private ChecksumAlgorithm checksumAlgorithm = ChecksumAlgorithm.MD5;
+    private boolean resume;
+    private SyncMode syncMode = SyncMode.NONE;
+    private long minimumStripeSize = DEFAULT_STRIPE_SIZE;
+    private long batchThreshold;
+    private int window = DEFAULT_WINDOW;
+    private boolean virtualThreads;
+    private Compression compression = Compression.NONE;
+    private boolean autoTune;
+    private int socketBuffer;
+    private long bandwidth;
+    private AutoTuner tuner;
     private final LongAdder filesTransferred = new LongAdder();
     private final LongAdder bytesTransferred = new LongAdder();
+    // Bytes handed to sockets so far, counted as they go rather than per file.
+    private final LongAdder bytesSent = new LongAdder();
+    // Bytes of files sent in this send, before compression, and of files or parts of files it did not need to send.
+    private final LongAdder progressBytes = new LongAdder();
+    private final LongAdder skippedBytes = new LongAdder();
+    private volatile File source;
+    private volatile DirectoryScanner scanner;
+    private volatile long startFiles;
+    private final ConnectionLoads connectionLoads = new ConnectionLoads();
 
     public ChannelSender(String senderName, int chunkSize, int threadCount, boolean validate) {
         this.senderName = senderName;
@@ -41,6 +73,66 @@ public class ChannelSender implements Sender {
         this(senderName, DEFAULT_CHUNK_SIZE, DEFAULT_THREAD_COUNT, true);
     }
 
+    @Override
+    public void setChecksumMode(ChecksumMode checksumMode) {
+        this.checksumMode = checksumMode;
+    }
+
+    @Override
+    public void setChecksumAlgorithm(ChecksumAlgorithm checksumAlgorithm) {
+        this.checksumAlgorithm = checksumAlgorithm;
+    }
+
+    @Override
+    public void setResume(boolean resume) {
+        this.resume = resume;
+    }
+
+    @Override
+    public void setSyncMode(SyncMode syncMode) {
+        this.syncMode = syncMode;
+    }
+
+    @Override
+    public void setMinimumStripeSize(long minimumStripeSize) {
+        this.minimumStripeSize = minimumStripeSize;
+    }
+
+    @Override
+    public void setBatchThreshold(long batchThreshold) {
+        this.batchThreshold = batchThreshold;
+    }
+
+    @Override
+    public void setWindow(int window) {
+        this.window = window;
+    }
+
+    @Override
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    @Override
+    public void setCompression(Compression compression) {
+        this.compression = compression;
+    }
+
+    @Override
+    public void setAutoTune(boolean autoTune) {
+        this.autoTune = autoTune;
+    }
+
+    @Override
+    public void setSocketBuffer(int socketBuffer) {
+        this.socketBuffer = socketBuffer;
+    }
+
+    @Override
+    public void setBandwidth(long bandwidth) {
+        this.bandwidth = bandwidth;
+    }
+
     @Override
     public long getFilesTransferred() {
         return filesTransferred.longValue();
@@ -51,22 +143,109 @@ public class ChannelSender implements Sender {
         return bytesTransferred.longValue();
     }
 
+    /**
+     * Counts file bytes written to the receiver, for progress, the tuner and the process metrics.
+     */
+    private void sent(long bytes) {
+        progressBytes.add(bytes);
+        wrote(bytes);
+    }
+
+    /**
+     * Counts bytes written to the receiver that progress counts otherwise: compressed blocks,
+     * whose file bytes it counts as each goes out, and chunks sent again.
+     */
+    private void wrote(long bytes) {
+        bytesSent.add(bytes);
+        ConnectionLoads.sent(bytes);
+        Metrics.SHARED.sentBytes.add(bytes);
+    }
+
+    /**
+     * Counts file bytes there was no need to send, because the receiver kept them to resume or
+     * turned their file down, as done for progress.
+     */
+    private void skipped(long bytes) {
+        skippedBytes.add(bytes);
+    }
+
+    private void transferred(long files) {
+        filesTransferred.add(files);
+        Metrics.SHARED.sentFiles.add(files);
+    }
+
+    @Override
+    public ConnectionLoads getConnectionLoads() {
+        return connectionLoads;
+    }
+
+    @Override
+    public Progress getProgress() {
+        long bytes = progressBytes.sum();
+        long skipped = skippedBytes.sum();
+        long files = filesTransferred.sum() - startFiles;
+        var scanner = this.scanner;
+        if (scanner != null) {
+            return new Progress(bytes, skipped, files, scanner.foundBytes(), scanner.found(), scanner.isScanned(),
+                    connectionLoads.sent());
+        }
+        var source = this.source;
+        return new Progress(bytes, skipped, files, source != null ? source.length() : 0, source != null ? 1 : 0,
+                source != null, new long[0]);
+    }
+
     public void send(File source, String host, int port) {
-        if (!source.isDirectory()) {
-            sendSingle(source, host, port);
-        } else {
-            sendMultiple(source, host, port);
+        tuner = new AutoTuner(autoTune, threadCount, chunkSize);
+        tuner.setSocketBuffer(socketBuffer);
+        tuner.setBandwidth(bandwidth);
+        tuner.start(bytesSent::sum);
+        progressBytes.reset();
+        skippedBytes.reset();
+        startFiles = filesTransferred.sum();
+        this.scanner = null;
+        this.source = source;
+        try {
+            if (!source.isDirectory()) {
+                sendSingle(source, host, port);
+            } else {
+                sendMultiple(source, host, port);
+            }
+        } finally {
+            tuner.close();
         }
     }
 
+    /**
+     * Opens a connection, waiting while the receiver is busy unless giveUp says otherwise.
+     */
+    private SocketChannel open(String host, int port, BooleanSupplier giveUp) throws IOException {
+        return Protocol.admitted(() -> tuner.configure(Protocol.open(host, port, tuner::connected)), giveUp);
+    }
+
     private void sendMultiple(File source, String host, int port) {
-        var queue = new LinkedBlockingDeque<File>();
-        queue.addLast(source);
+        DirectoryScanner scanner;
+        DirectoryScanner candidates = null;
+        Manifest.Stream manifest = null;
+        if (syncMode == SyncMode.NONE) {
+            scanner = DirectoryScanner.walk(source);
+        } else {
+            // Workers exchange the manifest on their own connections as candidates are found.
+            var algorithm = syncMode == SyncMode.CHECKSUM ? checksumAlgorithm : null;
+            candidates = DirectoryScanner.walk(source);
+            scanner = DirectoryScanner.fed(DirectoryScanner.DEFAULT_CAPACITY);
+            manifest = new Manifest.Stream(candidates, scanner, source, senderName, algorithm);
+        }
+        connectionLoads.reset();
+        this.scanner = scanner;
+        var stream = manifest;
+        var connected = new AtomicInteger();
+        var workers = new ArrayList<Future<?>>();
         ExecutorService executor = null;
         try  {
-            executor = Executors.newFixedThreadPool(threadCount, new NamingThreadFactory("tx"));
+            executor = newExecutor("tx", threadCount, virtualThreads);
             for (int i = 0; i < threadCount; ++i) {
-                executor.submit(() -> processWork(queue, host, port));
+                int worker = i;
+                workers.add(executor.submit(() -> processWork(worker, scanner, stream, host, port, connected)));
             }
         } finally {
             if (executor != null) {
@@ -79,42 +258,110 @@ public class ChannelSender implements Sender {
                     Thread.currentThread().interrupt();
                 }
             }
+            scanner.close();
+            if (candidates != null) {
+                candidates.close();
+            }
         }
+        for (var worker : workers) {
+            try {
+                worker.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+        logger.debug("Sent {}", connectionLoads);
     }
 
-    private void processWork(LinkedBlockingDeque<File> files, String host, int port) {
+    /**
+     * Sends files until there are none left. The worker connects before taking its first file,
+     * and if the receiver turns it away while other workers are connected it leaves the files
+     * to them. With a manifest, it exchanges batches of it between files when none are waiting.
+     */
+    private void processWork(int worker, DirectoryScanner files, Manifest.Stream manifest, String host, int port,
+                             AtomicInteger connected) {
         SocketChannel socket = null;
+        var batch = new FileBatch();
+        Pipeline pipeline = null;
+        var load = connectionLoads.open();
+        load.bind();
         try {
             while (true) {
                 try {
-                    File file = files.pollLast(10, TimeUnit.MILLISECONDS);
+                    if (pipeline != null) {
+                        pipeline.ready();
+                    }
+                    tuner.awaitTurn(worker, files);
+                    if (socket == null) {
+                        if (files.isDrained()) {
+                            break;
+                        }
+                        try {
+                            socket = open(host, port, () -> connected.get() > 0 || files.isDrained());
+                        } catch (ReceiverBusyException e) {
+                            if (connected.get() == 0 && !files.isDrained()) {
+                                throw e;
+                            }
+                            logger.info("Receiver is busy, leaving the files to the other {} connections.", connected.get());
+                            break;
+                        }
+                        connected.incrementAndGet();
+                    }
+                    if (manifest != null) {
+                        var inFlight = pipeline;
+                        if (manifest.exchange(Channels.newOutputStream(socket), Channels.newInputStream(socket), () -> {
+                            if (inFlight != null) {
+                                inFlight.finish();
+                            }
+                        })) {
+                            pipeline = null;
+                            continue;
+                        }
+                    }
+                    File file = files.take();
                     if (file == null) {
                         break;
                     }
+                    load.add(file.length());
 
-                    if (!file.isDirectory()) {
-                        if (socket == null) {
-                            socket = SocketChannel.open(new InetSocketAddress(host, port));
-                        }
-                        transfer(file, socket);
-                    } else {
-                        File[] children = file.listFiles();
-                        if (children != null && children.length > 0) {
-                            for (var child : children) {
-                                files.addLast(child);
+                    if (file.length() < batchThreshold) {
+                        batch.add(file);
+                        if (batch.isFull(chunkSize)) {
+                            if (pipeline != null) {
+                                pipeline.finish();
+                                pipeline = null;
                             }
+                            transferBatch(batch, socket);
+                        }
+                    } else if (isPipelined()) {
+                        if (pipeline == null) {
+                            pipeline = new Pipeline(new PipelineConnection(socket), window, senderName,
+                                    compression != Compression.NONE);
                         }
+                        pipeline.offer(file, header(file));
+                    } else {
+                        transfer(file, socket);
                     }
                 } catch (InterruptedException e) {
                     Thread.currentThread().interrupt();
                     break;
                 }
             }
+            if (pipeline != null) {
+                pipeline.finish();
+            }
+            if (!batch.isEmpty()) {
+                transferBatch(batch, socket);
+            }
         } catch (IOException e) {
             logger.warn("Error sending file", e);
             throw new RuntimeException(e);
         } finally {
+            load.finish();
             if (socket != null) {
+                connected.decrementAndGet();
                 try {
                     socket.close();
                 } catch (IOException ignore) {}
@@ -122,44 +369,414 @@ public class ChannelSender implements Sender {
         }
     }
 
+    private boolean isPipelined() {
+        return window > 1 && !resume && !(validate && checksumMode == ChecksumMode.CHUNKS);
+    }
+
+    private void transferBatch(FileBatch batch, SocketChannel socket) throws IOException {
+        try {
+            var table = batch.table(checksumAlgorithm);
+            var header = FileBatch.header(senderName, checksumAlgorithm, table);
+            logger.debug("Sending batch of {} files: {}", batch.size(), header);
+            socket.write(ByteBuffer.wrap(header.encode()));
+            var acceptance = Acceptance.decode(readFully(socket, ByteBuffer.allocate(Acceptance.LENGTH)));
+            if (!acceptance.accepted()) {
+                logger.warn("Cannot proceed with upload: {}", acceptance.status());
+                skipped(batch.length());
+                return;
+            }
+            socket.write(ByteBuffer.wrap(table));
+
+            var length = readFully(socket, ByteBuffer.allocate(Integer.BYTES)).getInt();
+            var accepted = BitSet.valueOf(readFully(socket, ByteBuffer.allocate(length)));
+            var contents = accepted.stream().mapToObj(i -> ByteBuffer.wrap(batch.content(i))).toArray(ByteBuffer[]::new);
+            long total = Arrays.stream(contents).mapToLong(ByteBuffer::remaining).sum();
+            skipped(batch.length() - total);
+            long sent = 0;
+            int first = 0;
+            while (sent < total) {
+                long count = RateLimiter.SHARED.limit(total - sent);
+                RateLimiter.SHARED.acquire(count);
+                first = write(socket, contents, first, count);
+                sent(count);
+                sent += count;
+            }
+            logger.debug("Batch complete: {} of {} files accepted.", accepted.cardinality(), batch.size());
+            transferred(accepted.cardinality());
+            bytesTransferred.add(total);
+        } finally {
+            batch.clear();
+        }
+    }
+
+    /**
+     * Writes the next count bytes of buffers, starting at first, and returns the first buffer
+     * with bytes left. The buffer count ends in is cut to it while writing.
+     */
+    private static int write(SocketChannel socket, ByteBuffer[] buffers, int first, long count) throws IOException {
+        int last = first;
+        long gathered = 0;
+        while (gathered + buffers[last].remaining() < count) {
+            gathered += buffers[last++].remaining();
+        }
+        var cut = buffers[last];
+        int limit = cut.limit();
+        cut.limit(cut.position() + (int) (count - gathered));
+        try {
+            long written = 0;
+            while (written < count) {
+                written += socket.write(buffers, first, last - first + 1);
+            }
+        } finally {
+            cut.limit(limit);
+        }
+        while (first < buffers.length && !buffers[first].hasRemaining()) {
+            ++first;
+        }
+        return first;
+    }
+
     private void sendSingle(File source, String host, int port) {
-        try (SocketChannel socket = SocketChannel.open(new InetSocketAddress(host, port))) {
+        long stripeSize = StripedFile.stripeSize(source.length(), threadCount, minimumStripeSize, chunkSize);
+        if (stripeSize > 0) {
+            sendStriped(source, host, port, stripeSize);
+            return;
+        }
+        try (SocketChannel socket = open(host, port, () -> false)) {
             transfer(source, socket);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    private void sendStriped(File source, String host, int port, long stripeSize) {
+        var flags = validate ? Header.STRIPED | Header.TRAILING_CHECKSUM : Header.STRIPED;
+        var header = new Header(senderName, source.getAbsolutePath(), source.length(),
+                checksumAlgorithm, StripedFile.newSendId(), flags, (int) stripeSize, source.lastModified());
+        logger.debug("Sending {} in {} stripes: {}", source, header.blockCount(), header);
+        var nextStripe = new AtomicInteger();
+        var accepted = new AtomicBoolean();
+        var executor = newExecutor("tx", threadCount, virtualThreads);
+        try {
+            var uploads = new ArrayList<Future<?>>();
+            var connected = new AtomicInteger();
+            for (int i = 0; i < Math.min(threadCount, header.blockCount()); ++i) {
+                uploads.add(executor.submit(() -> sendStripes(source, host, port, header, nextStripe, accepted, connected)));
+            }
+            for (var upload : uploads) {
+                upload.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+
+        if (accepted.get()) {
+            logger.debug("Upload complete: {}", header.filePath());
+            transferred(1);
+        } else {
+            logger.warn("Cannot proceed with upload: {}", header.filePath());
+        }
+    }
+
+    private Void sendStripes(File source, String host, int port, Header header, AtomicInteger nextStripe,
+                             AtomicBoolean accepted, AtomicInteger connected) throws IOException {
+        SocketChannel opened;
+        try {
+            opened = open(host, port, () -> connected.get() > 0);
+        } catch (ReceiverBusyException e) {
+            if (connected.get() == 0) {
+                throw e;
+            }
+            logger.info("Receiver is busy, leaving the stripes to the other {} connections.", connected.get());
+            return null;
+        }
+        connected.incrementAndGet();
+        try (var socket = opened;
+             var channel = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+            int stripe;
+            while ((stripe = nextStripe.getAndIncrement()) < header.blockCount()) {
+                // A rejected stripe is still offered so the receiver can count every stripe of the file.
+                socket.write(ByteBuffer.wrap(header.encode()));
+                var acceptance = Acceptance.decode(readFully(socket, ByteBuffer.allocate(Acceptance.LENGTH)));
+                if (!acceptance.accepted()) {
+                    skipped(Math.min(header.blockSize(), header.fileLength() - (long) stripe * header.blockSize()));
+                    continue;
+                }
+                accepted.set(true);
+                socket.write(ByteBuffer.allocate(Integer.BYTES).putInt(stripe).flip());
+                var digester = header.hasTrailingChecksum() ? Wormhole.hasher(acceptance.algorithm()) : null;
+                sendChunk(channel, socket, header, stripe, digester, false);
+                bytesTransferred.add(Math.min(header.blockSize(), header.fileLength() - (long) stripe * header.blockSize()));
+            }
+        } finally {
+            connected.decrementAndGet();
+        }
+        return null;
+    }
+
+    private Header header(File source) {
+        var streaming = validate && checksumMode == ChecksumMode.TRAILER;
+        var chunked = validate && checksumMode == ChecksumMode.CHUNKS;
+        var checksum = validate && checksumMode == ChecksumMode.HEADER ? Wormhole.hash(source, checksumAlgorithm) : null;
+        var flags = streaming ? Header.TRAILING_CHECKSUM : chunked ? Header.CHUNK_CHECKSUMS : 0;
+        if (resume) {
+            flags |= Header.RESUME;
+        }
+        if (!chunked && compression.compresses(source)) {
+            flags |= Header.COMPRESSED;
+        }
+        return new Header(senderName, source.getAbsolutePath(), source.length(),
+                checksumAlgorithm, checksum, flags, chunkSize, source.lastModified());
+    }
+
     private void transfer(File source, SocketChannel socket) throws IOException {
+        var event = new TransferEvents.FileSent();
+        event.begin();
         try (FileInputStream fileInputStream = new FileInputStream(source)) {
-
-            var checksum = validate ? Wormhole.hash(source) : null;
-            var header = new Header(senderName, source.getAbsolutePath(), source.length(), checksum);
+            var header = header(source);
             logger.debug("Sending upload request: {}", header);
             socket.write(ByteBuffer.wrap(header.encode()));
 
-            var proceed = ByteBuffer.allocate(10);
-            socket.read(proceed);
+            var proceed = ByteBuffer.allocate(Acceptance.LENGTH);
+            while (proceed.hasRemaining()) {
+                if (socket.read(proceed) < 0) {
+                    logger.warn("Receiver closed connection before responding.");
+                    return;
+                }
+            }
             proceed.flip();
 
-            byte accepted = proceed.get();
-            if (accepted != 1) {
-                logger.warn("Cannot proceed with upload: {}", accepted);
+            var acceptance = Acceptance.decode(proceed);
+            if (!acceptance.accepted()) {
+                logger.warn("Cannot proceed with upload: {}", acceptance.status());
+                skipped(header.fileLength());
                 return;
             }
 
             FileChannel channel = fileInputStream.getChannel();
-            long readFrom = 0;
-            while (true) {
-                long transferred = channel.transferTo(readFrom, chunkSize, socket);
+            long startAt = resumeFrom(channel, socket, header, acceptance);
+            skipped(startAt);
+            if (header.hasChunkChecksums()) {
+                sendChunks(channel, socket, header, acceptance.algorithm(), (int) (startAt / header.blockSize()));
+                logger.debug("Upload complete: {}", header.filePath());
+                transferred(1);
+                bytesTransferred.add(source.length() - startAt);
+                return;
+            }
+            sendContent(channel, socket, header, acceptance, startAt);
+        } finally {
+            TransferEvents.sent(event, source);
+        }
+    }
+
+    private void sendContent(FileChannel channel, SocketChannel socket, Header header, Acceptance acceptance,
+                             long startAt) throws IOException {
+        var hasher = header.hasTrailingChecksum() ? Wormhole.hasher(acceptance.algorithm()) : null;
+        if (hasher != null) {
+            // The trailer covers the whole file, including the part the receiver kept.
+            hashRegion(channel, hasher, 0, startAt);
+        }
+        if (header.isCompressed()) {
+            long sent = compression.send(channel, startAt, header.fileLength(), hasher, Channels.newOutputStream(socket),
+                    progressBytes::add);
+            wrote(sent);
+            logger.debug("Compressed {} bytes of {} to {}", header.fileLength() - startAt, header.filePath(), sent);
+        } else {
+            long readFrom = startAt;
+            while (readFrom < header.fileLength()) {
+                long count = RateLimiter.SHARED.limit(Math.min(tuner.chunkSize(), header.fileLength() - readFrom));
+                RateLimiter.SHARED.acquire(count);
+                long transferred = transferChunk(channel, readFrom, count, socket, header.filePath());
                 if (transferred <= 0) {
-                    break;
+                    throw new EOFException("File was truncated while sending: " + header.filePath());
+                }
+                RateLimiter.SHARED.refund(count - transferred);
+                sent(transferred);
+                if (hasher != null) {
+                    // The region was just handed to the socket, so its pages are still in the page cache.
+                    hashRegion(channel, hasher, readFrom, transferred);
                 }
                 readFrom += transferred;
             }
-            logger.debug("Upload complete: {}", header.filePath());
-            filesTransferred.increment();
-            bytesTransferred.add(source.length());
         }
+        if (hasher != null) {
+            socket.write(ByteBuffer.wrap(Header.encodeTrailer(hasher.digest())));
+        }
+        logger.debug("Upload complete: {}", header.filePath());
+        transferred(1);
+        bytesTransferred.add(header.fileLength() - startAt);
+    }
+
+    /**
+     * The pipelined requests of one worker, sent over the same connection as its other requests.
+     */
+    private class PipelineConnection implements Pipeline.Connection {
+        private final SocketChannel socket;
+
+        PipelineConnection(SocketChannel socket) {
+            this.socket = socket;
+        }
+
+        @Override
+        public void send(ByteBuffer message) throws IOException {
+            while (message.hasRemaining()) {
+                socket.write(message);
+            }
+        }
+
+        @Override
+        public boolean receive(ByteBuffer response) throws IOException {
+            if (socket.read(response) < 0) {
+                return false;
+            }
+            readFully(socket, response);
+            return true;
+        }
+
+        @Override
+        public void sendData(int requestId, File file, Header header, Acceptance acceptance) throws IOException {
+            send(ByteBuffer.allocate(Pipeline.MESSAGE_LENGTH).put(Pipeline.DATA).putInt(requestId).flip());
+            try (var channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                sendContent(channel, socket, header, acceptance, 0);
+            }
+        }
+
+        @Override
+        public void rejected(Header header) {
+            skipped(header.fileLength());
+        }
+    }
+
+    /**
+     * Agrees with the receiver where the upload starts. The receiver reports how much of the
+     * file it already has along with a checksum of those bytes; the sender keeps that part
+     * only if the checksum matches its own copy.
+     */
+    private long resumeFrom(FileChannel channel, SocketChannel socket, Header header, Acceptance acceptance) throws IOException {
+        if (acceptance.offset() == 0) {
+            return 0;
+        }
+
+        var prefixLength = readFully(socket, ByteBuffer.allocate(Short.BYTES)).getShort();
+        var prefix = new byte[prefixLength];
+        readFully(socket, ByteBuffer.allocate(prefixLength)).get(prefix);
+
+        long startAt = acceptance.offset();
+        if (!Arrays.equals(prefix, Wormhole.hash(channel, 0, startAt, acceptance.algorithm()))) {
+            logger.warn("Receiver has a different version of {}, sending all of it.", header.filePath());
+            startAt = 0;
+        }
+        socket.write(ByteBuffer.allocate(Long.BYTES).putLong(startAt).flip());
+        logger.debug("Resuming {} at {}", header.filePath(), startAt);
+        return startAt;
+    }
+
+    private void hashRegion(FileChannel channel, Digester digester, long position, long length) throws IOException {
+        Wormhole.read(channel, position, length, digester::update);
+    }
+
+    private void sendChunks(FileChannel channel, SocketChannel socket, Header header, ChecksumAlgorithm algorithm,
+                            int firstChunk) throws IOException {
+        var digester = Wormhole.hasher(algorithm);
+        for (int chunk = firstChunk; chunk < header.blockCount(); ++chunk) {
+            sendChunk(channel, socket, header, chunk, digester, false);
+        }
+
+        int[] repairs;
+        while ((repairs = readRepairs(socket)).length > 0) {
+            logger.warn("Receiver requested {} chunks of {} again.", repairs.length, header.filePath());
+            for (var chunk : repairs) {
+                sendChunk(channel, socket, header, chunk, digester, true);
+            }
+        }
+    }
+
+    private void sendChunk(FileChannel channel, SocketChannel socket, Header header, int chunk, Digester digester,
+                           boolean again) throws IOException {
+        long position = (long) chunk * header.blockSize();
+        long length = Math.min(header.blockSize(), header.fileLength() - position);
+        long sent = 0;
+        while (sent < length) {
+            long count = RateLimiter.SHARED.limit(Math.min(tuner.chunkSize(), length - sent));
+            RateLimiter.SHARED.acquire(count);
+            long transferred = transferChunk(channel, position + sent, count, socket, header.filePath());
+            if (transferred <= 0) {
+                throw new EOFException("File was truncated while sending: " + header.filePath());
+            }
+            RateLimiter.SHARED.refund(count - transferred);
+            if (again) {
+                wrote(transferred);
+            } else {
+                sent(transferred);
+            }
+            if (digester != null) {
+                hashRegion(channel, digester, position + sent, transferred);
+            }
+            sent += transferred;
+        }
+        if (digester != null) {
+            socket.write(ByteBuffer.wrap(Header.encodeTrailer(digester.digest())));
+        }
+    }
+
+    /**
+     * Hands up to count bytes of the file at position to the socket without copying them. The
+     * transfer reads the disk and waits for the socket in one call, so while a recording takes
+     * ChunkRead events the region is loaded into the page cache first: the ChunkRead is then
+     * the disk and the SocketStall only the socket.
+     */
+    private static long transferChunk(FileChannel channel, long position, long count, SocketChannel socket,
+                                      String path) throws IOException {
+        var chunkRead = new TransferEvents.ChunkRead();
+        if (chunkRead.isEnabled()) {
+            chunkRead.begin();
+            long bytes = Math.min(count, channel.size() - position);
+            if (bytes > 0) {
+                var region = channel.map(FileChannel.MapMode.READ_ONLY, position, bytes);
+                region.load();
+                Wormhole.unmap(region);
+            }
+            if (chunkRead.shouldCommit()) {
+                chunkRead.path = path;
+                chunkRead.offset = position;
+                chunkRead.bytes = bytes;
+                chunkRead.commit();
+            }
+        }
+        var stall = new TransferEvents.SocketStall();
+        stall.begin();
+        long transferred = channel.transferTo(position, count, socket);
+        if (stall.shouldCommit()) {
+            stall.sending = true;
+            stall.bytes = transferred;
+            stall.commit();
+        }
+        return transferred;
+    }
+
+    private static int[] readRepairs(SocketChannel socket) throws IOException {
+        var count = readFully(socket, ByteBuffer.allocate(Integer.BYTES)).getInt();
+        if (count == ChunkVerifier.GAVE_UP) {
+            throw new IOException("Receiver gave up on chunks that stayed corrupt.");
+        }
+        var chunks = readFully(socket, ByteBuffer.allocate(count * Integer.BYTES));
+        var repairs = new int[count];
+        for (int i = 0; i < count; ++i) {
+            repairs[i] = chunks.getInt();
+        }
+        return repairs;
+    }
+
+    private static ByteBuffer readFully(SocketChannel socket, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (socket.read(buffer) < 0) {
+                throw new EOFException("Connection closed by receiver.");
+            }
+        }
+        return buffer.flip();
     }
 }
@@ -0,0 +1,109 @@
+package com.amazon;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.function.Supplier;
+import java.util.zip.CRC32C;
+
+public enum ChecksumAlgorithm {
+    MD5(1, () -> new MessageDigester("MD5")),
+    SHA256(2, () -> new MessageDigester("SHA-256")),
+    CRC32C(3, Crc32cDigester::new),
+    XXHASH64(4, XxHash64::new);
+
+    private final byte id;
+    private final Supplier<Digester> factory;
+
+    ChecksumAlgorithm(int id, Supplier<Digester> factory) {
+        this.id = (byte) id;
+        this.factory = factory;
+    }
+
+    byte id() {
+        return id;
+    }
+
+    Digester newDigester() {
+        return factory.get();
+    }
+
+    static ChecksumAlgorithm fromId(byte id) {
+        for (var algorithm : values()) {
+            if (algorithm.id == id) {
+                return algorithm;
+            }
+        }
+        throw new IllegalArgumentException("Unknown checksum algorithm: " + id);
+    }
+
+    /**
+     * Picks the algorithm the receiver will validate with. A checksum that is already in
+     * the header fixes the algorithm, otherwise the receiver's preference wins over the
+     * sender's proposal.
+     */
+    static ChecksumAlgorithm negotiate(Header header, ChecksumAlgorithm preferred) {
+        if (preferred == null || !header.hasTrailingChecksum()) {
+            return header.algorithm();
+        }
+        return preferred;
+    }
+
+    static class MessageDigester implements Digester {
+        private final MessageDigest md;
+
+        MessageDigester(String algorithm) {
+            try {
+                md = MessageDigest.getInstance(algorithm);
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public void update(byte[] data, int offset, int length) {
+            md.update(data, offset, length);
+        }
+
+        @Override
+        public void update(ByteBuffer buffer) {
+            md.update(buffer);
+        }
+
+        @Override
+        public byte[] digest() {
+            return md.digest();
+        }
+
+        @Override
+        public void reset() {
+            md.reset();
+        }
+    }
+
+    static class Crc32cDigester implements Digester {
+        private final CRC32C crc = new CRC32C();
+
+        @Override
+        public void update(byte[] data, int offset, int length) {
+            crc.update(data, offset, length);
+        }
+
+        @Override
+        public void update(ByteBuffer buffer) {
+            crc.update(buffer);
+        }
+
+        @Override
+        public byte[] digest() {
+            var value = (int) crc.getValue();
+            crc.reset();
+            return ByteBuffer.allocate(Integer.BYTES).putInt(value).array();
+        }
+
+        @Override
+        public void reset() {
+            crc.reset();
+        }
+    }
+}
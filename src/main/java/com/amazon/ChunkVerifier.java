@@ -0,0 +1,93 @@
+package com.amazon;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Verifies the chunks of one file as they land. Each chunk is read back from the page cache
+ * and hashed on the verification pool, so the receiving thread can keep reading the socket.
+ */
+class ChunkVerifier {
+    private static final Logger logger = LoggerFactory.getLogger(ChunkVerifier.class);
+
+    // Number of times the receiver asks for corrupt chunks again before giving up on the file.
+    static final int MAX_REPAIRS = 3;
+    // Sent in place of the number of chunks to send again when the receiver gives up on the file.
+    static final int GAVE_UP = -1;
+
+    private final ExecutorService pool;
+    private final Path file;
+    private final ChecksumAlgorithm algorithm;
+    private final List<Future<Integer>> pending = new ArrayList<>();
+
+    ChunkVerifier(ExecutorService pool, Path file, ChecksumAlgorithm algorithm) {
+        this.pool = pool;
+        this.file = file;
+        this.algorithm = algorithm;
+    }
+
+    void submit(int chunk, long position, long length, byte[] expected) {
+        pending.add(pool.submit(() -> verify(chunk, position, length, expected)));
+    }
+
+    private int verify(int chunk, long position, long length, byte[] expected) throws IOException {
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            var digest = Wormhole.hash(channel, position, length, algorithm);
+            if (Arrays.equals(digest, expected)) {
+                return -1;
+            }
+            logger.warn("Checksum mismatch for chunk {} of {}: Expected: {}, Received: {}",
+                    chunk, file, Wormhole.toHex(expected), Wormhole.toHex(digest));
+            return chunk;
+        }
+    }
+
+    /**
+     * Waits for every submitted chunk and returns the indices of the ones that did not match.
+     */
+    int[] awaitFailures() throws IOException {
+        try {
+            var failures = new ArrayList<Integer>();
+            for (var future : pending) {
+                int chunk = future.get();
+                if (chunk >= 0) {
+                    failures.add(chunk);
+                }
+            }
+            Metrics.SHARED.checksumFailures.add(failures.size());
+            return failures.stream().mapToInt(Integer::intValue).sorted().toArray();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while verifying " + file, e);
+        } catch (ExecutionException e) {
+            throw new IOException("Could not verify " + file, e.getCause());
+        } finally {
+            pending.clear();
+        }
+    }
+
+    static byte[] encodeRepairs(int[] chunks) {
+        var buffer = ByteBuffer.allocate(Integer.BYTES + chunks.length * Integer.BYTES);
+        buffer.putInt(chunks.length);
+        for (var chunk : chunks) {
+            buffer.putInt(chunk);
+        }
+        return buffer.array();
+    }
+
+    static byte[] encodeGaveUp() {
+        return ByteBuffer.allocate(Integer.BYTES).putInt(GAVE_UP).array();
+    }
+}
@@ -0,0 +1,243 @@
+package com.amazon;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.function.LongConsumer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * How the data of a file with the COMPRESSED flag goes over the wire. It is cut into blocks of
+ * at most BLOCK_SIZE bytes, and each block is sent as the id of its codec, its length before
+ * and after compression as ints, and then the compressed bytes. A block that does not get
+ * smaller is sent as it is, with the id of NONE, so the receiver never has to buffer more than
+ * BLOCK_SIZE bytes of either. The checksum is of the file, not of what was sent.
+ * <p>
+ * LZ costs little more than a copy and suits fast links; DEFLATE squeezes text harder for slow
+ * ones. Either way the sender first compresses a sample from the start of each file and sends
+ * it uncompressed if that barely helps, which is what happens to media and archives.
+ */
+public enum Compression {
+    NONE(0),
+    LZ(1),
+    DEFLATE(2);
+
+    static final int BLOCK_SIZE = 256 * 1024;
+    static final int BLOCK_HEADER_LENGTH = Byte.BYTES + Integer.BYTES + Integer.BYTES;
+    static final int SAMPLE_SIZE = 64 * 1024;
+    // A sample that compresses to more than this share of itself is not worth the trouble.
+    static final double MAX_RATIO = 0.9;
+
+    private static final Logger logger = LoggerFactory.getLogger(Compression.class);
+    private static final ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+    private static final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    private final byte id;
+
+    Compression(int id) {
+        this.id = (byte) id;
+    }
+
+    byte id() {
+        return id;
+    }
+
+    static Compression fromId(byte id) throws ProtocolException {
+        for (var compression : values()) {
+            if (compression.id == id) {
+                return compression;
+            }
+        }
+        throw new ProtocolException("Unknown compression: " + id);
+    }
+
+    /**
+     * Room a block needs on the sending side, where a codec may make a block bigger before it
+     * is found not to help.
+     */
+    static int maxBlockLength() {
+        return BLOCK_HEADER_LENGTH + Math.max(Lz.maxCompressedLength(BLOCK_SIZE), BLOCK_SIZE + 1024);
+    }
+
+    /**
+     * Compresses length bytes of src into dst and returns the compressed length, or -1 if dst
+     * did not have room for it.
+     */
+    int compress(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset) {
+        switch (this) {
+            case LZ:
+                if (dst.length - dstOffset < Lz.maxCompressedLength(length)) {
+                    return -1;
+                }
+                return Lz.compress(src, srcOffset, length, dst, dstOffset);
+            case DEFLATE:
+                var deflater = deflaters.get();
+                deflater.reset();
+                deflater.setInput(src, srcOffset, length);
+                deflater.finish();
+                int compressed = 0;
+                while (!deflater.finished()) {
+                    int deflated = deflater.deflate(dst, dstOffset + compressed, dst.length - dstOffset - compressed);
+                    if (deflated == 0 && dstOffset + compressed == dst.length) {
+                        return -1;
+                    }
+                    compressed += deflated;
+                }
+                return compressed;
+            default:
+                if (dst.length - dstOffset < length) {
+                    return -1;
+                }
+                System.arraycopy(src, srcOffset, dst, dstOffset, length);
+                return length;
+        }
+    }
+
+    void decompress(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset, int rawLength)
+            throws DataFormatException {
+        switch (this) {
+            case LZ:
+                Lz.decompress(src, srcOffset, length, dst, dstOffset, rawLength);
+                break;
+            case DEFLATE:
+                var inflater = inflaters.get();
+                inflater.reset();
+                inflater.setInput(src, srcOffset, length);
+                int inflated = 0;
+                while (!inflater.finished()) {
+                    int n = inflater.inflate(dst, dstOffset + inflated, rawLength - inflated);
+                    if (n == 0 && (inflater.needsInput() || inflater.needsDictionary() || inflated == rawLength)) {
+                        break;
+                    }
+                    inflated += n;
+                }
+                if (!inflater.finished() || inflated != rawLength || inflater.getRemaining() > 0) {
+                    throw new DataFormatException("Block inflates to " + inflated + " bytes, expected " + rawLength + ".");
+                }
+                break;
+            default:
+                if (length != rawLength) {
+                    throw new DataFormatException("Stored block of " + length + " bytes, expected " + rawLength + ".");
+                }
+                System.arraycopy(src, srcOffset, dst, dstOffset, length);
+        }
+    }
+
+    /**
+     * Compresses a sample from the start of the file to see whether the rest would compress.
+     */
+    boolean compresses(File file) {
+        if (this == NONE) {
+            return false;
+        }
+        try (var in = new FileInputStream(file); var sample = BufferPool.SHARED.lease(SAMPLE_SIZE, false);
+             var scratch = BufferPool.SHARED.lease(maxBlockLength(), false)) {
+            int length = in.readNBytes(sample.array(), 0, SAMPLE_SIZE);
+            int compressed = compress(sample.array(), 0, length, scratch.array(), 0);
+            var compresses = compressed >= 0 && compressed < length * MAX_RATIO;
+            logger.debug("Sample of {} compresses from {} to {} bytes with {}.", file, length, compressed, this);
+            return compresses;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Sends the bytes of the file from position up to end as blocks, feeding them to the
+     * digester as they are read unless it is null, at the pace the shared RateLimiter allows.
+     * While capped, blocks are cut so that none goes over the burst on the wire.
+     * Each block's bytes of the file go to progress once it is written. Returns how many bytes
+     * went over the wire.
+     */
+    long send(FileChannel channel, long position, long end, Digester digester, OutputStream out,
+              LongConsumer progress) throws IOException {
+        long sent = 0;
+        try (var rawLease = BufferPool.SHARED.lease(BLOCK_SIZE, false);
+             var blockLease = BufferPool.SHARED.lease(maxBlockLength(), false)) {
+            byte[] raw = rawLease.array();
+            byte[] block = blockLease.array();
+            var buffer = rawLease.buffer();
+            while (position < end) {
+                int wire = RateLimiter.SHARED.limit((int) Math.min(BLOCK_SIZE, end - position) + BLOCK_HEADER_LENGTH);
+                buffer.clear().limit(wire - BLOCK_HEADER_LENGTH);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, position + buffer.position()) < 0) {
+                        throw new EOFException("File was truncated while sending.");
+                    }
+                }
+                int length = buffer.position();
+                if (digester != null) {
+                    digester.update(raw, 0, length);
+                }
+                var codec = this;
+                int compressed = compress(raw, 0, length, block, BLOCK_HEADER_LENGTH);
+                if (compressed < 0 || compressed >= length) {
+                    codec = NONE;
+                    compressed = NONE.compress(raw, 0, length, block, BLOCK_HEADER_LENGTH);
+                }
+                ByteBuffer.wrap(block).put(codec.id).putInt(length).putInt(compressed);
+                RateLimiter.SHARED.acquire(BLOCK_HEADER_LENGTH + compressed);
+                out.write(block, 0, BLOCK_HEADER_LENGTH + compressed);
+                sent += BLOCK_HEADER_LENGTH + compressed;
+                progress.accept(length);
+                position += length;
+            }
+        }
+        return sent;
+    }
+
+    /**
+     * Receives length bytes of a file sent by send, writing them to the file from position on
+     * and giving them to the validator unless it is null.
+     */
+    static void receive(InputStream in, FileChannel channel, long position, long length, Validator validator)
+            throws IOException {
+        long end = position + length;
+        try (var blockLease = BufferPool.SHARED.lease(BLOCK_SIZE, false);
+             var rawLease = BufferPool.SHARED.lease(BLOCK_SIZE, false)) {
+            byte[] block = blockLease.array();
+            byte[] raw = rawLease.array();
+            while (position < end) {
+                readFully(in, block, BLOCK_HEADER_LENGTH);
+                var header = ByteBuffer.wrap(block, 0, BLOCK_HEADER_LENGTH);
+                var codec = fromId(header.get());
+                int rawLength = header.getInt();
+                int compressed = header.getInt();
+                if (rawLength <= 0 || rawLength > Math.min(BLOCK_SIZE, end - position)
+                        || compressed < 0 || compressed > rawLength) {
+                    throw new ProtocolException("Block of " + compressed + " bytes for " + rawLength + " is out of bounds.");
+                }
+                readFully(in, block, compressed);
+                try {
+                    codec.decompress(block, 0, compressed, raw, 0, rawLength);
+                } catch (DataFormatException e) {
+                    throw new ProtocolException("Corrupt " + codec + " block: " + e.getMessage());
+                }
+                if (validator != null) {
+                    validator.update(raw, 0, rawLength);
+                }
+                var data = ByteBuffer.wrap(raw, 0, rawLength);
+                while (data.hasRemaining()) {
+                    position += channel.write(data, position);
+                }
+            }
+        }
+    }
+
+    private static void readFully(InputStream in, byte[] bytes, int length) throws IOException {
+        if (in.readNBytes(bytes, 0, length) != length) {
+            throw new EOFException("Connection closed by sender.");
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.amazon;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * What each connection of a directory transfer was given to send and when it ran out of work,
+ * to show how evenly the transfer was spread. Loads are the lengths of the files a connection
+ * took, whether or not the receiver wanted them.
+ * <p>
+ * Each load also counts the bytes its connection wrote so far, for progress reports. A worker
+ * binds its load to its thread, and only that thread adds to it.
+ */
+public class ConnectionLoads {
+    private static final ThreadLocal<Load> bound = new ThreadLocal<>();
+
+    private final List<Load> loads = new CopyOnWriteArrayList<>();
+
+    /**
+     * Forgets earlier transfers.
+     */
+    void reset() {
+        loads.clear();
+    }
+
+    Load open() {
+        var load = new Load();
+        loads.add(load);
+        return load;
+    }
+
+    /**
+     * Counts bytes the calling thread wrote to the load bound to it, if any.
+     */
+    static void sent(long bytes) {
+        var load = bound.get();
+        if (load != null) {
+            load.sent += bytes;
+        }
+    }
+
+    /**
+     * Bytes each connection wrote so far, in the order they were opened.
+     */
+    long[] sent() {
+        return loads.stream().mapToLong(load -> load.sent).toArray();
+    }
+
+    public int connections() {
+        return loads.size();
+    }
+
+    public long maxBytes() {
+        return loads.stream().mapToLong(load -> load.bytes).max().orElse(0);
+    }
+
+    public long minBytes() {
+        return loads.stream().mapToLong(load -> load.bytes).min().orElse(0);
+    }
+
+    /**
+     * The largest load over the mean load, 1 when every connection sent as much.
+     */
+    public double imbalance() {
+        double mean = loads.stream().mapToLong(load -> load.bytes).average().orElse(0);
+        return mean == 0 ? 1 : maxBytes() / mean;
+    }
+
+    /**
+     * Seconds between the first connection running out of work and the last.
+     */
+    public double idleTail() {
+        var finishes = loads.stream().mapToLong(load -> load.finished).filter(finished -> finished > 0).summaryStatistics();
+        return finishes.getCount() == 0 ? 0 : (finishes.getMax() - finishes.getMin()) / 1_000_000_000d;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d connections, %d to %d bytes each (imbalance %.2f), last finished %.3fs after first",
+                connections(), minBytes(), maxBytes(), imbalance(), idleTail());
+    }
+
+    /**
+     * One connection's share. Only its worker updates it.
+     */
+    static class Load {
+        private volatile long bytes;
+        private volatile long sent;
+        private volatile long finished;
+
+        void add(long length) {
+            bytes += length;
+        }
+
+        /**
+         * Makes the calling thread count what it sends to this load, until finish.
+         */
+        void bind() {
+            bound.set(this);
+        }
+
+        void finish() {
+            finished = System.nanoTime();
+            bound.remove();
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package com.amazon;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Incremental checksum over a stream of bytes. Implementations are not thread safe.
+ */
+public interface Digester {
+    void update(byte[] data, int offset, int length);
+
+    void update(ByteBuffer buffer);
+
+    /**
+     * Completes the checksum and resets the digester for reuse.
+     */
+    byte[] digest();
+
+    void reset();
+}
@@ -0,0 +1,305 @@
+package com.amazon;
+
+import com.amazon.Wormhole.NamingThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+import static com.amazon.Wormhole.DEFAULT_THREAD_COUNT;
+
+/**
+ * Finds the files to send on threads of its own and hands them to the sender workers through a
+ * bounded queue, so a tree of millions of files takes no more memory than the queue holds, and
+ * workers that run out of files wait for the scan instead of giving up while directories are
+ * still being read. take returns null once the scan is over and every file was taken, and throws
+ * as soon as the scan failed, so the send stops with it.
+ * <p>
+ * A tree is walked a directory per task on a fork join pool, so large directories are read in
+ * parallel and subdirectories are read depth first by the thread that found them. No more
+ * directories wait for a thread than files fit in the queue; beyond that the thread that finds
+ * a directory reads it right away.
+ * <p>
+ * Waiting files are handed out largest first. A worker that runs out of work takes the largest
+ * file known, so the big ones start early and the small ones fill in at the end, rather than a
+ * big file found late keeping one connection busy long after the others are done. That is
+ * longest processing time first scheduling, exact for trees that fit in the queue and over
+ * each queue full of files for larger ones.
+ */
+class DirectoryScanner implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(DirectoryScanner.class);
+
+    static final int DEFAULT_CAPACITY = 16 * 1024;
+    static final int DEFAULT_THREADS = Math.min(4, DEFAULT_THREAD_COUNT);
+
+    interface Source {
+        void produce(Consumer<File> files) throws IOException;
+    }
+
+    private record Entry(File file, long length) {}
+
+    private final int capacity;
+    private final PriorityQueue<Entry> waiting = new PriorityQueue<>(Comparator.comparingLong(Entry::length).reversed());
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final ExecutorService scanners;
+    private final AtomicLong pending = new AtomicLong(1);
+    private final AtomicInteger queuedDirectories = new AtomicInteger();
+    private final AtomicLong found = new AtomicLong();
+    private final AtomicLong foundBytes = new AtomicLong();
+    private boolean done;
+    private volatile boolean closed;
+    private volatile Exception failure;
+
+    private DirectoryScanner(int capacity, ExecutorService scanners) {
+        this.capacity = capacity;
+        this.scanners = scanners;
+    }
+
+    /**
+     * Starts walking the regular files under root, following links.
+     */
+    static DirectoryScanner walk(File root, int threads, int capacity) {
+        var scanner = new DirectoryScanner(capacity, new ForkJoinPool(threads));
+        scanner.scanners.execute(() -> scanner.walk(root.getAbsoluteFile().toPath()));
+        return scanner;
+    }
+
+    static DirectoryScanner walk(File root) {
+        return walk(root, DEFAULT_THREADS, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Starts taking files from a source, such as a list of files.
+     */
+    static DirectoryScanner of(Source source, int capacity) {
+        var scanner = new DirectoryScanner(capacity, Executors.newSingleThreadExecutor(new NamingThreadFactory("scan", true)));
+        scanner.scanners.execute(() -> {
+            try {
+                source.produce(file -> scanner.put(file, file.length()));
+            } catch (Exception e) {
+                scanner.fail(e);
+            } finally {
+                scanner.end();
+            }
+        });
+        return scanner;
+    }
+
+    /**
+     * Opens a queue with no scan of its own, fed with add until finish, such as the files a
+     * Manifest.Stream found the receiver wants.
+     */
+    static DirectoryScanner fed(int capacity) {
+        return new DirectoryScanner(capacity, null);
+    }
+
+    void add(File file) {
+        put(file, file.length());
+    }
+
+    /**
+     * Ends a fed queue: take returns null once the files added so far were taken.
+     */
+    void finish() {
+        end();
+    }
+
+    private void walk(Path directory) {
+        try (var entries = Files.newDirectoryStream(directory)) {
+            for (var entry : entries) {
+                BasicFileAttributes attributes;
+                try {
+                    attributes = Files.readAttributes(entry, BasicFileAttributes.class);
+                } catch (IOException e) {
+                    logger.warn("Skipping {}: {}", entry, e.getMessage());
+                    continue;
+                }
+                if (attributes.isDirectory()) {
+                    pending.incrementAndGet();
+                    if (queuedDirectories.incrementAndGet() <= capacity) {
+                        scanners.execute(() -> {
+                            queuedDirectories.decrementAndGet();
+                            walk(entry);
+                        });
+                    } else {
+                        queuedDirectories.decrementAndGet();
+                        walk(entry);
+                    }
+                } else if (attributes.isRegularFile()) {
+                    put(entry.toFile(), attributes.size());
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("Skipping {}: {}", directory, e.getMessage());
+        } catch (Exception e) {
+            fail(e);
+        } finally {
+            if (pending.decrementAndGet() == 0) {
+                end();
+            }
+        }
+    }
+
+    private void put(File file, long length) {
+        lock.lock();
+        try {
+            while (waiting.size() >= capacity) {
+                if (closed) {
+                    throw new CancellationException("Scan was closed.");
+                }
+                notFull.await(100, TimeUnit.MILLISECONDS);
+            }
+            waiting.add(new Entry(file, length));
+            found.incrementAndGet();
+            foundBytes.addAndGet(length);
+            notEmpty.signal();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Scan was interrupted.");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void fail(Exception e) {
+        if (closed || failure != null) {
+            return;
+        }
+        failure = e;
+        lock.lock();
+        try {
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void rethrow() throws IOException {
+        if (failure != null) {
+            throw new IOException("Scan failed.", failure);
+        }
+    }
+
+    private void end() {
+        logger.debug("Scan found {} files.", found.get());
+        lock.lock();
+        try {
+            done = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the largest waiting file, waiting for the scan to find one, or null if the scan
+     * is over and every file was taken. Throws once the scan failed.
+     */
+    File take() throws IOException, InterruptedException {
+        lock.lock();
+        try {
+            rethrow();
+            while (waiting.isEmpty()) {
+                if (done) {
+                    return null;
+                }
+                notEmpty.await();
+                rethrow();
+            }
+            notFull.signal();
+            return waiting.poll().file();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the largest waiting file without waiting, or null if none is waiting right now.
+     */
+    File poll() {
+        lock.lock();
+        try {
+            var entry = waiting.poll();
+            if (entry == null) {
+                return null;
+            }
+            notFull.signal();
+            return entry.file();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean hasWaiting() {
+        lock.lock();
+        try {
+            return !waiting.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long found() {
+        return found.get();
+    }
+
+    long foundBytes() {
+        return foundBytes.get();
+    }
+
+    /**
+     * Whether every file to send was found, so found and foundBytes are the totals.
+     */
+    boolean isScanned() {
+        lock.lock();
+        try {
+            return done;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Whether the scan is over and every file was taken, so take would return null.
+     */
+    boolean isDrained() {
+        lock.lock();
+        try {
+            return done && waiting.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops the scan if it is still running, and throws if it failed.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        if (scanners != null) {
+            scanners.shutdownNow();
+        }
+        if (failure != null) {
+            throw new RuntimeException(failure);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.amazon;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Small files that are sent together behind a single Header with the BATCH flag. The header is
+ * followed by a table of Manifest entries, the receiver answers with the files it accepts, and
+ * then the contents of those files follow back to back. That is two round trips for the whole
+ * batch instead of one per file.
+ */
+class FileBatch {
+    private static final Logger logger = LoggerFactory.getLogger(FileBatch.class);
+
+    static final int MAX_FILES = Manifest.BATCH_SIZE;
+
+    private final List<File> files = new ArrayList<>();
+    private final List<byte[]> contents = new ArrayList<>();
+    private long length;
+
+    /**
+     * Reads the file into the batch, so the table and the data describe the same bytes.
+     */
+    void add(File file) throws IOException {
+        var content = Files.readAllBytes(file.toPath());
+        files.add(file);
+        contents.add(content);
+        length += content.length;
+    }
+
+    boolean isFull(long maxLength) {
+        return files.size() >= MAX_FILES || length >= maxLength;
+    }
+
+    boolean isEmpty() {
+        return files.isEmpty();
+    }
+
+    int size() {
+        return files.size();
+    }
+
+    /**
+     * Bytes of the files in the batch.
+     */
+    long length() {
+        return length;
+    }
+
+    byte[] content(int index) {
+        return contents.get(index);
+    }
+
+    void clear() {
+        files.clear();
+        contents.clear();
+        length = 0;
+    }
+
+    /**
+     * Encodes the table of files with a checksum of each one, so a receiver that validates can
+     * check every file whatever the sender's own settings.
+     */
+    byte[] table(ChecksumAlgorithm algorithm) {
+        var entries = new ArrayList<Manifest.Entry>(files.size());
+        for (int i = 0; i < files.size(); ++i) {
+            var file = files.get(i);
+            var content = contents.get(i);
+            var digester = Wormhole.hasher(algorithm);
+            digester.update(content, 0, content.length);
+            var checksum = digester.digest();
+            entries.add(new Manifest.Entry(file.getAbsolutePath(), content.length, file.lastModified(), checksum));
+        }
+        return Manifest.encode(entries);
+    }
+
+    static Header header(String senderName, ChecksumAlgorithm algorithm, byte[] table) {
+        return new Header(senderName, "", table.length, algorithm, null, Header.BATCH, 0, 0);
+    }
+
+    /**
+     * The receiving end of a batch: the files of the table the receiver took, whose contents
+     * follow the answer back to back, length bytes in all.
+     */
+    record Received(List<Manifest.Entry> files, int listed, long length, ChecksumAlgorithm algorithm,
+                    boolean validate) {
+        /**
+         * Where entry goes under targetDirectory, with its directories created.
+         */
+        Path filePath(Manifest.Entry entry, Path targetDirectory) throws IOException {
+            var filePath = targetDirectory.resolve(Wormhole.removeRoot(entry.filePath()));
+            Files.createDirectories(filePath.getParent());
+            return filePath;
+        }
+
+        Validator validator() {
+            return validate ? new Validator(algorithm) : null;
+        }
+
+        /**
+         * Checks the file written for entry and gives it the sender's modification time.
+         */
+        void finish(Manifest.Entry entry, Path filePath, Validator validator, Metrics.FileTimer timer) throws IOException {
+            timer.lastByte();
+            if (validator != null) {
+                validator.expect(entry.checksum());
+                validator.validate();
+            }
+            timer.completed(validator != null);
+            Files.setLastModifiedTime(filePath, FileTime.fromMillis(entry.lastModified()));
+        }
+    }
+
+    /**
+     * Reads the table behind header, asks acceptor about each file and answers with the ones it
+     * takes. When validating, a file without a checksum in the table is refused rather than
+     * written unchecked.
+     */
+    static Received receive(Header header, InputStream upload, OutputStream response, Receiver.Acceptor acceptor,
+                            boolean validate) throws IOException {
+        response.write(new Acceptance(Acceptance.ACCEPTED, header.algorithm(), 0).encode());
+        var entries = Manifest.read(header, upload);
+
+        var accepted = new BitSet(entries.size());
+        var files = new ArrayList<Manifest.Entry>();
+        long length = 0;
+        for (int i = 0; i < entries.size(); ++i) {
+            var entry = entries.get(i);
+            if (validate && entry.checksum() == null) {
+                logger.warn("Refusing {} from {}: no checksum to validate it against.", entry.filePath(), header.sender());
+            } else if (TransferEvents.accept(acceptor, header.sender(), entry.filePath(), entry.fileLength())) {
+                accepted.set(i);
+                files.add(entry);
+                length += entry.fileLength();
+            }
+        }
+        response.write(Manifest.encodeNeeded(accepted));
+        return new Received(files, entries.size(), length, header.algorithm(), validate);
+    }
+}
@@ -1,73 +1,179 @@
 package com.amazon;
 
+import java.net.ProtocolException;
 import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
 import java.nio.charset.StandardCharsets;
 
-public record Header(String sender, String filePath, long fileLength, byte[] checksum) {
+public record Header(String sender, String filePath, long fileLength, ChecksumAlgorithm algorithm, byte[] checksum,
+                     byte flags, int blockSize, long lastModified) {
 
+    // The checksum is computed while the file is sent and follows the data as a trailer.
+    static final byte TRAILING_CHECKSUM = 0x1;
+
+    // Every blockSize bytes of data are followed by the checksum of that block.
+    static final byte CHUNK_CHECKSUMS = 0x2;
+
+    // The sender can continue from the offset of a partial file the receiver already has.
+    static final byte RESUME = 0x4;
+
+    // Not a file: fileLength bytes of Manifest entries follow, the receiver answers with the ones it needs.
+    static final byte MANIFEST = 0x8;
+
+    // One stripe of blockSize bytes; the stripe index follows the acceptance. The checksum field
+    // carries an id the stripes of one send share. See StripedFile.
+    static final byte STRIPED = 0x10;
+
+    // Not a file: fileLength bytes of FileBatch table follow, then the files the receiver accepts.
+    static final byte BATCH = 0x20;
+
+    // Not a file: the rest of the connection carries Pipeline messages.
+    static final byte PIPELINED = 0x40;
+
+    // The data goes as Compression blocks. On a pipelined session, some of its files may.
+    static final byte COMPRESSED = (byte) 0x80;
+
+    public Header(String sender, String filePath, long fileLength, byte[] checksum) {
+        this(sender, filePath, fileLength, ChecksumAlgorithm.MD5, checksum, (byte) 0, 0, 0);
+    }
+
+    boolean hasTrailingChecksum() {
+        return (flags & TRAILING_CHECKSUM) != 0;
+    }
+
+    boolean hasChunkChecksums() {
+        return (flags & CHUNK_CHECKSUMS) != 0;
+    }
+
+    boolean isResumable() {
+        return (flags & RESUME) != 0;
+    }
+
+    boolean isManifest() {
+        return (flags & MANIFEST) != 0;
+    }
+
+    boolean isStriped() {
+        return (flags & STRIPED) != 0;
+    }
+
+    boolean isBatch() {
+        return (flags & BATCH) != 0;
+    }
+
+    boolean isPipelined() {
+        return (flags & PIPELINED) != 0;
+    }
+
+    boolean isCompressed() {
+        return (flags & COMPRESSED) != 0;
+    }
+
+    int blockCount() {
+        return (int) ((fileLength + blockSize - 1) / blockSize);
+    }
+
+    /**
+     * Returns the header as a frame, see {@link Protocol}.
+     */
     byte[] encode() {
-        var checksumLength = checksum == null || checksum.length == 0 ? 0 : checksum.length;
-        var totalLength = Short.BYTES + sender.length() + Short.BYTES + filePath.length() + Long.BYTES + Short.BYTES + checksumLength;
-        var buffer = ByteBuffer.allocate(totalLength);
-        byte[] bytes = sender.getBytes(StandardCharsets.UTF_8);
-        buffer.putShort((short) bytes.length);
-        buffer.put(bytes);
-        bytes = filePath.getBytes(StandardCharsets.UTF_8);
-        buffer.putShort((short) bytes.length);
-        buffer.put(bytes);
+        var buffer = ByteBuffer.allocate(frameLength());
+        encodeTo(buffer);
+        return buffer.array();
+    }
+
+    int frameLength() {
+        return Protocol.FRAME_PREFIX_LENGTH + Short.BYTES + utf8Length(sender) + Short.BYTES + utf8Length(filePath)
+                + Long.BYTES + Byte.BYTES + Short.BYTES + checksumLength() + Byte.BYTES + Integer.BYTES + Long.BYTES;
+    }
+
+    /**
+     * Puts the header as a frame of frameLength bytes, encoding the strings straight into the
+     * buffer, so several headers can go out in one buffer.
+     */
+    void encodeTo(ByteBuffer buffer) {
+        int length = frameLength() - Protocol.FRAME_PREFIX_LENGTH;
+        if (length > Protocol.MAX_FRAME_LENGTH) {
+            throw new IllegalArgumentException("Header of " + length + " bytes is too long: " + filePath);
+        }
+        buffer.putInt(length);
+        putString(buffer, sender);
+        putString(buffer, filePath);
         buffer.putLong(fileLength);
-        if (checksumLength == 0) {
-            buffer.putShort((short) 0);
-        } else {
-            buffer.putShort((short) checksum.length);
+        buffer.put(algorithm.id());
+        buffer.putShort((short) checksumLength());
+        if (checksumLength() > 0) {
             buffer.put(checksum);
         }
-        return buffer.array();
+        buffer.put(flags);
+        buffer.putInt(blockSize);
+        buffer.putLong(lastModified);
     }
 
-    static Header decode(byte[] encoded) {
-        var buffer = ByteBuffer.wrap(encoded);
-
-        var senderLength = buffer.getShort();
-        var sender = new String(encoded, buffer.position(), senderLength, StandardCharsets.UTF_8);
-        buffer.position(buffer.position() + senderLength);
+    private int checksumLength() {
+        return checksum == null ? 0 : checksum.length;
+    }
 
-        var filePathLength = buffer.getShort();
-        var filePath = new String(encoded, buffer.position(), filePathLength, StandardCharsets.UTF_8);
-        buffer.position(buffer.position() + filePathLength);
+    private static final ThreadLocal<CharsetEncoder> encoders = ThreadLocal.withInitial(() -> StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE));
 
-        var fileLength = buffer.getLong();
+    private static void putString(ByteBuffer buffer, String value) {
+        int length = utf8Length(value);
+        if (length > 0xFFFF) {
+            throw new IllegalArgumentException("String of " + length + " bytes is too long for a header.");
+        }
+        buffer.putShort((short) length);
+        var encoder = encoders.get().reset();
+        encoder.encode(CharBuffer.wrap(value), buffer, true);
+        encoder.flush(buffer);
+    }
 
-        var checksumLength = buffer.getShort();
-        byte [] checksum = null;
-        if (checksumLength != 0) {
-            checksum = new byte[checksumLength];
-            buffer.get(checksum, 0, checksumLength);
+    /**
+     * The number of bytes value takes in UTF-8, counting an unpaired surrogate as the one byte
+     * it is replaced with. String.length() counts chars, which is less for anything not ASCII.
+     */
+    static int utf8Length(String value) {
+        int length = 0;
+        for (int i = 0; i < value.length(); ++i) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                length += 4;
+                ++i;
+            } else if (Character.isSurrogate(c)) {
+                length += 1;
+            } else {
+                length += 3;
+            }
         }
+        return length;
+    }
 
-        return new Header(sender, filePath, fileLength, checksum);
+    static byte[] encodeTrailer(byte[] checksum) {
+        var buffer = ByteBuffer.allocate(Short.BYTES + checksum.length);
+        buffer.putShort((short) checksum.length);
+        buffer.put(checksum);
+        return buffer.array();
     }
 
+    static Header decode(byte[] frame) {
+        return decode(ByteBuffer.wrap(frame));
+    }
+
+    /**
+     * Decodes the frame at the buffer's position and moves past it.
+     */
     static Header decode(ByteBuffer buffer) {
-        var senderLength = buffer.getShort();
-        var encoded = new byte[senderLength];
-        buffer.get(encoded, 0, senderLength);
-        var sender = new String(encoded, StandardCharsets.UTF_8);
-
-        var filePathLength = buffer.getShort();
-        encoded = new byte[filePathLength];
-        buffer.get(encoded, 0, filePathLength);
-        var filePath = new String(encoded, StandardCharsets.UTF_8);
-
-        var fileLength = buffer.getLong();
-
-        var checksumLength = buffer.getShort();
-        byte [] checksum = null;
-        if (checksumLength != 0) {
-            checksum = new byte[checksumLength];
-            buffer.get(checksum, 0, checksumLength);
+        try {
+            return new HeaderView().wrap(buffer).toHeader();
+        } catch (ProtocolException e) {
+            throw new IllegalArgumentException(e.getMessage(), e);
         }
-
-        return new Header(sender, filePath, fileLength, checksum);
     }
 }
@@ -0,0 +1,104 @@
+package com.amazon;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads a header frame in place, from the buffer it arrived in. Wrapping only finds where the
+ * fields are; a field is read from the buffer when asked for, and the strings are decoded
+ * straight from it. A connection keeps one view and wraps each header it reads, so reading a
+ * header takes no intermediate arrays or buffers. Receivers still turn each view into a Header
+ * with toHeader, since the acceptor and the target path need the sender and file path as
+ * strings. The view is only good until the buffer is read into again.
+ */
+final class HeaderView {
+    private ByteBuffer buffer;
+    private int sender;
+    private int filePath;
+    private int fileLength;
+    private int checksum;
+    private int flags;
+
+    /**
+     * Points the view at the frame at the buffer's position, which must be complete, and moves
+     * the position past it.
+     */
+    HeaderView wrap(ByteBuffer buffer) throws ProtocolException {
+        int start = buffer.position();
+        int length = Protocol.frameLength(buffer);
+        if (length < 0) {
+            throw new ProtocolException("Incomplete header frame.");
+        }
+        int end = start + length;
+        try {
+            sender = start + Protocol.FRAME_PREFIX_LENGTH;
+            filePath = sender + Short.BYTES + unsignedShort(buffer, sender);
+            fileLength = filePath + Short.BYTES + unsignedShort(buffer, filePath);
+            checksum = fileLength + Long.BYTES + Byte.BYTES;
+            flags = checksum + Short.BYTES + unsignedShort(buffer, checksum);
+        } catch (IndexOutOfBoundsException e) {
+            throw new ProtocolException("Malformed header.");
+        }
+        if (flags + Byte.BYTES + Integer.BYTES + Long.BYTES != end) {
+            throw new ProtocolException("Malformed header.");
+        }
+        this.buffer = buffer;
+        buffer.position(end);
+        return this;
+    }
+
+    String sender() {
+        return string(sender);
+    }
+
+    String filePath() {
+        return string(filePath);
+    }
+
+    long fileLength() {
+        return buffer.getLong(fileLength);
+    }
+
+    ChecksumAlgorithm algorithm() {
+        return ChecksumAlgorithm.fromId(buffer.get(fileLength + Long.BYTES));
+    }
+
+    byte[] checksum() {
+        int length = unsignedShort(buffer, checksum);
+        if (length == 0) {
+            return null;
+        }
+        var bytes = new byte[length];
+        buffer.get(checksum + Short.BYTES, bytes);
+        return bytes;
+    }
+
+    byte flags() {
+        return buffer.get(flags);
+    }
+
+    int blockSize() {
+        return buffer.getInt(flags + Byte.BYTES);
+    }
+
+    long lastModified() {
+        return buffer.getLong(flags + Byte.BYTES + Integer.BYTES);
+    }
+
+    Header toHeader() {
+        return new Header(sender(), filePath(), fileLength(), algorithm(), checksum(), flags(), blockSize(), lastModified());
+    }
+
+    private String string(int at) {
+        int length = unsignedShort(buffer, at);
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + at + Short.BYTES, length, StandardCharsets.UTF_8);
+        }
+        return StandardCharsets.UTF_8.decode(buffer.slice(at + Short.BYTES, length)).toString();
+    }
+
+    private static int unsignedShort(ByteBuffer buffer, int at) {
+        return Short.toUnsignedInt(buffer.getShort(at));
+    }
+}
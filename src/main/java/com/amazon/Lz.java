@@ -0,0 +1,149 @@
+package com.amazon;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+
+/**
+ * A byte oriented LZ77 codec in the style of LZ4, for data that should get smaller without
+ * costing much more than copying it. Input is a series of sequences: a token whose high four bits
+ * count literals and low four bits count match bytes past the minimum of four, more length bytes
+ * if either count is fifteen, the literals, and then the match as a two byte little endian offset
+ * back into the output and more length bytes. The last sequence has literals only.
+ */
+final class Lz {
+    private static final int MIN_MATCH = 4;
+    private static final int MAX_OFFSET = 0xFFFF;
+    private static final int HASH_BITS = 14;
+    // The further the search goes without finding a match, the more positions it skips.
+    private static final int SKIP_TRIGGER = 6;
+
+    private static final ThreadLocal<int[]> tables = ThreadLocal.withInitial(() -> new int[1 << HASH_BITS]);
+
+    private Lz() {}
+
+    static int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    /**
+     * Compresses length bytes of src into dst, which must have room for maxCompressedLength
+     * of them, and returns how many bytes it wrote.
+     */
+    static int compress(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset) {
+        var table = tables.get();
+        Arrays.fill(table, -1);
+        int end = srcOffset + length;
+        int matchLimit = end - MIN_MATCH;
+        int anchor = srcOffset;
+        int d = dstOffset;
+        int i = srcOffset;
+        while (i <= matchLimit) {
+            int sequence = readInt(src, i);
+            int hash = (sequence * 0x9E3779B1) >>> (32 - HASH_BITS);
+            int candidate = table[hash];
+            table[hash] = i;
+            if (candidate < 0 || i - candidate > MAX_OFFSET || readInt(src, candidate) != sequence) {
+                i += 1 + ((i - anchor) >>> SKIP_TRIGGER);
+                continue;
+            }
+            int matchLength = MIN_MATCH;
+            while (i + matchLength < end && src[candidate + matchLength] == src[i + matchLength]) {
+                ++matchLength;
+            }
+            d = writeLiterals(src, anchor, i - anchor, matchLength - MIN_MATCH, dst, d);
+            int offset = i - candidate;
+            dst[d++] = (byte) offset;
+            dst[d++] = (byte) (offset >>> 8);
+            if (matchLength - MIN_MATCH >= 15) {
+                d = writeLength(matchLength - MIN_MATCH - 15, dst, d);
+            }
+            i += matchLength;
+            anchor = i;
+        }
+        d = writeLiterals(src, anchor, end - anchor, 0, dst, d);
+        return d - dstOffset;
+    }
+
+    /**
+     * Decompresses length bytes of src into exactly rawLength bytes of dst.
+     */
+    static void decompress(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset, int rawLength)
+            throws DataFormatException {
+        int s = srcOffset;
+        int end = srcOffset + length;
+        int d = dstOffset;
+        int dstEnd = dstOffset + rawLength;
+        try {
+            while (s < end) {
+                int token = src[s++] & 0xFF;
+                int literals = token >>> 4;
+                if (literals == 15) {
+                    int more;
+                    do {
+                        more = src[s++] & 0xFF;
+                        literals += more;
+                    } while (more == 255);
+                }
+                if (literals > end - s || literals > dstEnd - d) {
+                    throw new DataFormatException("Literals run past the block.");
+                }
+                System.arraycopy(src, s, dst, d, literals);
+                s += literals;
+                d += literals;
+                if (s == end) {
+                    break;
+                }
+
+                int offset = (src[s++] & 0xFF) | (src[s++] & 0xFF) << 8;
+                int matchLength = token & 0xF;
+                if (matchLength == 15) {
+                    int more;
+                    do {
+                        more = src[s++] & 0xFF;
+                        matchLength += more;
+                    } while (more == 255);
+                }
+                matchLength += MIN_MATCH;
+                if (offset == 0 || offset > d - dstOffset || matchLength > dstEnd - d) {
+                    throw new DataFormatException("Match runs outside the block.");
+                }
+                if (offset >= matchLength) {
+                    System.arraycopy(dst, d - offset, dst, d, matchLength);
+                    d += matchLength;
+                } else {
+                    // The match overlaps what it copies, which repeats the last offset bytes.
+                    for (int from = d - offset, until = d + matchLength; d < until; ) {
+                        dst[d++] = dst[from++];
+                    }
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new DataFormatException("Block ends in the middle of a sequence.");
+        }
+        if (d != dstEnd) {
+            throw new DataFormatException("Block holds " + (d - dstOffset) + " bytes, expected " + rawLength + ".");
+        }
+    }
+
+    private static int writeLiterals(byte[] src, int from, int literals, int matchLength, byte[] dst, int d) {
+        dst[d++] = (byte) (Math.min(literals, 15) << 4 | Math.min(matchLength, 15));
+        if (literals >= 15) {
+            d = writeLength(literals - 15, dst, d);
+        }
+        System.arraycopy(src, from, dst, d, literals);
+        return d + literals;
+    }
+
+    private static int writeLength(int length, byte[] dst, int d) {
+        while (length >= 255) {
+            dst[d++] = (byte) 255;
+            length -= 255;
+        }
+        dst[d++] = (byte) length;
+        return d;
+    }
+
+    private static int readInt(byte[] src, int i) {
+        return (src[i] & 0xFF) | (src[i + 1] & 0xFF) << 8 | (src[i + 2] & 0xFF) << 16 | (src[i + 3] & 0xFF) << 24;
+    }
+}
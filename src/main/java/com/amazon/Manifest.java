@@ -0,0 +1,301 @@
+package com.amazon;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Incremental sync: the sender lists the files under a directory in batches and the
+ * receiver answers each batch with the files it does not already have. Batches travel
+ * behind a Header with the MANIFEST flag, so they share the connection handshake with
+ * regular files.
+ */
+class Manifest {
+    private static final Logger logger = LoggerFactory.getLogger(Manifest.class);
+
+    static final int BATCH_SIZE = 4096;
+    /**
+     * Longest path of an entry in bytes, PATH_MAX on Linux.
+     */
+    static final int MAX_PATH_LENGTH = 4096;
+    /**
+     * Longest checksum of an entry in bytes, room for a 512-bit digest.
+     */
+    static final int MAX_CHECKSUM_LENGTH = 64;
+    private static final int MAX_ENTRY_LENGTH = Short.BYTES + MAX_PATH_LENGTH + Long.BYTES + Long.BYTES
+            + Short.BYTES + MAX_CHECKSUM_LENGTH;
+    private static final int MIN_ENTRY_LENGTH = Short.BYTES + Long.BYTES + Long.BYTES + Short.BYTES;
+    /**
+     * Longest encoding of BATCH_SIZE entries. A receiver refuses a longer body before reading it.
+     */
+    static final int MAX_LENGTH = Integer.BYTES + BATCH_SIZE * MAX_ENTRY_LENGTH;
+
+    record Entry(String filePath, long fileLength, long lastModified, byte[] checksum) {}
+
+    /**
+     * The files of a directory send with sync. Workers exchange the manifest of the next batch
+     * of candidates on their own connections between files, one at a time, and the files the
+     * receiver wants go to wanted for any worker to send. Transfers start after the first batch
+     * and neither end holds more than a batch besides the two queues.
+     * <p>
+     * A batch is only exchanged while no wanted file is waiting, so adding its files to wanted
+     * never waits for room, and wanted is finished once the candidates run out.
+     */
+    static class Stream {
+        private final DirectoryScanner candidates;
+        private final DirectoryScanner wanted;
+        private final File root;
+        private final String senderName;
+        private final ChecksumAlgorithm algorithm;
+        private final ReentrantLock exchanging = new ReentrantLock();
+        private final AtomicLong listed = new AtomicLong();
+
+        /**
+         * When algorithm is null, files are compared by length and modification time only.
+         */
+        Stream(DirectoryScanner candidates, DirectoryScanner wanted, File root, String senderName,
+               ChecksumAlgorithm algorithm) {
+            this.candidates = candidates;
+            this.wanted = wanted;
+            this.root = root;
+            this.senderName = senderName;
+            this.algorithm = algorithm;
+        }
+
+        interface Settle {
+            /**
+             * Finishes what the worker has in flight on its connection before a manifest goes out.
+             */
+            void run() throws IOException;
+        }
+
+        /**
+         * Exchanges the manifest of the next batch of candidates on the connection, unless files
+         * are waiting to be sent or another worker is exchanging one. Returns whether it did.
+         */
+        boolean exchange(OutputStream out, InputStream in, Settle settle) throws IOException, InterruptedException {
+            if (wanted.hasWaiting() || !exchanging.tryLock()) {
+                return false;
+            }
+            try {
+                var files = new ArrayList<File>(BATCH_SIZE);
+                var file = candidates.take();
+                while (file != null) {
+                    files.add(file);
+                    file = files.size() < BATCH_SIZE ? candidates.poll() : null;
+                }
+                if (files.isEmpty()) {
+                    wanted.finish();
+                    logger.info("{} of {} files under {} need to be sent.", wanted.found(), listed.get(), root);
+                    return false;
+                }
+                settle.run();
+                var wants = exchange(files, new DataOutputStream(out), new DataInputStream(in));
+                listed.addAndGet(files.size());
+                for (int i = wants.nextSetBit(0); i >= 0; i = wants.nextSetBit(i + 1)) {
+                    wanted.add(files.get(i));
+                }
+                return true;
+            } finally {
+                exchanging.unlock();
+            }
+        }
+
+        private BitSet exchange(List<File> files, DataOutputStream out, DataInputStream in) throws IOException {
+            var entries = files.parallelStream().map(file -> toEntry(file, algorithm)).toList();
+            var body = encode(entries);
+            out.write(new Header(senderName, root.getAbsolutePath(), body.length,
+                    algorithm == null ? ChecksumAlgorithm.MD5 : algorithm, null, Header.MANIFEST, 0, 0).encode());
+            out.flush();
+            if (in.readNBytes(Acceptance.LENGTH).length != Acceptance.LENGTH) {
+                throw new EOFException("Connection closed by receiver.");
+            }
+            out.write(body);
+            out.flush();
+            return BitSet.valueOf(in.readNBytes(in.readInt()));
+        }
+    }
+
+    private static Entry toEntry(File file, ChecksumAlgorithm algorithm) {
+        var checksum = algorithm == null ? null : Wormhole.hash(file, algorithm);
+        return new Entry(file.getAbsolutePath(), file.length(), file.lastModified(), checksum);
+    }
+
+    /**
+     * Returns the indices of the entries that are missing or different under targetDirectory.
+     * Local files are hashed on the pool when the entries carry checksums.
+     */
+    static BitSet compare(List<Entry> entries, Path targetDirectory, ChecksumAlgorithm algorithm,
+                          ExecutorService pool) throws IOException {
+        var needed = new BitSet(entries.size());
+        var hashes = new ArrayList<Future<byte[]>>(entries.size());
+        for (int i = 0; i < entries.size(); ++i) {
+            var entry = entries.get(i);
+            var filePath = targetDirectory.resolve(Wormhole.removeRoot(entry.filePath()));
+            hashes.add(null);
+            BasicFileAttributes attributes;
+            try {
+                attributes = Files.readAttributes(filePath, BasicFileAttributes.class);
+            } catch (NoSuchFileException e) {
+                needed.set(i);
+                continue;
+            }
+
+            if (!attributes.isRegularFile() || attributes.size() != entry.fileLength()) {
+                needed.set(i);
+            } else if (entry.checksum() != null) {
+                hashes.set(i, pool.submit(() -> Wormhole.hash(filePath.toFile(), algorithm)));
+            } else if (attributes.lastModifiedTime().toMillis() != entry.lastModified()) {
+                needed.set(i);
+            }
+        }
+
+        try {
+            for (int i = 0; i < entries.size(); ++i) {
+                var hash = hashes.get(i);
+                if (hash != null && !Arrays.equals(hash.get(), entries.get(i).checksum())) {
+                    needed.set(i);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+        return needed;
+    }
+
+    /**
+     * Answers the manifest behind header on a receiver: reads the entries and sends back the ones
+     * that are missing or different under targetDirectory.
+     */
+    static void receive(Header header, InputStream upload, OutputStream response, Path targetDirectory,
+                        ExecutorService pool) throws IOException {
+        response.write(new Acceptance(Acceptance.ACCEPTED, header.algorithm(), 0).encode());
+        var entries = read(header, upload);
+        var needed = compare(entries, targetDirectory, header.algorithm(), pool);
+        logger.debug("Needs {} of {} files under {}.", needed.cardinality(), entries.size(), header.filePath());
+        response.write(encodeNeeded(needed));
+    }
+
+    /**
+     * Reads the entries that follow header, refusing a body longer than MAX_LENGTH before
+     * allocating room for it.
+     */
+    static List<Entry> read(Header header, InputStream upload) throws IOException {
+        if (header.fileLength() < Integer.BYTES || header.fileLength() > MAX_LENGTH) {
+            throw new ProtocolException("Manifest of " + header.fileLength() + " bytes is out of bounds.");
+        }
+        var body = upload.readNBytes((int) header.fileLength());
+        if (body.length != header.fileLength()) {
+            throw new EOFException("Connection closed by sender.");
+        }
+        return decode(ByteBuffer.wrap(body));
+    }
+
+    static byte[] encode(List<Entry> entries) {
+        if (entries.size() > BATCH_SIZE) {
+            throw new IllegalArgumentException("Manifest of " + entries.size() + " entries is too long.");
+        }
+        int length = Integer.BYTES;
+        var paths = new byte[entries.size()][];
+        for (int i = 0; i < entries.size(); ++i) {
+            var entry = entries.get(i);
+            paths[i] = entry.filePath().getBytes(StandardCharsets.UTF_8);
+            if (paths[i].length > MAX_PATH_LENGTH) {
+                throw new IllegalArgumentException("Path of " + paths[i].length + " bytes is too long: " + entry.filePath());
+            }
+            var checksumLength = entry.checksum() == null ? 0 : entry.checksum().length;
+            if (checksumLength > MAX_CHECKSUM_LENGTH) {
+                throw new IllegalArgumentException("Checksum of " + checksumLength + " bytes is too long.");
+            }
+            length += Short.BYTES + paths[i].length + Long.BYTES + Long.BYTES + Short.BYTES + checksumLength;
+        }
+
+        var buffer = ByteBuffer.allocate(length);
+        buffer.putInt(entries.size());
+        for (int i = 0; i < entries.size(); ++i) {
+            var entry = entries.get(i);
+            buffer.putShort((short) paths[i].length);
+            buffer.put(paths[i]);
+            buffer.putLong(entry.fileLength());
+            buffer.putLong(entry.lastModified());
+            if (entry.checksum() == null) {
+                buffer.putShort((short) 0);
+            } else {
+                buffer.putShort((short) entry.checksum().length);
+                buffer.put(entry.checksum());
+            }
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Decodes the entries in buffer, checking every count and length against the bytes left
+     * before using it.
+     */
+    static List<Entry> decode(ByteBuffer buffer) throws ProtocolException {
+        var count = buffer.remaining() < Integer.BYTES ? -1 : buffer.getInt();
+        if (count < 0 || count > BATCH_SIZE || count > buffer.remaining() / MIN_ENTRY_LENGTH) {
+            throw new ProtocolException("Malformed manifest.");
+        }
+        var entries = new ArrayList<Entry>(count);
+        for (int i = 0; i < count; ++i) {
+            var path = new byte[readLength(buffer, MAX_PATH_LENGTH, Long.BYTES + Long.BYTES + Short.BYTES)];
+            buffer.get(path);
+            var fileLength = buffer.getLong();
+            var lastModified = buffer.getLong();
+            var checksumLength = readLength(buffer, MAX_CHECKSUM_LENGTH, 0);
+            byte[] checksum = null;
+            if (checksumLength != 0) {
+                checksum = new byte[checksumLength];
+                buffer.get(checksum);
+            }
+            entries.add(new Entry(new String(path, StandardCharsets.UTF_8), fileLength, lastModified, checksum));
+        }
+        return entries;
+    }
+
+    /**
+     * Reads a length of at most max that the buffer has room for, along with following bytes after it.
+     */
+    private static int readLength(ByteBuffer buffer, int max, int following) throws ProtocolException {
+        int length = buffer.remaining() < Short.BYTES ? -1 : buffer.getShort();
+        if (length < 0 || length > max || length + following > buffer.remaining()) {
+            throw new ProtocolException("Malformed manifest.");
+        }
+        return length;
+    }
+
+    static byte[] encodeNeeded(BitSet needed) {
+        var bits = needed.toByteArray();
+        var buffer = ByteBuffer.allocate(Integer.BYTES + bits.length);
+        buffer.putInt(bits.length);
+        buffer.put(bits);
+        return buffer.array();
+    }
+}
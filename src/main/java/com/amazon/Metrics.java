@@ -0,0 +1,234 @@
+package com.amazon;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts what this process sends and receives, for a receiver's --metrics-port, in the
+ * Prometheus text format. Recording adds to a LongAdder or an array
+ * slot, so the chunk loops do not allocate for it; the text is only put together when scraped.
+ * <p>
+ * Each file a receiver answers on its own, in a pipeline or in a batch, and each stripe, is
+ * timed through a FileTimer: from its header to the answer, from the answer to its first byte,
+ * from the first byte to the last, and from the last byte to the checksum verdict. The files of
+ * a batch after the first only have the last two.
+ */
+class Metrics {
+    static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    static final Metrics SHARED = new Metrics();
+
+    final LongAdder sentBytes = new LongAdder();
+    final LongAdder sentFiles = new LongAdder();
+    final LongAdder receivedBytes = new LongAdder();
+    final LongAdder receivedFiles = new LongAdder();
+    final LongAdder checksumFailures = new LongAdder();
+    final LongAdder connections = new LongAdder();
+    final LongAdder activeConnections = new LongAdder();
+    final LongAdder turnedAway = new LongAdder();
+
+    final Histogram answer = new Histogram("wormhole_file_answer_seconds",
+            "Time from a file's header to the receiver's answer.");
+    final Histogram firstByte = new Histogram("wormhole_file_first_byte_seconds",
+            "Time from the answer to the first byte of the file.");
+    final Histogram lastByte = new Histogram("wormhole_file_last_byte_seconds",
+            "Time from the first byte of the file to the last.");
+    final Histogram validation = new Histogram("wormhole_file_validation_seconds",
+            "Time from the last byte of the file to its checksum verdict.");
+
+    String scrape() {
+        var text = new StringBuilder(4096);
+        render(text);
+        return text.toString();
+    }
+
+    void render(StringBuilder text) {
+        counter(text, "wormhole_sent_bytes_total", "File bytes written to receivers.", sentBytes.sum());
+        counter(text, "wormhole_sent_files_total", "Files receivers took.", sentFiles.sum());
+        counter(text, "wormhole_received_bytes_total", "File bytes read from senders.", receivedBytes.sum());
+        counter(text, "wormhole_received_files_total", "Files received completely.", receivedFiles.sum());
+        counter(text, "wormhole_checksum_failures_total", "Files and chunks whose checksum did not match.", checksumFailures.sum());
+        counter(text, "wormhole_connections_turned_away_total", "Connections told the receiver was busy.", turnedAway.sum());
+        long active = activeConnections.sum();
+        gauge(text, "wormhole_connections_active", "Connections being served.", active);
+        gauge(text, "wormhole_connections_queued", "Connections admitted but waiting for a thread.", Math.max(0, connections.sum() - active));
+        gauge(text, "wormhole_buffer_pool_bytes", "Bytes of chunk buffers, leased or kept.", BufferPool.SHARED.allocated());
+        gauge(text, "wormhole_buffer_pool_direct_bytes", "Bytes of direct chunk buffers, leased or kept.", BufferPool.SHARED.allocatedDirect());
+        gauge(text, "wormhole_buffer_pool_leased", "Chunk buffers leased.", BufferPool.SHARED.leased());
+        gauge(text, "wormhole_buffer_pool_limit_bytes", "Bytes heap chunk buffers may take together.", BufferPool.SHARED.limit());
+        gauge(text, "wormhole_buffer_pool_direct_limit_bytes", "Bytes direct chunk buffers may take together.", BufferPool.SHARED.directLimit());
+        gauge(text, "wormhole_send_rate_limit_bytes", "Bytes per second all connections may send, 0 for no cap.", RateLimiter.SHARED.rate());
+        for (var histogram : List.of(answer, firstByte, lastByte, validation)) {
+            histogram.render(text);
+        }
+    }
+
+    static void counter(StringBuilder text, String name, String help, long value) {
+        metric(text, name, "counter", help, value);
+    }
+
+    static void gauge(StringBuilder text, String name, String help, long value) {
+        metric(text, name, "gauge", help, value);
+    }
+
+    private static void metric(StringBuilder text, String name, String type, String help, long value) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        text.append(name).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * A latency histogram with fixed buckets from 100 microseconds to 100 seconds, in steps of
+     * 1, 2.5 and 5.
+     */
+    static class Histogram {
+        private static final long[] BOUNDS = bounds();
+
+        private final String name;
+        private final String help;
+        private final AtomicLongArray counts = new AtomicLongArray(BOUNDS.length + 1);
+        private final LongAdder sum = new LongAdder();
+
+        Histogram(String name, String help) {
+            this.name = name;
+            this.help = help;
+        }
+
+        private static long[] bounds() {
+            var bounds = new long[19];
+            long decade = 100_000;
+            for (int i = 0; i < bounds.length; i += 3) {
+                bounds[i] = decade;
+                if (i + 1 < bounds.length) {
+                    bounds[i + 1] = decade * 5 / 2;
+                    bounds[i + 2] = decade * 5;
+                }
+                decade *= 10;
+            }
+            return bounds;
+        }
+
+        void record(long nanos) {
+            int bucket = 0;
+            while (bucket < BOUNDS.length && nanos > BOUNDS[bucket]) {
+                ++bucket;
+            }
+            counts.incrementAndGet(bucket);
+            sum.add(nanos);
+        }
+
+        long count() {
+            long count = 0;
+            for (int i = 0; i < counts.length(); ++i) {
+                count += counts.get(i);
+            }
+            return count;
+        }
+
+        void render(StringBuilder text) {
+            text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            text.append("# TYPE ").append(name).append(" histogram\n");
+            long cumulative = 0;
+            for (int i = 0; i < BOUNDS.length; ++i) {
+                cumulative += counts.get(i);
+                text.append(name).append("_bucket{le=\"").append(BOUNDS[i] / 1e9).append("\"} ").append(cumulative).append('\n');
+            }
+            cumulative += counts.get(BOUNDS.length);
+            text.append(name).append("_bucket{le=\"+Inf\"} ").append(cumulative).append('\n');
+            text.append(name).append("_sum ").append(sum.sum() / 1e9).append('\n');
+            text.append(name).append("_count ").append(cumulative).append('\n');
+        }
+    }
+
+    /**
+     * Times the files of one connection, one at a time. A receiver keeps one per connection and
+     * marks each step of a file as it gets there; a step whose start was not marked is not
+     * recorded.
+     */
+    static class FileTimer {
+        private final Metrics metrics;
+        private long header;
+        private long answered;
+        private long firstByte;
+        private long lastByte;
+
+        FileTimer(Metrics metrics) {
+            this.metrics = metrics;
+        }
+
+        FileTimer() {
+            this(SHARED);
+        }
+
+        /**
+         * The header of a file was read.
+         */
+        void header() {
+            header = System.nanoTime();
+            answered = 0;
+            firstByte = 0;
+            lastByte = 0;
+        }
+
+        /**
+         * The answer to the header was sent.
+         */
+        void answered() {
+            answered = System.nanoTime();
+            if (header != 0) {
+                metrics.answer.record(answered - header);
+            }
+        }
+
+        /**
+         * The data of a pipelined file starts, its header having been answered earlier.
+         */
+        void content() {
+            header = 0;
+            answered = 0;
+            firstByte = 0;
+            lastByte = 0;
+        }
+
+        void received(long bytes) {
+            if (firstByte == 0) {
+                firstByte = System.nanoTime();
+                if (answered != 0) {
+                    metrics.firstByte.record(firstByte - answered);
+                }
+            }
+            metrics.receivedBytes.add(bytes);
+        }
+
+        /**
+         * The last byte of the file was read.
+         */
+        void lastByte() {
+            lastByte = System.nanoTime();
+            if (firstByte != 0) {
+                metrics.lastByte.record(lastByte - firstByte);
+            }
+        }
+
+        /**
+         * The checksum of what was received since the last byte matched.
+         */
+        void validated() {
+            if (lastByte != 0) {
+                metrics.validation.record(System.nanoTime() - lastByte);
+            }
+        }
+
+        /**
+         * The file's checksum matched, or it had none to check. The next file of a batch starts
+         * from here, with neither a header nor an answer of its own.
+         */
+        void completed(boolean validated) {
+            if (validated) {
+                validated();
+            }
+            metrics.receivedFiles.increment();
+            content();
+        }
+    }
+}
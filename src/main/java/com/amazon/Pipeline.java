@@ -0,0 +1,194 @@
+package com.amazon;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Keeps up to window headers in flight on one connection, so the data of one file streams while
+ * the receiver decides about the next ones. The connection starts with a Header with the
+ * PIPELINED flag; after that every message from the sender starts with a type and a request id:
+ * HEADER is followed by a header frame, DATA by the file's content and
+ * trailer, and END returns the connection to one header at a time. The receiver answers each
+ * header with the request id and an Acceptance, in any order, and END with request id -1.
+ * Data is sent in the order the headers were, skipping rejected files.
+ */
+class Pipeline {
+    private static final Logger logger = LoggerFactory.getLogger(Pipeline.class);
+
+    static final byte HEADER = 1;
+    static final byte DATA = 2;
+    static final byte END = 3;
+    static final int END_ID = -1;
+    static final int MESSAGE_LENGTH = Byte.BYTES + Integer.BYTES;
+    static final int RESPONSE_LENGTH = Integer.BYTES + Acceptance.LENGTH;
+    // Data the window may hold back, so that a connection does not claim large files while it is
+    // still sending others; those are better left to the next connection that runs out of work.
+    static final long MAX_WINDOW_BYTES = 64 * 1024 * 1024;
+
+    interface Connection {
+        void send(ByteBuffer message) throws IOException;
+
+        /**
+         * Fills and flips the response buffer, returning false if the receiver closed the connection.
+         */
+        boolean receive(ByteBuffer response) throws IOException;
+
+        /**
+         * Sends the DATA message and the content of an accepted file.
+         */
+        void sendData(int requestId, File file, Header header, Acceptance acceptance) throws IOException;
+
+        /**
+         * Counts a file the receiver turned down.
+         */
+        void rejected(Header header);
+    }
+
+    private record Request(int id, File file, Header header, CompletableFuture<Acceptance> response) {}
+
+    private final Connection connection;
+    private final int window;
+    private final ArrayDeque<Request> outstanding = new ArrayDeque<>();
+    private final Map<Integer, CompletableFuture<Acceptance>> responses = new ConcurrentHashMap<>();
+    private final Thread demultiplexer;
+    private volatile boolean closed;
+    private int nextId;
+    private long windowBytes;
+
+    /**
+     * Starts a session, announcing whether any of its files may be compressed.
+     */
+    Pipeline(Connection connection, int window, String senderName, boolean compressed) throws IOException {
+        this.connection = connection;
+        this.window = window;
+        var flags = compressed ? Header.PIPELINED | Header.COMPRESSED : Header.PIPELINED;
+        var session = new Header(senderName, "", 0, ChecksumAlgorithm.MD5, null, flags, 0, 0);
+        connection.send(ByteBuffer.wrap(session.encode()));
+        var proceed = ByteBuffer.allocate(Acceptance.LENGTH);
+        if (!connection.receive(proceed) || !Acceptance.decode(proceed).accepted()) {
+            throw new IOException("Receiver did not accept pipelined requests.");
+        }
+        this.demultiplexer = new Thread(this::demultiplex, Thread.currentThread().getName() + "-demux");
+        this.demultiplexer.setDaemon(true);
+        this.demultiplexer.start();
+    }
+
+    static byte[] encodeResponse(int requestId, Acceptance acceptance) {
+        return ByteBuffer.allocate(RESPONSE_LENGTH).putInt(requestId).put(acceptance.encode()).array();
+    }
+
+    /**
+     * Sends the data of the oldest files until the window has room for another header: a free
+     * slot, and less than MAX_WINDOW_BYTES of data. Call it before taking the next file.
+     */
+    void ready() throws IOException {
+        while (outstanding.size() == window || (!outstanding.isEmpty() && windowBytes >= MAX_WINDOW_BYTES)) {
+            completeOldest();
+        }
+    }
+
+    /**
+     * Sends the header of the file, first sending the data of the oldest file if the window is full.
+     */
+    void offer(File file, Header header) throws IOException {
+        if (outstanding.size() == window) {
+            completeOldest();
+        }
+        var request = new Request(nextId++, file, header, new CompletableFuture<>());
+        responses.put(request.id(), request.response());
+        if (closed) {
+            request.response().completeExceptionally(new IOException("Connection closed by receiver."));
+        }
+        var message = ByteBuffer.allocate(MESSAGE_LENGTH + header.frameLength());
+        message.put(HEADER).putInt(request.id());
+        header.encodeTo(message);
+        connection.send(message.flip());
+        outstanding.addLast(request);
+        windowBytes += header.fileLength();
+    }
+
+    /**
+     * Sends the data of every file still in the window.
+     */
+    void drain() throws IOException {
+        while (!outstanding.isEmpty()) {
+            completeOldest();
+        }
+    }
+
+    private void completeOldest() throws IOException {
+        var request = outstanding.removeFirst();
+        windowBytes -= request.header().fileLength();
+        complete(request);
+    }
+
+    private void complete(Request request) throws IOException {
+        Acceptance acceptance;
+        try {
+            acceptance = request.response().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+        if (!acceptance.accepted()) {
+            logger.warn("Cannot proceed with upload: {}", request.header().filePath());
+            connection.rejected(request.header());
+            return;
+        }
+        connection.sendData(request.id(), request.file(), request.header(), acceptance);
+    }
+
+    private void demultiplex() {
+        var response = ByteBuffer.allocate(RESPONSE_LENGTH);
+        try {
+            while (true) {
+                response.clear();
+                if (!connection.receive(response)) {
+                    break;
+                }
+                var requestId = response.getInt();
+                if (requestId == END_ID) {
+                    return;
+                }
+                var future = responses.remove(requestId);
+                if (future != null) {
+                    future.complete(Acceptance.decode(response));
+                }
+            }
+        } catch (IOException e) {
+            logger.debug("Stopped reading responses.", e);
+        }
+        closed = true;
+        var e = new IOException("Connection closed by receiver.");
+        responses.values().forEach(future -> future.completeExceptionally(e));
+    }
+
+    /**
+     * Sends the data of every file still in the window and ends the pipelined session, so the
+     * connection can be used for other requests.
+     */
+    void finish() throws IOException {
+        drain();
+        connection.send(ByteBuffer.allocate(MESSAGE_LENGTH).put(END).putInt(END_ID).flip());
+        try {
+            demultiplexer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+        if (closed) {
+            throw new IOException("Connection closed by receiver.");
+        }
+    }
+}
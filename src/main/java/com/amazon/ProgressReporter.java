@@ -0,0 +1,164 @@
+package com.amazon;
+
+import com.amazon.Wormhole.NamingThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Prints how a send is going every interval: bytes and files done out of those found so far,
+ * the throughput since the last report and a moving average of it, what each connection sent
+ * since the last report, and when the send should end once every file was found. Bytes the
+ * receiver already had or turned down count as done but not towards the throughput, so they
+ * neither stay in the time left nor make the link look faster than it is.
+ * <p>
+ * It only reads the sender's counters, which the connections add to without waiting on each
+ * other, from a thread of its own. The average weighs each report by how long ago it was, with
+ * a time constant of EWMA_SECONDS, so it follows a slower link within a minute or so without
+ * jumping at every stall. With json, each report is a JSON object on a line of its own.
+ */
+class ProgressReporter implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(ProgressReporter.class);
+
+    static final double EWMA_SECONDS = 30;
+
+    private final Supplier<Sender.Progress> progress;
+    private final boolean json;
+    private final PrintStream out;
+    private final long startNanos;
+    private ScheduledExecutorService timer;
+    private long lastNanos;
+    private long lastBytes;
+    private long[] lastConnections = new long[0];
+    private double average = -1;
+
+    ProgressReporter(Supplier<Sender.Progress> progress, boolean json, PrintStream out, long startNanos) {
+        this.progress = progress;
+        this.json = json;
+        this.out = out;
+        this.startNanos = startNanos;
+        this.lastNanos = startNanos;
+    }
+
+    /**
+     * Starts printing a report of progress every intervalMillis.
+     */
+    static ProgressReporter start(Supplier<Sender.Progress> progress, long intervalMillis, boolean json, PrintStream out) {
+        var reporter = new ProgressReporter(progress, json, out, System.nanoTime());
+        reporter.timer = Executors.newSingleThreadScheduledExecutor(new NamingThreadFactory("progress", true));
+        reporter.timer.scheduleAtFixedRate(reporter::print, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        return reporter;
+    }
+
+    private synchronized void print() {
+        try {
+            out.println(report(progress.get(), System.nanoTime()));
+        } catch (RuntimeException e) {
+            logger.warn("Progress reports stopped.", e);
+            throw e;
+        }
+    }
+
+    /**
+     * The report of progress at nanos, taking it as the start of the next interval.
+     */
+    String report(Sender.Progress progress, long nanos) {
+        double seconds = Math.max(1, nanos - lastNanos) / 1e9;
+        double rate = Math.max(0, progress.bytes() - lastBytes) / seconds;
+        if (average < 0) {
+            average = rate;
+        } else {
+            average += (1 - Math.exp(-seconds / EWMA_SECONDS)) * (rate - average);
+        }
+        var connections = progress.connectionBytes();
+        var connectionRates = new double[connections.length];
+        for (int i = 0; i < connections.length; ++i) {
+            long last = i < lastConnections.length ? lastConnections[i] : 0;
+            connectionRates[i] = Math.max(0, connections[i] - last) / seconds;
+        }
+        double eta = progress.totalKnown() && average > 0
+                ? Math.max(0, progress.totalBytes() - progress.doneBytes()) / average : -1;
+        double elapsed = (nanos - startNanos) / 1e9;
+        lastNanos = nanos;
+        lastBytes = progress.bytes();
+        lastConnections = connections;
+        return json ? json(progress, elapsed, rate, connectionRates, eta) : text(progress, rate, connectionRates, eta);
+    }
+
+    private String text(Sender.Progress progress, double rate, double[] connectionRates, double eta) {
+        var text = new StringBuilder(128);
+        text.append("Sent ").append(size(progress.bytes()));
+        if (progress.skippedBytes() > 0) {
+            text.append(" and skipped ").append(size(progress.skippedBytes()));
+        }
+        text.append(" of ").append(size(progress.totalBytes()));
+        if (progress.totalKnown() && progress.totalBytes() > 0) {
+            text.append(String.format(Locale.ROOT, " (%.1f%%)", progress.doneBytes() * 100d / progress.totalBytes()));
+        } else if (!progress.totalKnown()) {
+            text.append(" found so far");
+        }
+        text.append(", ").append(progress.files()).append(" of ").append(progress.totalFiles()).append(" files, ");
+        text.append(size((long) rate)).append("/s, average ").append(size((long) average)).append("/s");
+        if (connectionRates.length > 0) {
+            double min = Double.MAX_VALUE;
+            double max = 0;
+            for (double connectionRate : connectionRates) {
+                min = Math.min(min, connectionRate);
+                max = Math.max(max, connectionRate);
+            }
+            text.append(", ").append(connectionRates.length).append(" connections at ")
+                    .append(size((long) min)).append("/s to ").append(size((long) max)).append("/s");
+        }
+        if (eta >= 0) {
+            long left = Math.round(eta);
+            text.append(String.format(Locale.ROOT, ", %d:%02d:%02d left", left / 3600, left / 60 % 60, left % 60));
+        }
+        return text.toString();
+    }
+
+    private String json(Sender.Progress progress, double elapsed, double rate, double[] connectionRates, double eta) {
+        var text = new StringBuilder(256);
+        text.append(String.format(Locale.ROOT, "{\"elapsed\":%.3f", elapsed));
+        text.append(",\"bytes\":").append(progress.bytes());
+        text.append(",\"skippedBytes\":").append(progress.skippedBytes());
+        text.append(",\"totalBytes\":").append(progress.totalBytes());
+        text.append(",\"files\":").append(progress.files());
+        text.append(",\"totalFiles\":").append(progress.totalFiles());
+        text.append(",\"totalKnown\":").append(progress.totalKnown());
+        text.append(",\"rate\":").append((long) rate);
+        text.append(",\"averageRate\":").append((long) average);
+        text.append(",\"connectionRates\":[");
+        for (int i = 0; i < connectionRates.length; ++i) {
+            text.append(i > 0 ? "," : "").append((long) connectionRates[i]);
+        }
+        text.append("],\"eta\":").append(eta >= 0 ? String.format(Locale.ROOT, "%.1f", eta) : "null");
+        return text.append('}').toString();
+    }
+
+    private static String size(long bytes) {
+        var unit = SenderCommand.ByteUnit.forBytes(bytes);
+        return unit.value() + unit.units();
+    }
+
+    /**
+     * Stops reporting and prints a last report.
+     */
+    @Override
+    public void close() {
+        if (timer != null) {
+            timer.shutdownNow();
+            try {
+                timer.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        print();
+    }
+}
@@ -0,0 +1,172 @@
+package com.amazon;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongConsumer;
+
+/**
+ * How senders and receivers frame what they say to each other. A connection starts with the
+ * receiver's {@link Admission} and the sender's preamble of MAGIC and VERSION, so a receiver
+ * can turn away a sender that speaks something else instead of reading garbage as a header.
+ * After that every header is a frame: its length as an int, then the header itself, so a
+ * receiver knows how much to read before decoding it.
+ */
+final class Protocol {
+    private static final Logger logger = LoggerFactory.getLogger(Protocol.class);
+
+    static final int MAGIC = 0x57524d48;
+    static final byte VERSION = 3;
+    static final int PREAMBLE_LENGTH = Integer.BYTES + Byte.BYTES;
+    static final int FRAME_PREFIX_LENGTH = Integer.BYTES;
+    static final int MAX_FRAME_LENGTH = 64 * 1024;
+    static final long MAX_BUSY_WAIT_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    interface Connector<T> {
+        T connect() throws IOException;
+    }
+
+    private Protocol() {}
+
+    static ByteBuffer preamble() {
+        return ByteBuffer.allocate(PREAMBLE_LENGTH).putInt(MAGIC).put(VERSION).flip();
+    }
+
+    /**
+     * Connects to a receiver, sends the preamble and reads the admission, throwing
+     * ReceiverBusyException if the receiver turned the connection away.
+     */
+    static Socket connect(String host, int port) throws IOException {
+        return connect(host, port, handshake -> {});
+    }
+
+    /**
+     * Connects like connect(host, port), and once admitted tells handshake how long the TCP
+     * handshake took, which is one round trip. The admission is left out, since it also waits
+     * for the receiver to get to the connection.
+     */
+    static Socket connect(String host, int port, LongConsumer handshake) throws IOException {
+        long start = System.nanoTime();
+        var socket = new Socket(host, port);
+        long handshakeNanos = System.nanoTime() - start;
+        try {
+            socket.getOutputStream().write(preamble().array());
+            var admission = socket.getInputStream().readNBytes(Admission.LENGTH);
+            if (admission.length != Admission.LENGTH) {
+                throw new EOFException("Connection closed by receiver.");
+            }
+            checkAdmission(ByteBuffer.wrap(admission));
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        handshake.accept(handshakeNanos);
+        return socket;
+    }
+
+    /**
+     * Opens a channel to a receiver, sends the preamble and reads the admission, timing the
+     * handshake like connect.
+     */
+    static SocketChannel open(String host, int port, LongConsumer handshake) throws IOException {
+        long start = System.nanoTime();
+        var socket = SocketChannel.open(new InetSocketAddress(host, port));
+        long handshakeNanos = System.nanoTime() - start;
+        try {
+            var preamble = preamble();
+            while (preamble.hasRemaining()) {
+                socket.write(preamble);
+            }
+            var admission = ByteBuffer.allocate(Admission.LENGTH);
+            while (admission.hasRemaining()) {
+                if (socket.read(admission) < 0) {
+                    throw new EOFException("Connection closed by receiver.");
+                }
+            }
+            checkAdmission(admission.flip());
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        handshake.accept(handshakeNanos);
+        return socket;
+    }
+
+    static void checkAdmission(ByteBuffer buffer) throws ReceiverBusyException {
+        var admission = Admission.decode(buffer);
+        if (!admission.admitted()) {
+            throw new ReceiverBusyException(admission.retryAfterMillis());
+        }
+    }
+
+    /**
+     * Connects until the receiver admits the connection. While it is busy this waits as long as
+     * the receiver asks, give or take a quarter so that senders turned away together do not
+     * come back together, and throws the ReceiverBusyException once giveUp says so or after
+     * MAX_BUSY_WAIT_MILLIS.
+     */
+    static <T> T admitted(Connector<T> connector, BooleanSupplier giveUp) throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(MAX_BUSY_WAIT_MILLIS);
+        while (true) {
+            try {
+                return connector.connect();
+            } catch (ReceiverBusyException e) {
+                if (giveUp.getAsBoolean() || System.nanoTime() > deadline) {
+                    throw e;
+                }
+                long wait = Math.max(1, (long) (e.retryAfterMillis() * ThreadLocalRandom.current().nextDouble(0.75, 1.25)));
+                logger.info("Receiver is busy, connecting again in {} ms.", wait);
+                try {
+                    Thread.sleep(wait);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for a busy receiver.");
+                }
+            }
+        }
+    }
+
+    /**
+     * Consumes a preamble, throwing if it is not one this version understands.
+     */
+    static void checkPreamble(ByteBuffer buffer) throws ProtocolException {
+        int magic = buffer.getInt();
+        byte version = buffer.get();
+        if (magic != MAGIC) {
+            throw new ProtocolException("Not a wormhole connection.");
+        }
+        if (version != VERSION) {
+            throw new ProtocolException("Unsupported protocol version " + version + ", expected " + VERSION + ".");
+        }
+    }
+
+    /**
+     * Returns the length of the frame at the buffer's position, prefix included, or -1 if the
+     * buffer does not hold all of it yet.
+     */
+    static int frameLength(ByteBuffer buffer) throws ProtocolException {
+        if (buffer.remaining() < FRAME_PREFIX_LENGTH) {
+            return -1;
+        }
+        int length = checkFrameLength(buffer.getInt(buffer.position()));
+        return buffer.remaining() < FRAME_PREFIX_LENGTH + length ? -1 : FRAME_PREFIX_LENGTH + length;
+    }
+
+    static int checkFrameLength(int length) throws ProtocolException {
+        if (length < 0 || length > MAX_FRAME_LENGTH) {
+            throw new ProtocolException("Frame of " + length + " bytes is out of bounds.");
+        }
+        return length;
+    }
+}
@@ -0,0 +1,176 @@
+package com.amazon;
+
+import com.amazon.Wormhole.NamingThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Caps how fast every connection of the process sends file data together, as a token bucket
+ * that fills at the rate up to the burst. A sender takes tokens for a write before making it,
+ * and gives back those for bytes the write did not get to send. When the bucket is short it
+ * goes into debt and sleeps until the debt is paid off, so whoever asks next waits behind it. Writes are cut to at most the burst while capped, so a
+ * connection sending a large file asks again after every burst and one sending a small file
+ * gets its turn in between, rather than waiting for the large one to finish.
+ * <p>
+ * The rate and burst can be changed while sending, by writing them to a file that watch reads
+ * again whenever it changes. Uncapped, which is the default, taking tokens is a read of the
+ * rate and nothing else.
+ */
+class RateLimiter {
+    private static final Logger logger = LoggerFactory.getLogger(RateLimiter.class);
+
+    static final long MIN_BURST = 64 * 1024;
+    static final RateLimiter SHARED = new RateLimiter(System::nanoTime);
+
+    private final LongSupplier clock;
+    private volatile long rate;
+    private long burst;
+    private double tokens;
+    private long refilled;
+
+    /**
+     * A limiter that reads the time in nanoseconds from clock.
+     */
+    RateLimiter(LongSupplier clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Sets the bytes per second, 0 for no cap, and how many bytes may go at once after a pause,
+     * 0 for a tenth of a second's worth.
+     */
+    synchronized void setRate(long rate, long burst) {
+        this.burst = burst > 0 ? burst : Math.max(MIN_BURST, rate / 10);
+        this.tokens = Math.min(tokens, this.burst);
+        this.refilled = clock.getAsLong();
+        this.rate = rate;
+    }
+
+    long rate() {
+        return rate;
+    }
+
+    /**
+     * Sets the rate from file now and again every intervalMillis the file was modified, until
+     * the returned watch is closed. The file holds the bytes per second and, optionally, the
+     * burst, separated by white space. A file that is missing or does not parse leaves the rate
+     * as it was.
+     */
+    Watch watch(Path file, long intervalMillis) {
+        var watch = new Watch(file);
+        watch.read();
+        watch.timer.scheduleWithFixedDelay(watch::read, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        return watch;
+    }
+
+    /**
+     * How much of a write of length bytes to make before taking tokens again.
+     */
+    int limit(int length) {
+        if (rate == 0) {
+            return length;
+        }
+        synchronized (this) {
+            return (int) Math.min(length, burst);
+        }
+    }
+
+    long limit(long length) {
+        return rate == 0 ? length : limit((int) Math.min(length, Integer.MAX_VALUE));
+    }
+
+    /**
+     * Takes tokens for bytes about to be sent, sleeping while the bucket is in debt.
+     */
+    void acquire(long bytes) throws InterruptedIOException {
+        long wait = take(bytes);
+        if (wait > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for bandwidth.");
+            }
+        }
+    }
+
+    /**
+     * Gives back tokens taken for bytes that were not sent after all.
+     */
+    void refund(long bytes) {
+        if (rate == 0 || bytes <= 0) {
+            return;
+        }
+        synchronized (this) {
+            tokens = Math.min(burst, tokens + bytes);
+        }
+    }
+
+    /**
+     * Takes tokens for bytes, and returns how many nanoseconds to wait before sending them.
+     */
+    long take(long bytes) {
+        if (rate == 0) {
+            return 0;
+        }
+        synchronized (this) {
+            long rate = this.rate;
+            if (rate == 0) {
+                return 0;
+            }
+            long now = clock.getAsLong();
+            tokens = Math.min(burst, tokens + (now - refilled) * rate / 1e9);
+            refilled = now;
+            tokens -= bytes;
+            return tokens < 0 ? (long) (-tokens * 1e9 / rate) : 0;
+        }
+    }
+
+    final class Watch implements AutoCloseable {
+        private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new NamingThreadFactory("rate", true));
+        private final Path file;
+        private FileTime modified;
+
+        private Watch(Path file) {
+            this.file = file;
+        }
+
+        private void read() {
+            try {
+                var modified = Files.getLastModifiedTime(file);
+                if (modified.equals(this.modified)) {
+                    return;
+                }
+                this.modified = modified;
+                var values = Files.readString(file).trim().split("\\s+");
+                long rate = Long.parseLong(values[0]);
+                long burst = values.length > 1 ? Long.parseLong(values[1]) : 0;
+                if (rate < 0 || burst < 0) {
+                    throw new NumberFormatException("Negative rate or burst.");
+                }
+                setRate(rate, burst);
+                logger.info("Sending at {} bytes per second{}.", rate, rate == 0 ? " (no cap)" : "");
+            } catch (NoSuchFileException e) {
+                logger.debug("No rate in {}.", file);
+            } catch (IOException | RuntimeException e) {
+                logger.warn("Could not read the rate from {}: {}", file, e.toString());
+            }
+        }
+
+        @Override
+        public void close() {
+            timer.shutdownNow();
+        }
+    }
+}
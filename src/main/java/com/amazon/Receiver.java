@@ -10,6 +10,43 @@ public interface Receiver {
 
     void setAcceptor(SimpleBlockingReceiver.Acceptor acceptor);
 
+    /**
+     * Algorithm the receiver asks senders to use for trailing checksums. When not set,
+     * the algorithm proposed by the sender is used.
+     */
+    void setChecksumAlgorithm(ChecksumAlgorithm checksumAlgorithm);
+
+    /**
+     * Run each connection on a virtual thread, with the thread count bounding how many are served at once.
+     */
+    void setVirtualThreads(boolean virtualThreads);
+
+    /**
+     * Socket receive buffer size in bytes, 0 to leave it to the system. It is set on the listening
+     * socket, before it binds, so connections inherit it and can scale their window past 64 KiB.
+     */
+    void setSocketBuffer(int socketBuffer);
+
+    /**
+     * Listening sockets to accept connections on, each with a thread of its own. More than one
+     * needs SO_REUSEPORT, as on Linux, and helps when many senders connect at once.
+     */
+    void setAcceptors(int acceptors);
+
+    /**
+     * Connections to admit beyond those being served, to wait for a thread, or for the selector
+     * receiver those that may wait for a buffer. Further ones are told the receiver is busy and
+     * turned away.
+     */
+    void setMaxQueued(int maxQueued);
+
+    /**
+     * Milliseconds a turned away sender is asked to wait before connecting again.
+     */
+    void setRetryAfter(int retryAfterMillis);
+
+    AdmissionControl getAdmissionControl();
+
     void stop();
 
     interface Acceptor {
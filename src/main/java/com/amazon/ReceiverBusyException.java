@@ -0,0 +1,22 @@
+package com.amazon;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a receiver turns a connection away because it already has as many as it serves
+ * and queues.
+ */
+class ReceiverBusyException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final int retryAfterMillis;
+
+    ReceiverBusyException(int retryAfterMillis) {
+        super("Receiver is busy, retry after " + retryAfterMillis + " ms.");
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    int retryAfterMillis() {
+        return retryAfterMillis;
+    }
+}
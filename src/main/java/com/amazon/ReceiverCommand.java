@@ -10,6 +10,9 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static com.amazon.Wormhole.*;
 import static picocli.CommandLine.Command;
@@ -39,31 +42,84 @@ public class ReceiverCommand implements Runnable {
     @Option(names = {"-d", "--direct"}, description = "Use direct buffers for file transfer.")
     boolean useDirect = false;
 
+    @Option(names = {"-z", "--zero-copy"}, description = "With --direct, write received data to files with transferFrom.")
+    boolean zeroCopy = false;
+
+    @Option(names = {"-s", "--selector"}, description = "Serve connections from a few event loop threads with non-blocking channels, writing files on --threads disk threads.")
+    boolean useSelector = false;
+
+    @Option(names = {"-e", "--event-loops"}, description = "With --selector, number of event loop threads.")
+    int eventLoops = SelectorReceiver.DEFAULT_EVENT_LOOPS;
+
+    @Option(names = {"--ring"}, description = "Buffers a connection reads into while earlier ones are written to disk (1 reads and writes in turn).")
+    int ringBuffers = BufferRing.DEFAULT_BUFFERS;
+
     @Option(names = {"-c", "--chunk"}, description = "Chunk size for transfer buffer in bytes")
     int chunkSize = DEFAULT_CHUNK_SIZE;
 
-    @Option(names = {"-v", "--validate"}, description = "Validate checksum (md5) of received file")
+    @Option(names = {"-v", "--validate"}, description = "Validate checksum of received file")
     boolean validate = false;
 
-    @Option(names = {"-t", "--threads"}, description = "Number of threads to use for sending files")
-    int threadCount = DEFAULT_THREAD_COUNT;
+    @Option(names = {"-a", "--checksum"}, description = "Checksum algorithm to request for trailing checksums: ${COMPLETION-CANDIDATES}")
+    ChecksumAlgorithm checksumAlgorithm;
+
+    @Option(names = {"-t", "--threads"}, description = "Number of threads to use for receiving files (default: cores, or " + DEFAULT_VIRTUAL_THREAD_COUNT + " with --virtual-threads)")
+    Integer threadCount;
+
+    @Option(names = {"--virtual-threads"}, description = "Serve each connection on a virtual thread (Java 21+), up to --threads at once.")
+    boolean virtualThreads = false;
+
+    @Option(names = {"--socket-buffer"}, description = "Socket receive buffer in bytes (default: the system's)")
+    int socketBuffer = 0;
+
+    @Option(names = {"--acceptors"}, description = "Listening sockets sharing the port with SO_REUSEPORT, each accepted from by its own thread")
+    int acceptors = 1;
+
+    @Option(names = {"--max-queued"}, description = "Connections to queue beyond --threads, or with --selector waiting for a buffer, before telling senders the receiver is busy")
+    int maxQueued = AdmissionControl.DEFAULT_MAX_QUEUED;
+
+    @Option(names = {"--retry-after"}, description = "Milliseconds a sender turned away is asked to wait before connecting again")
+    int retryAfter = AdmissionControl.DEFAULT_RETRY_AFTER_MILLIS;
+
+    @Option(names = {"--buffer-memory"}, description = "Bytes all heap chunk buffers may take together; connections wait for buffers beyond it (default: half the heap)")
+    long bufferMemory = BufferPool.DEFAULT_LIMIT;
+
+    @Option(names = {"--direct-buffer-memory"}, description = "Bytes all direct chunk buffers may take together (default: half of the JVM's direct memory limit)")
+    long directBufferMemory = BufferPool.DEFAULT_DIRECT_LIMIT;
+
+    @Option(names = {"--metrics-port"}, description = "Serve Prometheus metrics at /metrics on this port (default: not served)")
+    int metricsPort = 0;
+
+    // Prompts are asked one at a time on a platform thread: several connections may ask at once,
+    // and a virtual thread blocked reading stdin would pin its carrier.
+    private static final ExecutorService prompter = Executors.newSingleThreadExecutor(new NamingThreadFactory("prompt", true));
+    private static final BufferedReader stdin = new BufferedReader(new InputStreamReader(System.in));
 
     public static boolean deferToUser(String sender, String filename, long length) {
+        try {
+            return prompter.submit(() -> prompt(sender, filename, length)).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private static boolean prompt(String sender, String filename, long length) throws IOException {
         while (true) {
             System.out.printf("Receive file named %s (%s bytes) from %s? y/n\n", filename, length, sender);
-            var reader = new BufferedReader(new InputStreamReader(System.in));
-            try {
-                String input = reader.readLine();
-                if ("y".equals(input)) {
-                    return true;
-                }
-                if ("n".equals(input)) {
-                    return false;
-                }
-                System.out.println("Please type 'y' or 'n'.");
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+            String input = stdin.readLine();
+            if (input == null) {
+                throw new IOException("No more input.");
+            }
+            if ("y".equals(input)) {
+                return true;
             }
+            if ("n".equals(input)) {
+                return false;
+            }
+            System.out.println("Please type 'y' or 'n'.");
         }
     }
 
@@ -79,21 +135,59 @@ public class ReceiverCommand implements Runnable {
 
         Receiver receiver = getReceiver();
         receiver.setTargetDirectory(targetDirectory);
+        receiver.setChecksumAlgorithm(checksumAlgorithm);
         if (acceptAll) {
             receiver.setAcceptor((username, filename, length) -> true);
         } else {
             receiver.setAcceptor(ReceiverCommand::deferToUser);
         }
 
-        do {
-            receiver.receive();
-        } while (runForever);
+        MetricsServer metrics;
+        try {
+            metrics = metricsPort > 0 ? MetricsServer.start(metricsPort) : null;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        try {
+            do {
+                receiver.receive();
+            } while (runForever);
+        } finally {
+            if (metrics != null) {
+                metrics.close();
+            }
+        }
     }
 
     private Receiver getReceiver() {
-        return useDirect
-                ? new ChannelReceiver(port, chunkSize, threadCount, validate)
-                : new SimpleBlockingReceiver(port, chunkSize, threadCount, validate);
+        BufferPool.SHARED.setLimit(bufferMemory);
+        BufferPool.SHARED.setDirectLimit(directBufferMemory);
+        var receiver = newReceiver();
+        receiver.setVirtualThreads(virtualThreads);
+        receiver.setSocketBuffer(socketBuffer);
+        receiver.setAcceptors(acceptors);
+        receiver.setMaxQueued(maxQueued);
+        receiver.setRetryAfter(retryAfter);
+        return receiver;
+    }
+
+    private Receiver newReceiver() {
+        int threadCount = this.threadCount != null ? this.threadCount
+                : virtualThreads ? DEFAULT_VIRTUAL_THREAD_COUNT : DEFAULT_THREAD_COUNT;
+        if (useSelector) {
+            var receiver = new SelectorReceiver(port, chunkSize, threadCount, validate);
+            receiver.setEventLoops(eventLoops);
+            return receiver;
+        }
+        if (useDirect) {
+            var receiver = new ChannelReceiver(port, chunkSize, threadCount, validate);
+            receiver.setZeroCopy(zeroCopy);
+            receiver.setRingBuffers(ringBuffers);
+            return receiver;
+        }
+        var receiver = new SimpleBlockingReceiver(port, chunkSize, threadCount, validate);
+        receiver.setRingBuffers(ringBuffers);
+        return receiver;
     }
 
     private Registration createRegistration() {
@@ -4,6 +4,7 @@ import io.micronaut.http.HttpRequest;
 import io.micronaut.http.HttpResponse;
 import io.micronaut.http.annotation.Controller;
 import io.micronaut.http.annotation.Get;
+import io.micronaut.http.annotation.Produces;
 import io.micronaut.http.annotation.QueryValue;
 import io.micronaut.http.server.util.HttpClientAddressResolver;
 import jakarta.inject.Inject;
@@ -34,4 +35,16 @@ public class Registrar {
             return HttpResponse.notFound();
         }
     }
+
+    /**
+     * The registrar's own metrics. It moves no files, so the transfer metrics are on each
+     * receiver's --metrics-port.
+     */
+    @Get("/metrics")
+    @Produces(Metrics.CONTENT_TYPE)
+    public String metrics() {
+        var text = new StringBuilder(256);
+        Metrics.gauge(text, "wormhole_registrations", "Receivers registered with this registrar.", registry.size());
+        return text.toString();
+    }
 }
@@ -16,6 +16,10 @@ public class Registry {
         return value != null ? value : registration;
     }
 
+    public int size() {
+        return registry.size();
+    }
+
     public Registration get(String passcode) {
         Registration registration = registry.get(passcode);
         if (registration == null) {
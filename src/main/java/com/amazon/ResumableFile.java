@@ -0,0 +1,63 @@
+package com.amazon;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static com.amazon.Wormhole.DEFAULT_CHUNK_SIZE;
+
+/**
+ * Works out how much of a partially received file the receiver can keep when a sender asks
+ * to resume. The receiver reports that length in its {@link Acceptance}, followed by a
+ * checksum of the kept bytes so the sender can check that they belong to the same file. The
+ * checksum is sent whether or not the receiver validates files, and a sender that gets none
+ * sends the whole file.
+ */
+class ResumableFile {
+
+    static long resumableLength(Path file, Header header) throws IOException {
+        if (!header.isResumable() || !Files.isRegularFile(file)) {
+            return 0;
+        }
+        long length = Files.size(file);
+        if (length > header.fileLength()) {
+            return 0;
+        }
+        if (header.hasChunkChecksums()) {
+            // Only whole chunks are kept, their checksums arrive with them.
+            length -= length % header.blockSize();
+        }
+        return length;
+    }
+
+    /**
+     * Hashes the first length bytes of the file. The same bytes are fed to the validator
+     * so that a whole file checksum still covers the part that is not sent again.
+     */
+    static byte[] hashPrefix(Path file, long length, ChecksumAlgorithm algorithm, Validator validator) throws IOException {
+        var digester = algorithm.newDigester();
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ);
+             var lease = BufferPool.SHARED.lease((int) Math.min(length, DEFAULT_CHUNK_SIZE), false)) {
+            var buffer = lease.buffer();
+            long position = 0;
+            while (position < length) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), length - position));
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    throw new EOFException("File was truncated while resuming: " + file);
+                }
+                buffer.flip();
+                digester.update(buffer.duplicate());
+                if (validator != null) {
+                    validator.update(buffer);
+                }
+                position += read;
+            }
+        }
+        return digester.digest();
+    }
+}
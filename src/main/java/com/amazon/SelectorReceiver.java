@@ -0,0 +1,802 @@
+package com.amazon;
+
+import com.amazon.Wormhole.NamingThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import static com.amazon.Wormhole.*;
+
+/**
+ * Serves many connections with a few event loop threads instead of a thread per connection.
+ * Each loop owns a Selector and reads its non-blocking channels; file writes run on a bounded
+ * pool of disk threads, and a connection stops reading while its last buffer is being written.
+ * A connection only holds a buffer while a file's content arrives. Plain files and pipelined
+ * sessions are handled by the loops. Other requests (manifests, stripes, batches, chunk
+ * checksums, resumes, compressed files and sessions that may carry them) are handed to a
+ * ChannelReceiver in blocking mode until that request is done. Those and acceptor decisions,
+ * which may wait on the sender or on a prompt, run on threads of their own so they never hold
+ * up the disk threads.
+ */
+public class SelectorReceiver implements Receiver {
+    private static final Logger logger = LoggerFactory.getLogger(SelectorReceiver.class);
+
+    static final int DEFAULT_EVENT_LOOPS = Math.max(1, DEFAULT_THREAD_COUNT / 4);
+
+    // A non-blocking read returns at most what the socket buffer holds, so a connection does not need a whole chunk.
+    private static final int CONNECTION_BUFFER_SIZE = 1024 * 1024;
+    private static final int HEADER_BUFFER_SIZE = 4096;
+    private static final int MAX_HEADER_BUFFER_SIZE = 1024 * 1024;
+    private static final long STARVED_RETRY_MILLIS = 10;
+
+    private enum State { PREAMBLE, HEADER, DECIDING, SESSION, STARVED, CONTENT, WRITING, TRAILER, HANDED_OFF }
+
+    private final int port;
+    private final int chunkSize;
+    private final int threadCount;
+    private final boolean validate;
+    private final ChannelReceiver blocking;
+    private int eventLoops = DEFAULT_EVENT_LOOPS;
+    private boolean virtualThreads;
+    private int socketBuffer;
+    private final AdmissionControl admission;
+    private final AtomicInteger starving = new AtomicInteger();
+    private volatile AcceptorGroup acceptors;
+    private int acceptorCount = 1;
+
+    private Path targetDirectory;
+    private SimpleBlockingReceiver.Acceptor acceptor;
+    private ChecksumAlgorithm checksumAlgorithm;
+
+    private volatile boolean shouldRun = true;
+    private volatile boolean accepting;
+    private ExecutorService disk;
+    private ExecutorService waiting;
+    private Loop[] loops;
+
+    public SelectorReceiver(int port, int chunkSize, int threadCount, boolean validate) {
+        this.port = port;
+        this.chunkSize = chunkSize;
+        this.threadCount = threadCount;
+        // Disk threads only write what the loops read, so connections are limited by buffers.
+        this.admission = new AdmissionControl(starving::get);
+        this.validate = validate;
+        this.blocking = new ChannelReceiver(port, chunkSize, threadCount, validate);
+    }
+
+    public SelectorReceiver() {
+        this(DEFAULT_RECEIVER_PORT, DEFAULT_CHUNK_SIZE, DEFAULT_THREAD_COUNT, true);
+    }
+
+    @Override
+    public void stop() {
+        shouldRun = false;
+        var acceptors = this.acceptors;
+        if (acceptors != null) {
+            acceptors.close();
+        }
+        var loops = this.loops;
+        if (loops != null) {
+            for (var loop : loops) {
+                loop.selector.wakeup();
+            }
+        }
+    }
+
+    @Override
+    public void receive() {
+        disk = newExecutor("disk", threadCount, virtualThreads);
+        waiting = Executors.newCachedThreadPool(virtualThreads ? virtualThreadFactory("wait") : new NamingThreadFactory("wait"));
+        var verifiers = Executors.newFixedThreadPool(virtualThreads ? DEFAULT_THREAD_COUNT : threadCount,
+                new NamingThreadFactory("verify"));
+        blocking.setVerifiers(verifiers);
+        var threads = new ArrayList<Thread>(eventLoops);
+        accepting = true;
+        try (var acceptors = AcceptorGroup.open(port, acceptorCount, socketBuffer)) {
+            this.acceptors = acceptors;
+            loops = new Loop[eventLoops];
+            for (int i = 0; i < loops.length; ++i) {
+                loops[i] = new Loop(Selector.open());
+                var thread = new Thread(loops[i], "loop-" + (i + 1));
+                thread.start();
+                threads.add(thread);
+            }
+            // Each acceptor feeds loops of its own, every acceptors.size()-th one, so acceptors
+            // never wake the same selector; with fewer loops than acceptors they share.
+            var owned = new Loop[acceptors.size()][];
+            for (int i = 0; i < owned.length; ++i) {
+                int first = i % loops.length;
+                owned[i] = IntStream.iterate(first, j -> j < loops.length, j -> j + owned.length)
+                        .mapToObj(j -> loops[j]).toArray(Loop[]::new);
+            }
+            var next = new int[owned.length];
+            if (shouldRun) {
+                acceptors.start((acceptor, clientSocket) -> {
+                    if (!admission.admit(clientSocket.socket())) {
+                        return;
+                    }
+                    // The loops serve every connection they have, so none is ever queued.
+                    admission.started();
+                    clientSocket.configureBlocking(false);
+                    var loop = owned[acceptor][next[acceptor]++ % owned[acceptor].length];
+                    loop.execute(() -> loop.register(clientSocket));
+                });
+                acceptors.await();
+            }
+            logger.info("Receiver is exiting: {}", admission);
+        } catch (InterruptedException e) {
+            logger.info("Receiver was interrupted: {}", admission);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        } finally {
+            accepting = false;
+            stop();
+            for (var thread : threads) {
+                boolean terminated = false;
+                do {
+                    logger.info("Waiting for connections to finish.");
+                    try {
+                        thread.join(TimeUnit.SECONDS.toMillis(10));
+                        terminated = !thread.isAlive();
+                    } catch (InterruptedException e) {
+                        logger.debug("Interrupted: {}", Thread.currentThread().isInterrupted());
+                    }
+                } while (!terminated);
+            }
+            disk.shutdown();
+            waiting.shutdown();
+            verifiers.shutdown();
+        }
+    }
+
+    private final class Loop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final List<Connection> handoffs = new ArrayList<>();
+        // Connections waiting for a buffer, which are tried again on every turn of the loop.
+        private final Queue<Connection> starved = new ArrayDeque<>();
+        private int connections;
+
+        Loop(Selector selector) {
+            this.selector = selector;
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void register(SocketChannel clientSocket) {
+            try {
+                var connection = new Connection(this, clientSocket);
+                connection.key = clientSocket.register(selector, SelectionKey.OP_READ, connection);
+                ++connections;
+            } catch (IOException e) {
+                logger.warn("Could not register {}", clientSocket, e);
+                admission.finished();
+            }
+        }
+
+        @Override
+        public void run() {
+            try (selector) {
+                while (accepting || connections > 0 || !tasks.isEmpty()) {
+                    selector.select(starved.isEmpty() ? 0 : STARVED_RETRY_MILLIS);
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    var selected = selector.selectedKeys().iterator();
+                    while (selected.hasNext()) {
+                        var key = selected.next();
+                        selected.remove();
+                        ((Connection) key.attachment()).handle(key);
+                    }
+                    for (int i = starved.size(); i > 0; --i) {
+                        starved.remove().leaseBuffer();
+                    }
+                    if (!handoffs.isEmpty()) {
+                        // A channel can only go back to blocking mode once its cancelled key is deregistered.
+                        selector.selectNow();
+                        for (var connection : handoffs) {
+                            waiting.execute(connection::serveBlocking);
+                        }
+                        handoffs.clear();
+                    }
+                }
+            } catch (IOException e) {
+                logger.error("Event loop failed.", e);
+            }
+        }
+    }
+
+    /**
+     * The state of one sender's connection. Everything but serveBlocking, decisions and the disk
+     * tasks runs on the connection's loop thread; those hand their results back with loop.execute.
+     */
+    private final class Connection {
+        private final Loop loop;
+        private final SocketChannel clientSocket;
+        private final ArrayDeque<ByteBuffer> output = new ArrayDeque<>();
+        private final Map<Integer, Header> accepted = new HashMap<>();
+        private SelectionKey key;
+        private ByteBuffer input = ByteBuffer.allocate(HEADER_BUFFER_SIZE);
+        private final HeaderView view = new HeaderView();
+        private final Metrics.FileTimer timer = new Metrics.FileTimer();
+        private State state = State.PREAMBLE;
+        private Header session;
+        private boolean closed;
+
+        private Header header;
+        private Path filePath;
+        private Validator validator;
+        private TransferEvents.FileReceived received;
+        private FileChannel fileChannel;
+        private BufferPool.Lease lease;
+        private ByteBuffer data;
+        private long writeTo;
+        private long unread;
+
+        Connection(Loop loop, SocketChannel clientSocket) {
+            this.loop = loop;
+            this.clientSocket = clientSocket;
+        }
+
+        void handle(SelectionKey key) {
+            try {
+                if (key.isValid() && key.isWritable()) {
+                    flushOutput();
+                }
+                if (key.isValid() && key.isReadable()) {
+                    if (state == State.CONTENT) {
+                        readContent();
+                    } else {
+                        readInput();
+                    }
+                }
+            } catch (Exception e) {
+                fail(e);
+            }
+        }
+
+        private void readInput() throws IOException {
+            if (clientSocket.read(input) < 0) {
+                if ((state != State.PREAMBLE && state != State.HEADER) || input.position() > 0) {
+                    throw new EOFException("Connection closed by sender.");
+                }
+                logger.debug("{} Closed by sender.", clientSocket);
+                close();
+                return;
+            }
+            parseInput();
+            if (!closed && state != State.CONTENT && !input.hasRemaining()) {
+                if (input.capacity() >= MAX_HEADER_BUFFER_SIZE) {
+                    throw new IllegalStateException("Message too long.");
+                }
+                input = ByteBuffer.allocate(input.capacity() * 2).put(input.flip());
+            }
+        }
+
+        /**
+         * Handles every complete message in the input buffer, leaving the rest for the next read.
+         */
+        private void parseInput() throws IOException {
+            input.flip();
+            try {
+                boolean parsed;
+                do {
+                    parsed = switch (state) {
+                        case PREAMBLE -> parsePreamble();
+                        case HEADER -> parseHeader();
+                        case SESSION -> parseMessage();
+                        case TRAILER -> parseTrailer();
+                        default -> false;
+                    };
+                } while (parsed && !closed);
+            } finally {
+                input.compact();
+            }
+            updateInterest();
+        }
+
+        private boolean parsePreamble() throws ProtocolException {
+            if (input.remaining() < Protocol.PREAMBLE_LENGTH) {
+                return false;
+            }
+            Protocol.checkPreamble(input);
+            state = State.HEADER;
+            return true;
+        }
+
+        private boolean parseHeader() throws ProtocolException {
+            if (Protocol.frameLength(input) < 0) {
+                return false;
+            }
+            timer.header();
+            header = view.wrap(input).toHeader();
+            if (header.isPipelined() && !header.isCompressed()) {
+                session = header;
+                state = State.SESSION;
+                send(new Acceptance(Acceptance.ACCEPTED, header.algorithm(), 0).encode());
+            } else if ((header.flags() & ~Header.TRAILING_CHECKSUM) == 0) {
+                state = State.DECIDING;
+                decide(header, null);
+            } else {
+                if (input.hasRemaining()) {
+                    throw new IllegalStateException("Unexpected data after header.");
+                }
+                handOff();
+            }
+            return true;
+        }
+
+        private boolean parseMessage() throws ProtocolException {
+            if (input.remaining() < Pipeline.MESSAGE_LENGTH) {
+                return false;
+            }
+            int start = input.position();
+            var type = input.get(start);
+            var requestId = input.getInt(start + Byte.BYTES);
+            if (type == Pipeline.HEADER) {
+                input.position(start + Pipeline.MESSAGE_LENGTH);
+                if (Protocol.frameLength(input) < 0) {
+                    input.position(start);
+                    return false;
+                }
+                decide(view.wrap(input).toHeader(), requestId);
+            } else if (type == Pipeline.END) {
+                input.position(start + Pipeline.MESSAGE_LENGTH);
+                var end = new Acceptance(Acceptance.ACCEPTED, session.algorithm(), 0);
+                session = null;
+                state = State.HEADER;
+                send(Pipeline.encodeResponse(Pipeline.END_ID, end));
+            } else {
+                input.position(start + Pipeline.MESSAGE_LENGTH);
+                var request = accepted.remove(requestId);
+                if (request == null) {
+                    throw new IllegalStateException("Data for unknown request: " + requestId);
+                }
+                startContent(request);
+            }
+            return true;
+        }
+
+        private boolean parseTrailer() {
+            if (input.remaining() < Short.BYTES || input.remaining() < Short.BYTES + input.getShort(input.position())) {
+                return false;
+            }
+            var checksum = new byte[input.getShort()];
+            input.get(checksum);
+            if (validator != null) {
+                validator.expect(checksum);
+            }
+            complete();
+            return true;
+        }
+
+        /**
+         * Asks the acceptor on a thread of its own, since it may block on a prompt. A null requestId
+         * answers a plain file, which then follows; otherwise the answer is a pipeline response.
+         */
+        private void decide(Header request, Integer requestId) {
+            long read = System.nanoTime();
+            var algorithm = ChecksumAlgorithm.negotiate(request, checksumAlgorithm);
+            waiting.execute(() -> {
+                try {
+                    boolean accept = TransferEvents.accept(acceptor, request.sender(), request.filePath(), request.fileLength());
+                    if (accept) {
+                        Files.createDirectories(targetDirectory.resolve(Wormhole.removeRoot(request.filePath())).getParent());
+                    }
+                    var acceptance = new Acceptance(accept ? Acceptance.ACCEPTED : Acceptance.REJECTED, algorithm, 0);
+                    loop.execute(() -> decided(request, requestId, acceptance, read));
+                } catch (Exception e) {
+                    loop.execute(() -> fail(e));
+                }
+            });
+        }
+
+        private void decided(Header request, Integer requestId, Acceptance acceptance, long read) {
+            if (closed) {
+                return;
+            }
+            try {
+                if (requestId != null) {
+                    if (acceptance.accepted()) {
+                        accepted.put(requestId, request);
+                    }
+                    send(Pipeline.encodeResponse(requestId, acceptance));
+                    Metrics.SHARED.answer.record(System.nanoTime() - read);
+                    return;
+                }
+                send(acceptance.encode());
+                timer.answered();
+                if (acceptance.accepted()) {
+                    input.flip();
+                    try {
+                        startContent(request);
+                    } finally {
+                        input.compact();
+                    }
+                } else {
+                    state = State.HEADER;
+                }
+                parseInput();
+            } catch (Exception e) {
+                fail(e);
+            }
+        }
+
+        private void startContent(Header request) {
+            header = request;
+            filePath = targetDirectory.resolve(Wormhole.removeRoot(request.filePath()));
+            var algorithm = ChecksumAlgorithm.negotiate(request, checksumAlgorithm);
+            validator = validate ? new Validator(algorithm) : null;
+            if (validator != null && !request.hasTrailingChecksum()) {
+                validator.expect(request.checksum());
+            }
+            writeTo = 0;
+            unread = request.fileLength();
+            received = new TransferEvents.FileReceived();
+            received.begin();
+            if (session != null) {
+                timer.content();
+            }
+            if (takeBuffer()) {
+                fillBuffer();
+            }
+        }
+
+        /**
+         * Leases a buffer for the content without waiting, since that would hold up the loop. If
+         * there is none the connection stays starved, not reading, and the loop tries again.
+         */
+        private boolean takeBuffer() {
+            lease = BufferPool.SHARED.tryLease(Math.min(chunkSize, CONNECTION_BUFFER_SIZE), true);
+            if (lease == null) {
+                if (state != State.STARVED) {
+                    state = State.STARVED;
+                    starving.incrementAndGet();
+                }
+                loop.starved.add(this);
+                return false;
+            }
+            if (state == State.STARVED) {
+                starving.decrementAndGet();
+            }
+            data = lease.buffer();
+            state = State.CONTENT;
+            return true;
+        }
+
+        private void leaseBuffer() {
+            if (closed || !takeBuffer()) {
+                return;
+            }
+            try {
+                input.flip();
+                try {
+                    fillBuffer();
+                } finally {
+                    input.compact();
+                }
+                updateInterest();
+            } catch (Exception e) {
+                fail(e);
+            }
+        }
+
+        /**
+         * Starts on the content with what is already in the flipped input.
+         */
+        private void fillBuffer() {
+            // A pipelined sender does not wait before the data, so some of it may already be in the input.
+            int buffered = (int) Math.min(unread, Math.min(input.remaining(), data.remaining()));
+            data.put(input.slice(input.position(), buffered));
+            input.position(input.position() + buffered);
+            unread -= buffered;
+            if (buffered > 0) {
+                timer.received(buffered);
+            }
+            if (unread == 0) {
+                timer.lastByte();
+            }
+            if (unread == 0 || !data.hasRemaining()) {
+                write();
+            }
+        }
+
+        private void readContent() throws IOException {
+            data.limit((int) Math.min(data.capacity(), data.position() + unread));
+            int read = clientSocket.read(data);
+            if (read < 0) {
+                throw new EOFException("Connection closed by sender.");
+            }
+            unread -= read;
+            timer.received(read);
+            if (unread == 0) {
+                timer.lastByte();
+            }
+            if (unread == 0 || !data.hasRemaining()) {
+                write();
+            }
+        }
+
+        /**
+         * Writes the buffered data on a disk thread. The connection does not read until it is done.
+         */
+        private void write() {
+            state = State.WRITING;
+            updateInterest();
+            data.flip();
+            boolean last = unread == 0;
+            disk.execute(() -> {
+                try {
+                    if (fileChannel == null) {
+                        logger.debug("Creating file at: <{}>", filePath);
+                        fileChannel = FileChannel.open(filePath, StandardOpenOption.CREATE,
+                                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                    }
+                    if (validator != null) {
+                        validator.update(data.duplicate());
+                    }
+                    var event = new TransferEvents.ChunkWritten();
+                    event.begin();
+                    long offset = writeTo;
+                    while (data.hasRemaining()) {
+                        writeTo += fileChannel.write(data, writeTo);
+                    }
+                    if (event.shouldCommit()) {
+                        event.offset = offset;
+                        event.bytes = writeTo - offset;
+                        event.commit();
+                    }
+                    if (last) {
+                        fileChannel.close();
+                        fileChannel = null;
+                    }
+                    loop.execute(this::written);
+                } catch (Exception e) {
+                    loop.execute(() -> {
+                        fail(e);
+                        release();
+                    });
+                }
+            });
+        }
+
+        private void written() {
+            if (closed) {
+                release();
+                return;
+            }
+            try {
+                if (unread > 0) {
+                    data.clear();
+                    state = State.CONTENT;
+                    updateInterest();
+                    return;
+                }
+                // The next file may be a while coming, so the buffer goes back to the pool.
+                returnBuffer();
+                if (header.hasTrailingChecksum()) {
+                    state = State.TRAILER;
+                    parseInput();
+                } else {
+                    complete();
+                    parseInput();
+                }
+            } catch (Exception e) {
+                fail(e);
+            }
+        }
+
+        private void complete() {
+            if (validator != null) {
+                validator.validate();
+            }
+            timer.completed(validator != null);
+            TransferEvents.received(received, filePath, writeTo, validator != null);
+            if (header.lastModified() > 0) {
+                try {
+                    Files.setLastModifiedTime(filePath, FileTime.fromMillis(header.lastModified()));
+                } catch (IOException e) {
+                    logger.warn("Could not set modification time of {}", filePath, e);
+                }
+            }
+            logger.debug("{} Received: {}, size: {}", clientSocket, filePath, writeTo);
+            state = session != null ? State.SESSION : State.HEADER;
+        }
+
+        private void send(byte[] message) {
+            output.add(ByteBuffer.wrap(message));
+            try {
+                flushOutput();
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        private void flushOutput() throws IOException {
+            while (!output.isEmpty()) {
+                clientSocket.write(output.peek());
+                if (output.peek().hasRemaining()) {
+                    break;
+                }
+                output.remove();
+            }
+            updateInterest();
+        }
+
+        private void updateInterest() {
+            if (closed || !key.isValid()) {
+                return;
+            }
+            int ops = state == State.WRITING || state == State.STARVED || state == State.HANDED_OFF ? 0 : SelectionKey.OP_READ;
+            if (!output.isEmpty()) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            key.interestOps(ops);
+        }
+
+        private void handOff() {
+            state = State.HANDED_OFF;
+            key.cancel();
+            loop.handoffs.add(this);
+        }
+
+        /**
+         * Serves the request in header on a thread of its own, then returns the connection to the loop.
+         */
+        private void serveBlocking() {
+            try {
+                clientSocket.configureBlocking(true);
+                if (!blocking.receiveRequest(clientSocket, header)) {
+                    loop.execute(this::close);
+                    return;
+                }
+                clientSocket.configureBlocking(false);
+                loop.execute(() -> {
+                    try {
+                        state = State.HEADER;
+                        key = clientSocket.register(loop.selector, SelectionKey.OP_READ, this);
+                    } catch (IOException e) {
+                        fail(e);
+                    }
+                });
+            } catch (Exception e) {
+                loop.execute(() -> fail(e));
+            }
+        }
+
+        private void fail(Exception e) {
+            if (!closed) {
+                logger.warn("Error receiving file.", e);
+                close();
+            }
+        }
+
+        private void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            --loop.connections;
+            admission.finished();
+            if (state == State.STARVED) {
+                starving.decrementAndGet();
+            }
+            try {
+                clientSocket.close();
+            } catch (IOException e) {
+                logger.debug("Error closing {}", clientSocket, e);
+            }
+            if (state != State.WRITING) {
+                release();
+            }
+        }
+
+        private void release() {
+            closeFile();
+            returnBuffer();
+        }
+
+        private void returnBuffer() {
+            if (lease != null) {
+                lease.close();
+                lease = null;
+                data = null;
+            }
+        }
+
+        private void closeFile() {
+            if (fileChannel != null) {
+                try {
+                    fileChannel.close();
+                } catch (IOException e) {
+                    logger.debug("Error closing {}", filePath, e);
+                }
+                fileChannel = null;
+            }
+        }
+    }
+
+    /**
+     * Number of threads that read from connections. Disk writes run on threadCount other threads.
+     */
+    public void setEventLoops(int eventLoops) {
+        this.eventLoops = eventLoops;
+    }
+
+    @Override
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+        blocking.setVirtualThreads(virtualThreads);
+    }
+
+    @Override
+    public void setSocketBuffer(int socketBuffer) {
+        this.socketBuffer = socketBuffer;
+    }
+
+    @Override
+    public void setAcceptors(int acceptors) {
+        this.acceptorCount = acceptors;
+    }
+
+    @Override
+    public void setMaxQueued(int maxQueued) {
+        admission.setMaxQueued(maxQueued);
+    }
+
+    @Override
+    public void setRetryAfter(int retryAfterMillis) {
+        admission.setRetryAfter(retryAfterMillis);
+    }
+
+    @Override
+    public AdmissionControl getAdmissionControl() {
+        return admission;
+    }
+
+    @Override
+    public void setTargetDirectory(Path targetDirectory) {
+        this.targetDirectory = targetDirectory;
+        blocking.setTargetDirectory(targetDirectory);
+    }
+
+    @Override
+    public void setAcceptor(SimpleBlockingReceiver.Acceptor acceptor) {
+        this.acceptor = acceptor;
+        blocking.setAcceptor(acceptor);
+    }
+
+    @Override
+    public void setChecksumAlgorithm(ChecksumAlgorithm checksumAlgorithm) {
+        this.checksumAlgorithm = checksumAlgorithm;
+        blocking.setChecksumAlgorithm(checksumAlgorithm);
+    }
+}
@@ -5,6 +5,116 @@ import java.io.File;
 public interface Sender {
     void send(File source, String host, int port);
 
+    void setChecksumMode(ChecksumMode checksumMode);
+
+    void setChecksumAlgorithm(ChecksumAlgorithm checksumAlgorithm);
+
+    /**
+     * Continue files the receiver already has part of, instead of sending them from the start.
+     */
+    void setResume(boolean resume);
+
+    /**
+     * When sending a directory, only send the files the receiver does not already have.
+     */
+    void setSyncMode(SyncMode syncMode);
+
+    /**
+     * A single file of at least twice this many bytes is split into stripes that are sent over
+     * several connections at once. Zero sends every file over one connection.
+     */
+    void setMinimumStripeSize(long minimumStripeSize);
+
+    /**
+     * When sending a directory, files smaller than this many bytes are sent in batches that
+     * share one acceptance round trip. Zero, the default, sends every file on its own. Batched
+     * files are not resumed or compressed, and are validated with a checksum per file in the
+     * batch's table whatever the checksum mode.
+     */
+    void setBatchThreshold(long batchThreshold);
+
+    /**
+     * When sending a directory, how many headers each connection may have waiting for an answer.
+     * One waits for every answer before sending the next header. Files sent with resume or
+     * chunk checksums always wait, because the receiver answers them with more than a yes or no.
+     */
+    void setWindow(int window);
+
+    /**
+     * Run each connection on a virtual thread, with the thread count bounding how many run at once.
+     */
+    void setVirtualThreads(boolean virtualThreads);
+
+    /**
+     * Compress the data of files that are sent whole or pipelined, each file only if a sample of
+     * it compresses. Batches, stripes and files sent with chunk checksums always go as they are.
+     */
+    void setCompression(Compression compression);
+
+    /**
+     * Let the throughput decide how many of the connections send at once and how much each
+     * write hands to the socket, with the thread count and chunk size as the most.
+     */
+    void setAutoTune(boolean autoTune);
+
+    /**
+     * Socket send buffer size in bytes, 0 to size it from the bandwidth or leave it to the system.
+     */
+    void setSocketBuffer(int socketBuffer);
+
+    /**
+     * Bandwidth of the link in bytes per second, 0 if unknown. With the round trip time it sizes
+     * the socket send buffer when no size is given.
+     */
+    void setBandwidth(long bandwidth);
+
     long getFilesTransferred();
     long getBytesTransferred();
+
+    /**
+     * How the files of the last directory sent were spread over its connections.
+     */
+    ConnectionLoads getConnectionLoads();
+
+    /**
+     * How far the current or last send got. It can be called from another thread while sending.
+     */
+    Progress getProgress();
+
+    /**
+     * Bytes of files written to the receiver, counted before compression, and files it took in
+     * this send, out of the bytes and files found to send so far, which are the totals once
+     * totalKnown. skippedBytes are those found that needed no sending, because the receiver
+     * kept them to resume or turned their files down, so bytes and skippedBytes together come
+     * to totalBytes at the end. connectionBytes are the bytes each connection of a directory
+     * transfer wrote.
+     */
+    record Progress(long bytes, long skippedBytes, long files, long totalBytes, long totalFiles, boolean totalKnown,
+                    long[] connectionBytes) {
+
+        /**
+         * Bytes that need no more sending.
+         */
+        long doneBytes() {
+            return bytes + skippedBytes;
+        }
+    }
+
+    enum ChecksumMode {
+        // Hash the whole file before sending it and put the checksum in the header.
+        HEADER,
+        // Hash the file while sending it and send the checksum after the data.
+        TRAILER,
+        // Send a checksum after every chunk so the receiver can verify and repair each chunk.
+        CHUNKS
+    }
+
+    enum SyncMode {
+        // Send every file.
+        NONE,
+        // Skip files the receiver has with the same length and modification time.
+        METADATA,
+        // Skip files the receiver has with the same length and checksum.
+        CHECKSUM
+    }
 }
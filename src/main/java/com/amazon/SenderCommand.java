@@ -16,7 +16,9 @@ import java.nio.file.Path;
 import java.time.Duration;
 
 import static com.amazon.Wormhole.DEFAULT_CHUNK_SIZE;
+import static com.amazon.Wormhole.DEFAULT_STRIPE_SIZE;
 import static com.amazon.Wormhole.DEFAULT_THREAD_COUNT;
+import static com.amazon.Wormhole.DEFAULT_WINDOW;
 
 @Command(name = "send", description = "...",
         mixinStandardHelpOptions = true)
@@ -43,8 +45,59 @@ public class SenderCommand implements Runnable {
     @Option(names = {"-v", "--validate"}, description = "Send checksum of transferred file for validation")
     boolean validate;
 
-    @Option(names = {"-t", "--threads"}, description = "Number of threads to use for sending files")
-    int threadCount = DEFAULT_THREAD_COUNT;
+    @Option(names = {"-m", "--checksum-mode"}, description = "Where checksums are sent: ${COMPLETION-CANDIDATES}")
+    Sender.ChecksumMode checksumMode = Sender.ChecksumMode.HEADER;
+
+    @Option(names = {"-a", "--checksum"}, description = "Checksum algorithm: ${COMPLETION-CANDIDATES}")
+    ChecksumAlgorithm checksumAlgorithm = ChecksumAlgorithm.MD5;
+
+    @Option(names = {"-R", "--resume"}, description = "Continue partially received files from where they stopped")
+    boolean resume;
+
+    @Option(names = {"-S", "--sync"}, description = "Only send files the receiver does not have: ${COMPLETION-CANDIDATES}")
+    Sender.SyncMode syncMode = Sender.SyncMode.NONE;
+
+    @Option(names = {"--stripe"}, description = "Send a file of at least twice this many bytes over several connections (0 disables)")
+    long minimumStripeSize = DEFAULT_STRIPE_SIZE;
+
+    @Option(names = {"--batch"}, description = "Send files smaller than this many bytes in batches, such as 262144 (default: 0, no batches). Batched files are not resumed or compressed, and carry a checksum per file that a receiver with validation checks whatever --checksum-mode says")
+    long batchThreshold;
+
+    @Option(names = {"--window"}, description = "Headers each connection may have waiting for the receiver (1 waits for each file)")
+    int window = DEFAULT_WINDOW;
+
+    @Option(names = {"--compress"}, description = "Compress files whose first block compresses: ${COMPLETION-CANDIDATES} (LZ for fast links, DEFLATE for slow ones)")
+    Compression compression = Compression.NONE;
+
+    @Option(names = {"-t", "--threads"}, description = "Number of threads to use for sending files (default: cores, or " + AutoTuner.DEFAULT_MAX_CONNECTIONS + " with --auto)")
+    Integer threadCount;
+
+    @Option(names = {"--auto"}, description = "Tune how many of --threads connections send and how much each write hands the socket, up to --chunk, from the throughput")
+    boolean autoTune = false;
+
+    @Option(names = {"--socket-buffer"}, description = "Socket send buffer in bytes (default: bandwidth times round trip with --bandwidth, otherwise the system's)")
+    int socketBuffer = 0;
+
+    @Option(names = {"--bandwidth"}, description = "Link bandwidth in bytes per second, to size socket buffers to the bandwidth delay product")
+    long bandwidth = 0;
+
+    @Option(names = {"--virtual-threads"}, description = "Run each connection on a virtual thread (Java 21+).")
+    boolean virtualThreads = false;
+
+    @Option(names = {"--rate"}, description = "Bytes per second all connections may send together (0 for no cap)")
+    long rate = 0;
+
+    @Option(names = {"--burst"}, description = "Bytes that may go at once after a pause when --rate caps sending (default: a tenth of a second's worth)")
+    long burst = 0;
+
+    @Option(names = {"--rate-file"}, description = "File holding the bytes per second and, optionally, the burst, read again every second it changed while sending; overrides --rate")
+    Path rateFile;
+
+    @Option(names = {"--buffer-memory"}, description = "Bytes all heap chunk buffers may take together; connections wait for buffers beyond it (default: half the heap)")
+    long bufferMemory = BufferPool.DEFAULT_LIMIT;
+
+    @Option(names = {"--direct-buffer-memory"}, description = "Bytes all direct chunk buffers may take together (default: half of the JVM's direct memory limit)")
+    long directBufferMemory = BufferPool.DEFAULT_DIRECT_LIMIT;
 
     @Option(names = {"-x", "--stats"}, description = "Write stats to file in CSV")
     Path statsFilePath;
@@ -52,22 +105,43 @@ public class SenderCommand implements Runnable {
     @Option(names = {"-p", "--repeat"}, description = "Repeat command N times.")
     int repeatCount = 1;
 
+    @Option(names = {"--progress"}, description = "Report progress every this many seconds while sending (0 disables)")
+    int progressSeconds;
+
+    @Option(names = {"--progress-json"}, description = "Report progress as a JSON object per line")
+    boolean progressJson;
+
     @Override
     @Command(name = "send")
     public void run() {
         // Try to get the address of the receiver so we know where to send the file
         var registration = getReceiverRegistration();
         var sender = getSender();
+        var rateWatch = rateFile != null ? RateLimiter.SHARED.watch(rateFile, 1000) : null;
         double elapsed = 0;
 
-        for (int i = 0; i < repeatCount; ++i) {
-            var start = System.nanoTime();
-            sender.send(fileToSend.toFile(), registration.address(), registration.port());
-            long end = System.nanoTime();
+        try {
+            for (int i = 0; i < repeatCount; ++i) {
+                var start = System.nanoTime();
+                var reporter = progressSeconds > 0
+                        ? ProgressReporter.start(sender::getProgress, progressSeconds * 1000L, progressJson, System.out) : null;
+                try {
+                    sender.send(fileToSend.toFile(), registration.address(), registration.port());
+                } finally {
+                    if (reporter != null) {
+                        reporter.close();
+                    }
+                }
+                long end = System.nanoTime();
 
-            elapsed = (end - start) / 1_000_000_000d;
-            String message = CommandLine.Help.Ansi.AUTO.string("@|bold,green Transfer completed: " + elapsed + "s. |@");
-            System.out.println(message);
+                elapsed = (end - start) / 1_000_000_000d;
+                String message = CommandLine.Help.Ansi.AUTO.string("@|bold,green Transfer completed: " + elapsed + "s. |@");
+                System.out.println(message);
+            }
+        } finally {
+            if (rateWatch != null) {
+                rateWatch.close();
+            }
         }
 
         if (statsFilePath != null) {
@@ -85,6 +159,8 @@ public class SenderCommand implements Runnable {
             writer.write(String.valueOf(transferred));
             writer.write(",");
             writer.write(String.valueOf(sender.getFilesTransferred()));
+            writer.write(",");
+            writer.write(String.valueOf(sender.getConnectionLoads().imbalance()));
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -98,6 +174,10 @@ public class SenderCommand implements Runnable {
                 elapsed, sender.getFilesTransferred(),
                 bytesTransferred.value, bytesTransferred.units, transferred,
                 transferRate.value, transferRate.units);
+        var loads = sender.getConnectionLoads();
+        if (loads.connections() > 0) {
+            System.out.printf("\tConnections: %s\n", loads);
+        }
     }
 
     record ByteUnit(long value, String units) {
@@ -120,11 +200,29 @@ public class SenderCommand implements Runnable {
     }
 
     private Sender getSender() {
-        System.out.printf("Use NIO? %s, Validate? %s, Chunk Size: %s, Threads: %s\n",
-                useDirect, validate, chunkSize, threadCount);
-        return useDirect
+        int threadCount = this.threadCount != null ? this.threadCount
+                : autoTune ? AutoTuner.DEFAULT_MAX_CONNECTIONS : DEFAULT_THREAD_COUNT;
+        System.out.printf("Use NIO? %s, Validate? %s (%s, %s), Chunk Size: %s, Threads: %s\n",
+                useDirect, validate, checksumAlgorithm, checksumMode, chunkSize, threadCount);
+        Sender sender = useDirect
                 ? new ChannelSender(senderName, chunkSize, threadCount, validate)
                 : new SimpleBlockingSender(senderName, chunkSize, threadCount, validate);
+        sender.setChecksumMode(checksumMode);
+        sender.setChecksumAlgorithm(checksumAlgorithm);
+        sender.setResume(resume);
+        sender.setSyncMode(syncMode);
+        sender.setMinimumStripeSize(minimumStripeSize);
+        sender.setBatchThreshold(batchThreshold);
+        sender.setWindow(window);
+        sender.setVirtualThreads(virtualThreads);
+        sender.setCompression(compression);
+        sender.setAutoTune(autoTune);
+        sender.setSocketBuffer(socketBuffer);
+        sender.setBandwidth(bandwidth);
+        BufferPool.SHARED.setLimit(bufferMemory);
+        BufferPool.SHARED.setDirectLimit(directBufferMemory);
+        RateLimiter.SHARED.setRate(rate, burst);
+        return sender;
     }
 
     private Registration getReceiverRegistration() {
@@ -4,14 +4,22 @@ import com.amazon.Wormhole.NamingThreadFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.EOFException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.ServerSocket;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.net.Socket;
-import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
@@ -26,12 +34,22 @@ public class SimpleBlockingReceiver implements Receiver {
     private final int threadCount;
     private Path targetDirectory;
     private Acceptor acceptor;
+    private ChecksumAlgorithm checksumAlgorithm;
     private volatile boolean shouldRun = true;
+    private ExecutorService verifiers;
+    private boolean virtualThreads;
+    private int socketBuffer;
+    private final AdmissionControl admission;
+    private volatile AcceptorGroup acceptors;
+    private int acceptorCount = 1;
+    private int ringBuffers = BufferRing.DEFAULT_BUFFERS;
+    private final Map<String, StripedFile> stripedFiles = new ConcurrentHashMap<>();
 
     public SimpleBlockingReceiver(int port, int chunkSize, int threadCount, boolean validate) {
         this.port = port;
         this.chunkSize = chunkSize;
         this.threadCount = threadCount;
+        this.admission = new AdmissionControl(threadCount);
         this.validate = validate;
     }
 
@@ -41,101 +59,490 @@ public class SimpleBlockingReceiver implements Receiver {
 
     public void stop() {
         shouldRun = false;
+        var acceptors = this.acceptors;
+        if (acceptors != null) {
+            acceptors.close();
+        }
     }
 
     @Override
     public void receive() {
-        var executor = Executors.newFixedThreadPool(threadCount, new NamingThreadFactory("rx"));
-        try (ServerSocket ss = new ServerSocket(port)) {
-            ss.setSoTimeout(100);
-            while (shouldRun) {
-                try {
-                    Socket clientSocket = ss.accept();
-                    executor.submit(() -> receiveFiles(clientSocket));
-                } catch (SocketTimeoutException ignore) {}
+        var executor = newExecutor("rx", threadCount, virtualThreads);
+        // Verifiers hash, so they stay platform threads and need no more of them than cores.
+        verifiers = Executors.newFixedThreadPool(virtualThreads ? DEFAULT_THREAD_COUNT : threadCount,
+                new NamingThreadFactory("verify"));
+        try (var acceptors = AcceptorGroup.open(port, acceptorCount, socketBuffer)) {
+            this.acceptors = acceptors;
+            if (shouldRun) {
+                acceptors.start((acceptor, channel) -> {
+                    var clientSocket = channel.socket();
+                    if (admission.admit(clientSocket)) {
+                        executor.submit(() -> admission.serve(() -> receiveFiles(clientSocket)));
+                    }
+                });
+                acceptors.await();
             }
-            logger.info("Receiver is done.");
+            logger.info("Receiver is done: {}", admission);
+        } catch (InterruptedException e) {
+            logger.info("Receiver was interrupted: {}", admission);
         } catch (IOException e) {
             throw new RuntimeException(e);
         } finally {
             executor.shutdown();
-            try {
-                while (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+            // Connections still being served hold buffers and files, so wait for them even if interrupted.
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    if (executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                        break;
+                    }
                     logger.info("Upload in progress");
+                } catch (InterruptedException e) {
+                    interrupted = true;
                 }
-            } catch (InterruptedException e) {
+            }
+            if (interrupted) {
                 Thread.currentThread().interrupt();
             }
+            verifiers.shutdown();
         }
     }
 
     private void receiveFiles(Socket clientSocket) {
-        boolean received;
-        do {
-            received = receiveFile(clientSocket);
-        } while (received && clientSocket.isConnected());
+        try (clientSocket;
+             var frameLease = BufferPool.SHARED.lease(Protocol.FRAME_PREFIX_LENGTH + Protocol.MAX_FRAME_LENGTH, false);
+             var lease = BufferPool.SHARED.lease(chunkSize, false)) {
+            var frame = frameLease.buffer();
+            try {
+                Protocol.checkPreamble(ByteBuffer.wrap(readFully(clientSocket.getInputStream(), Protocol.PREAMBLE_LENGTH)));
+            } catch (IOException e) {
+                logger.warn("{} Closing connection: {}", clientSocket, e.getMessage());
+                try {
+                    clientSocket.close();
+                } catch (IOException ignore) {}
+                return;
+            }
+            var view = new HeaderView();
+            var timer = new Metrics.FileTimer();
+            boolean received;
+            do {
+                received = receiveFile(clientSocket, frame, view, lease.buffer(), timer);
+            } while (received && clientSocket.isConnected());
+        } catch (IOException e) {
+            logger.debug("Error closing {}", clientSocket, e);
+        }
     }
 
-    private boolean receiveFile(Socket clientSocket) {
+    private boolean receiveFile(Socket clientSocket, ByteBuffer frame, HeaderView view, ByteBuffer buffer,
+                                Metrics.FileTimer timer) {
         try {
-            var validator = validate ? new Validator() : null;
-            byte[] headerBytes =  new byte[1024];
-            int read = clientSocket.getInputStream().read(headerBytes);
-            if (read <= 0) {
-                logger.debug("{} Did not read header: {}", clientSocket, read);
+            if (!readFrame(clientSocket.getInputStream(), frame)) {
+                logger.debug("{} Closed by sender.", clientSocket);
                 return false;
             }
+            timer.header();
 
-            Header header = Header.decode(headerBytes);
-            if (validator != null) {
-                validator.expect(header.checksum());
+            Header header = view.wrap(frame).toHeader();
+            if (header.isManifest()) {
+                receiveManifest(clientSocket, header);
+                return true;
+            }
+            if (header.isStriped()) {
+                receiveStripe(clientSocket, buffer.array(), header, timer);
+                return true;
+            }
+            if (header.isBatch()) {
+                receiveBatch(clientSocket, buffer.array(), header, timer);
+                return true;
             }
 
-            if (!acceptor.accept(header.sender(), header.filePath(), header.fileLength())) {
-                clientSocket.getOutputStream().write(0);
-            } else {
-                clientSocket.getOutputStream().write(1);
-                logger.debug("{} Accepted: {}", clientSocket, header);
+            if (header.isPipelined()) {
+                return receivePipelined(clientSocket, frame, view, buffer, header, timer);
+            }
+
+            var algorithm = ChecksumAlgorithm.negotiate(header, checksumAlgorithm);
+            var validator = newValidator(header, algorithm);
 
+            if (!TransferEvents.accept(acceptor, header.sender(), header.filePath(), header.fileLength())) {
+                clientSocket.getOutputStream().write(new Acceptance(Acceptance.REJECTED, algorithm, 0).encode());
+                timer.answered();
+            } else {
                 Path withoutRoot = Wormhole.removeRoot(header.filePath());
                 Path filePath = targetDirectory.resolve(withoutRoot);
                 Files.createDirectories(filePath.getParent());
 
+                long offset = ResumableFile.resumableLength(filePath, header);
+                clientSocket.getOutputStream().write(new Acceptance(Acceptance.ACCEPTED, algorithm, offset).encode());
+                timer.answered();
+                logger.debug("{} Accepted: {}", clientSocket, header);
+
                 InputStream upload = clientSocket.getInputStream();
-                try (FileOutputStream fout = new FileOutputStream(filePath.toFile())) {
-                    byte[] chunk = new byte[chunkSize];
-                    long remaining = header.fileLength();
-                    while (true) {
-                        long toRead = Math.min(remaining, chunkSize);
-                        read = upload.read(chunk, 0, (int) toRead);
-                        if (read <= 0) {
-                            break;
+                long writeTo = 0;
+                if (offset > 0) {
+                    var prefix = ResumableFile.hashPrefix(filePath, offset, algorithm, validator);
+                    clientSocket.getOutputStream().write(Header.encodeTrailer(prefix));
+                    writeTo = ByteBuffer.wrap(readFully(upload, Long.BYTES)).getLong();
+                    if (writeTo == 0 && validator != null) {
+                        // The sender did not recognise the partial file, it will send all of it.
+                        validator.reset();
+                    }
+                    logger.debug("{} Resuming {} at {} of {}", clientSocket, filePath, writeTo, offset);
+                }
+
+                receiveContent(upload, clientSocket.getOutputStream(), buffer, filePath, header, algorithm, validator, writeTo, timer);
+            }
+        } catch (IOException e) {
+            logger.warn("Error receiving file.", e);
+            throw new RuntimeException(e);
+        }
+        return true;
+    }
+
+    private Validator newValidator(Header header, ChecksumAlgorithm algorithm) {
+        var validator = validate && !header.hasChunkChecksums() ? new Validator(algorithm) : null;
+        if (validator != null && !header.hasTrailingChecksum()) {
+            validator.expect(header.checksum());
+        }
+        return validator;
+    }
+
+    private void receiveContent(InputStream upload, OutputStream response, ByteBuffer buffer, Path filePath, Header header,
+                                ChecksumAlgorithm algorithm, Validator validator, long writeTo,
+                                Metrics.FileTimer timer) throws IOException {
+        var event = new TransferEvents.FileReceived();
+        event.begin();
+        try (RandomAccessFile fout = new RandomAccessFile(filePath.toFile(), "rw")) {
+            fout.setLength(writeTo);
+            fout.seek(writeTo);
+            if (header.hasChunkChecksums()) {
+                receiveChunks(upload, response, fout.getChannel(), buffer.array(),
+                        filePath, header, algorithm, (int) (writeTo / header.blockSize()), timer);
+            } else if (header.isCompressed()) {
+                Compression.receive(upload, fout.getChannel(), writeTo, header.fileLength() - writeTo, validator);
+                timer.received(header.fileLength() - writeTo);
+            } else {
+                long remaining = header.fileLength() - writeTo;
+                var ring = new BufferRing(ringBuffers, buffer);
+                ring.start(fout.getChannel(), writeTo, remaining, validator);
+                try {
+                    while (remaining > 0) {
+                        var data = ring.take();
+                        int length = (int) Math.min(remaining, data.capacity());
+                        readChunk(upload, data.array(), data.arrayOffset(), length);
+                        timer.received(length);
+                        ring.put(data.limit(length));
+                        remaining -= length;
+                    }
+                } finally {
+                    ring.finish();
+                }
+            }
+        }
+        timer.lastByte();
+
+        if (header.hasTrailingChecksum()) {
+            var checksum = readTrailer(upload);
+            if (validator != null) {
+                validator.expect(checksum);
+            }
+        }
+
+        if (validator != null) {
+            validator.validate();
+        }
+        timer.completed(validator != null);
+        TransferEvents.received(event, filePath, header.fileLength() - writeTo, validator != null);
+        if (header.lastModified() > 0) {
+            Files.setLastModifiedTime(filePath, FileTime.fromMillis(header.lastModified()));
+        }
+
+        logger.debug("Received: {}, size: {}", filePath, header.fileLength());
+    }
+
+    /**
+     * Serves a connection whose sender keeps several headers in flight. Acceptor decisions are
+     * made on their own thread and answered as soon as they are known, tagged with the request
+     * id, while this thread keeps reading the data of files that were already accepted. Returns
+     * false if the sender closed the connection instead of ending the session.
+     */
+    private boolean receivePipelined(Socket clientSocket, ByteBuffer frame, HeaderView view, ByteBuffer buffer,
+                                     Header session, Metrics.FileTimer timer) throws IOException {
+        var upload = clientSocket.getInputStream();
+        var response = clientSocket.getOutputStream();
+        response.write(new Acceptance(Acceptance.ACCEPTED, session.algorithm(), 0).encode());
+        var accepted = new ConcurrentHashMap<Integer, Header>();
+        var decisions = Executors.newSingleThreadExecutor(new NamingThreadFactory("accept"));
+        try {
+            while (true) {
+                var message = upload.readNBytes(Pipeline.MESSAGE_LENGTH);
+                if (message.length == 0) {
+                    return false;
+                }
+                if (message.length != Pipeline.MESSAGE_LENGTH) {
+                    throw new EOFException("Connection closed by sender.");
+                }
+                var type = message[0];
+                var requestId = ByteBuffer.wrap(message, 1, Integer.BYTES).getInt();
+                if (type == Pipeline.END) {
+                    // Every header was answered before the sender drained its window.
+                    var end = new Acceptance(Acceptance.ACCEPTED, session.algorithm(), 0);
+                    response.write(Pipeline.encodeResponse(Pipeline.END_ID, end));
+                    return true;
+                } else if (type == Pipeline.HEADER) {
+                    if (!readFrame(upload, frame)) {
+                        throw new EOFException("Connection closed by sender.");
+                    }
+                    long read = System.nanoTime();
+                    var header = view.wrap(frame).toHeader();
+                    decisions.execute(() -> decide(response, requestId, header, accepted, read));
+                } else {
+                    var header = accepted.remove(requestId);
+                    if (header == null) {
+                        throw new IllegalStateException("Data for unknown request: " + requestId);
+                    }
+                    var algorithm = ChecksumAlgorithm.negotiate(header, checksumAlgorithm);
+                    var filePath = targetDirectory.resolve(Wormhole.removeRoot(header.filePath()));
+                    timer.content();
+                    receiveContent(upload, response, buffer, filePath, header, algorithm, newValidator(header, algorithm), 0, timer);
+                }
+            }
+        } finally {
+            decisions.shutdownNow();
+        }
+    }
+
+    /**
+     * Answers one pipelined request. A request that fails to be decided is rejected, and if the
+     * answer itself cannot be written the connection is closed, so the sender never waits on it.
+     */
+    private void decide(OutputStream response, int requestId, Header header, Map<Integer, Header> accepted, long read) {
+        var algorithm = ChecksumAlgorithm.negotiate(header, checksumAlgorithm);
+        var status = Acceptance.REJECTED;
+        try {
+            if (TransferEvents.accept(acceptor, header.sender(), header.filePath(), header.fileLength())) {
+                Files.createDirectories(targetDirectory.resolve(Wormhole.removeRoot(header.filePath())).getParent());
+                accepted.put(requestId, header);
+                status = Acceptance.ACCEPTED;
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Rejecting request {} for {}", requestId, header.filePath(), e);
+        }
+        try {
+            response.write(Pipeline.encodeResponse(requestId, new Acceptance(status, algorithm, 0)));
+            Metrics.SHARED.answer.record(System.nanoTime() - read);
+        } catch (IOException e) {
+            logger.warn("Error answering request {} for {}, closing the connection", requestId, header.filePath(), e);
+            try {
+                response.close();
+            } catch (IOException ignore) {}
+        }
+    }
+
+    private void receiveManifest(Socket clientSocket, Header header) throws IOException {
+        Manifest.receive(header, clientSocket.getInputStream(), clientSocket.getOutputStream(), targetDirectory, verifiers);
+    }
+
+    private void receiveBatch(Socket clientSocket, byte[] chunk, Header header, Metrics.FileTimer timer) throws IOException {
+        var upload = clientSocket.getInputStream();
+        var batch = FileBatch.receive(header, upload, clientSocket.getOutputStream(), acceptor, validate);
+        timer.answered();
+
+        // The files arrive back to back, so one read can hold the end of one file and the start of the next.
+        long unread = batch.length();
+        int start = 0;
+        int end = 0;
+        for (var entry : batch.files()) {
+            var filePath = batch.filePath(entry, targetDirectory);
+            var validator = batch.validator();
+            try (var fout = new FileOutputStream(filePath.toFile())) {
+                long remaining = entry.fileLength();
+                while (remaining > 0) {
+                    if (start == end) {
+                        start = 0;
+                        end = upload.read(chunk, 0, (int) Math.min(chunk.length, unread));
+                        if (end < 0) {
+                            throw new EOFException("Connection closed by sender.");
                         }
+                        unread -= end;
+                    }
+                    int length = (int) Math.min(end - start, remaining);
+                    timer.received(length);
+                    fout.write(chunk, start, length);
+                    if (validator != null) {
+                        validator.update(chunk, start, length);
+                    }
+                    start += length;
+                    remaining -= length;
+                }
+            }
+            batch.finish(entry, filePath, validator, timer);
+        }
+        logger.debug("{} Received {} of {} files in batch.", clientSocket, batch.files().size(), batch.listed());
+    }
 
-                        fout.write(chunk, 0, read);
-                        remaining -= read;
+    private void receiveStripe(Socket clientSocket, byte[] chunk, Header header, Metrics.FileTimer timer) throws IOException {
+        var algorithm = ChecksumAlgorithm.negotiate(header, checksumAlgorithm);
+        var upload = clientSocket.getInputStream();
+        StripedFile.receive(stripedFiles, header, algorithm, upload, clientSocket.getOutputStream(), acceptor,
+                targetDirectory, validate, timer, (fileChannel, position, length, validator) -> {
+                    long end = position + length;
+                    while (position < end) {
+                        int toRead = (int) Math.min(end - position, chunk.length);
+                        if (upload.readNBytes(chunk, 0, toRead) != toRead) {
+                            throw new EOFException("Connection closed by sender.");
+                        }
+                        timer.received(toRead);
                         if (validator != null) {
-                            validator.update(chunk, 0, read);
+                            validator.update(chunk, 0, toRead);
                         }
-                        if (remaining == 0) {
-                            break;
+                        var data = ByteBuffer.wrap(chunk, 0, toRead);
+                        while (data.hasRemaining()) {
+                            position += fileChannel.write(data, position);
                         }
                     }
-                }
+                });
+    }
 
-                if (validator != null) {
-                    validator.validate();
-                }
+    private void receiveChunks(InputStream upload, OutputStream response, FileChannel fileChannel, byte[] buffer,
+                               Path filePath, Header header, ChecksumAlgorithm algorithm, int firstChunk,
+                               Metrics.FileTimer timer) throws IOException {
+        var verifier = new ChunkVerifier(verifiers, filePath, algorithm);
+        for (int chunk = firstChunk; chunk < header.blockCount(); ++chunk) {
+            receiveChunk(upload, fileChannel, buffer, header, chunk, verifier, timer);
+        }
 
-                logger.debug("{} Received: {}, size: {}", clientSocket, filePath, header.fileLength());
+        for (int attempt = 0; ; ++attempt) {
+            int[] failures = validate ? verifier.awaitFailures() : new int[0];
+            if (failures.length > 0 && attempt == ChunkVerifier.MAX_REPAIRS) {
+                response.write(ChunkVerifier.encodeGaveUp());
+                throw new IllegalStateException("Invalid digest.");
+            }
+            response.write(ChunkVerifier.encodeRepairs(failures));
+            if (failures.length == 0) {
+                break;
+            }
+            logger.warn("Requesting {} chunks of {} again.", failures.length, filePath);
+            for (int chunk : failures) {
+                receiveChunk(upload, fileChannel, buffer, header, chunk, verifier, timer);
             }
-        } catch (IOException e) {
-            logger.warn("Error receiving file.", e);
-            throw new RuntimeException(e);
         }
+    }
+
+    private void receiveChunk(InputStream upload, FileChannel fileChannel, byte[] buffer,
+                              Header header, int chunk, ChunkVerifier verifier, Metrics.FileTimer timer) throws IOException {
+        long position = (long) chunk * header.blockSize();
+        long length = Math.min(header.blockSize(), header.fileLength() - position);
+        long writeTo = position;
+        while (writeTo < position + length) {
+            int toRead = (int) Math.min(buffer.length, position + length - writeTo);
+            if (upload.readNBytes(buffer, 0, toRead) != toRead) {
+                throw new EOFException("Connection closed by sender.");
+            }
+            timer.received(toRead);
+            var data = ByteBuffer.wrap(buffer, 0, toRead);
+            while (data.hasRemaining()) {
+                writeTo += fileChannel.write(data, writeTo);
+            }
+        }
+
+        var checksum = readTrailer(upload);
+        if (validate) {
+            verifier.submit(chunk, position, length, checksum);
+        }
+    }
+
+    private static byte[] readTrailer(InputStream upload) throws IOException {
+        var checksumLength = ByteBuffer.wrap(readFully(upload, Short.BYTES)).getShort();
+        return readFully(upload, checksumLength);
+    }
+
+    /**
+     * Reads the next header frame into the frame buffer. Returns false if the sender closed the
+     * connection before it.
+     */
+    private static boolean readFrame(InputStream upload, ByteBuffer frame) throws IOException {
+        var bytes = frame.array();
+        int read = upload.readNBytes(bytes, frame.arrayOffset(), Protocol.FRAME_PREFIX_LENGTH);
+        if (read == 0) {
+            return false;
+        }
+        if (read != Protocol.FRAME_PREFIX_LENGTH) {
+            throw new EOFException("Connection closed by sender.");
+        }
+        int length = Protocol.checkFrameLength(frame.getInt(0));
+        if (upload.readNBytes(bytes, frame.arrayOffset() + Protocol.FRAME_PREFIX_LENGTH, length) != length) {
+            throw new EOFException("Connection closed by sender.");
+        }
+        frame.clear().limit(Protocol.FRAME_PREFIX_LENGTH + length);
         return true;
     }
 
+    private static byte[] readFully(InputStream upload, int length) throws IOException {
+        byte[] bytes = upload.readNBytes(length);
+        if (bytes.length != length) {
+            throw new EOFException("Connection closed by sender.");
+        }
+        return bytes;
+    }
+
+    /**
+     * Reads length bytes into chunk at offset, recording a SocketStall for each read that waited
+     * long. A read returns as soon as there is something to read, so that is the wait for the
+     * socket to become readable rather than for the whole chunk to arrive.
+     */
+    private static void readChunk(InputStream upload, byte[] chunk, int offset, int length) throws IOException {
+        for (int end = offset + length; offset < end; ) {
+            var stall = new TransferEvents.SocketStall();
+            stall.begin();
+            int read = upload.read(chunk, offset, end - offset);
+            if (read < 0) {
+                throw new EOFException("Connection closed by sender.");
+            }
+            if (stall.shouldCommit()) {
+                stall.bytes = read;
+                stall.commit();
+            }
+            offset += read;
+        }
+    }
+
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    @Override
+    public void setSocketBuffer(int socketBuffer) {
+        this.socketBuffer = socketBuffer;
+    }
+
+    @Override
+    public void setAcceptors(int acceptors) {
+        this.acceptorCount = acceptors;
+    }
+
+    @Override
+    public void setMaxQueued(int maxQueued) {
+        admission.setMaxQueued(maxQueued);
+    }
+
+    @Override
+    public void setRetryAfter(int retryAfterMillis) {
+        admission.setRetryAfter(retryAfterMillis);
+    }
+
+    @Override
+    public AdmissionControl getAdmissionControl() {
+        return admission;
+    }
+
+    /**
+     * How many buffers each connection reads into while earlier ones are written and validated.
+     * They share one chunk of memory, and one buffer reads and writes in turn.
+     */
+    public void setRingBuffers(int ringBuffers) {
+        this.ringBuffers = ringBuffers;
+    }
+
     public void setTargetDirectory(Path targetDirectory) {
         this.targetDirectory = targetDirectory;
     }
@@ -143,4 +550,8 @@ public class SimpleBlockingReceiver implements Receiver {
     public void setAcceptor(Acceptor acceptor) {
         this.acceptor = acceptor;
     }
+
+    public void setChecksumAlgorithm(ChecksumAlgorithm checksumAlgorithm) {
+        this.checksumAlgorithm = checksumAlgorithm;
+    }
 }
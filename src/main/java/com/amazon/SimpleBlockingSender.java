@@ -3,14 +3,24 @@ package com.amazon;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.LongAdder;
 
 import static com.amazon.Wormhole.*;
@@ -21,8 +31,30 @@ public class SimpleBlockingSender implements Sender {
     private final int chunkSize;
     private final boolean validate;
     private final int threadCount;
+    private ChecksumMode checksumMode = ChecksumMode.HEADER;
+    private ChecksumAlgorithm checksumAlgorithm = ChecksumAlgorithm.MD5;
+    private boolean resume;
+    private SyncMode syncMode = SyncMode.NONE;
+    private long minimumStripeSize = DEFAULT_STRIPE_SIZE;
+    private long batchThreshold;
+    private int window = DEFAULT_WINDOW;
+    private boolean virtualThreads;
+    private Compression compression = Compression.NONE;
+    private boolean autoTune;
+    private int socketBuffer;
+    private long bandwidth;
+    private AutoTuner tuner;
     private final LongAdder filesTransferred = new LongAdder();
     private final LongAdder bytesTransferred = new LongAdder();
+    // Bytes handed to sockets so far, counted as they go rather than per file.
+    private final LongAdder bytesSent = new LongAdder();
+    // Bytes of files sent in this send, before compression, and of files or parts of files it did not need to send.
+    private final LongAdder progressBytes = new LongAdder();
+    private final LongAdder skippedBytes = new LongAdder();
+    private volatile File source;
+    private volatile DirectoryScanner scanner;
+    private volatile long startFiles;
+    private final ConnectionLoads connectionLoads = new ConnectionLoads();
 
     public SimpleBlockingSender(String sender, int chunkSize, int threadCount, boolean validate) {
         this.senderName = sender;
@@ -35,6 +67,66 @@ public class SimpleBlockingSender implements Sender {
         this(sender, DEFAULT_CHUNK_SIZE, DEFAULT_THREAD_COUNT, true);
     }
 
+    @Override
+    public void setChecksumMode(ChecksumMode checksumMode) {
+        this.checksumMode = checksumMode;
+    }
+
+    @Override
+    public void setChecksumAlgorithm(ChecksumAlgorithm checksumAlgorithm) {
+        this.checksumAlgorithm = checksumAlgorithm;
+    }
+
+    @Override
+    public void setResume(boolean resume) {
+        this.resume = resume;
+    }
+
+    @Override
+    public void setSyncMode(SyncMode syncMode) {
+        this.syncMode = syncMode;
+    }
+
+    @Override
+    public void setMinimumStripeSize(long minimumStripeSize) {
+        this.minimumStripeSize = minimumStripeSize;
+    }
+
+    @Override
+    public void setBatchThreshold(long batchThreshold) {
+        this.batchThreshold = batchThreshold;
+    }
+
+    @Override
+    public void setWindow(int window) {
+        this.window = window;
+    }
+
+    @Override
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    @Override
+    public void setCompression(Compression compression) {
+        this.compression = compression;
+    }
+
+    @Override
+    public void setAutoTune(boolean autoTune) {
+        this.autoTune = autoTune;
+    }
+
+    @Override
+    public void setSocketBuffer(int socketBuffer) {
+        this.socketBuffer = socketBuffer;
+    }
+
+    @Override
+    public void setBandwidth(long bandwidth) {
+        this.bandwidth = bandwidth;
+    }
+
     @Override
     public long getFilesTransferred() {
         return filesTransferred.longValue();
@@ -45,27 +137,105 @@ public class SimpleBlockingSender implements Sender {
         return bytesTransferred.longValue();
     }
 
+    /**
+     * Counts file bytes written to the receiver, for progress, the tuner and the process metrics.
+     */
+    private void sent(long bytes) {
+        progressBytes.add(bytes);
+        wrote(bytes);
+    }
+
+    /**
+     * Counts bytes written to the receiver that progress counts otherwise: compressed blocks,
+     * whose file bytes it counts as each goes out, and chunks sent again.
+     */
+    private void wrote(long bytes) {
+        bytesSent.add(bytes);
+        ConnectionLoads.sent(bytes);
+        Metrics.SHARED.sentBytes.add(bytes);
+    }
+
+    /**
+     * Counts file bytes there was no need to send, because the receiver kept them to resume or
+     * turned their file down, as done for progress.
+     */
+    private void skipped(long bytes) {
+        skippedBytes.add(bytes);
+    }
+
+    private void transferred(long files) {
+        filesTransferred.add(files);
+        Metrics.SHARED.sentFiles.add(files);
+    }
+
+    @Override
+    public ConnectionLoads getConnectionLoads() {
+        return connectionLoads;
+    }
+
+    @Override
+    public Progress getProgress() {
+        long bytes = progressBytes.sum();
+        long skipped = skippedBytes.sum();
+        long files = filesTransferred.sum() - startFiles;
+        var scanner = this.scanner;
+        if (scanner != null) {
+            return new Progress(bytes, skipped, files, scanner.foundBytes(), scanner.found(), scanner.isScanned(),
+                    connectionLoads.sent());
+        }
+        var source = this.source;
+        return new Progress(bytes, skipped, files, source != null ? source.length() : 0, source != null ? 1 : 0,
+                source != null, new long[0]);
+    }
+
     @Override
     public void send(File source, String host, int port) {
-        if (!source.isDirectory()) {
-            sendSingle(source, host, port);
-        } else {
-            try {
+        tuner = new AutoTuner(autoTune, threadCount, chunkSize);
+        tuner.setSocketBuffer(socketBuffer);
+        tuner.setBandwidth(bandwidth);
+        tuner.start(bytesSent::sum);
+        progressBytes.reset();
+        skippedBytes.reset();
+        startFiles = filesTransferred.sum();
+        this.scanner = null;
+        this.source = source;
+        try {
+            if (!source.isDirectory()) {
+                sendSingle(source, host, port);
+            } else {
                 sendMultiple(source, host, port);
-            } catch (IOException e) {
-                throw new RuntimeException(e);
             }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            tuner.close();
         }
     }
 
     private void sendMultiple(File source, String host, int port) throws IOException {
-        var queue = new LinkedBlockingDeque<File>();
-        queue.addLast(source);
+        DirectoryScanner scanner;
+        DirectoryScanner candidates = null;
+        Manifest.Stream manifest = null;
+        if (syncMode == SyncMode.NONE) {
+            scanner = DirectoryScanner.walk(source);
+        } else {
+            // Workers exchange the manifest on their own connections as candidates are found.
+            var algorithm = syncMode == SyncMode.CHECKSUM ? checksumAlgorithm : null;
+            candidates = DirectoryScanner.walk(source);
+            scanner = DirectoryScanner.fed(DirectoryScanner.DEFAULT_CAPACITY);
+            manifest = new Manifest.Stream(candidates, scanner, source, senderName, algorithm);
+        }
+        connectionLoads.reset();
+        this.scanner = scanner;
+        var stream = manifest;
+        var connected = new AtomicInteger();
+        var workers = new ArrayList<Future<?>>();
         ExecutorService executor = null;
         try  {
-            executor = Executors.newFixedThreadPool(threadCount, new NamingThreadFactory("tx"));
+            executor = newExecutor("tx", threadCount, virtualThreads);
             for (int i = 0; i < threadCount; ++i) {
-                executor.submit(() -> processWork(queue, host, port));
+                int worker = i;
+                workers.add(executor.submit(() -> processWork(worker, scanner, stream, host, port, connected)));
             }
         } finally {
             if (executor != null) {
@@ -78,42 +248,113 @@ public class SimpleBlockingSender implements Sender {
                     Thread.currentThread().interrupt();
                 }
             }
+            scanner.close();
+            if (candidates != null) {
+                candidates.close();
+            }
+        }
+        for (var worker : workers) {
+            try {
+                worker.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
         }
+        logger.debug("Sent {}", connectionLoads);
     }
 
-    private void processWork(LinkedBlockingDeque<File> files, String host, int port) {
+    /**
+     * Sends files until there are none left. The worker connects before taking its first file,
+     * and if the receiver turns it away while other workers are connected it leaves the files
+     * to them. With a manifest, it exchanges batches of it between files when none are waiting.
+     */
+    private void processWork(int worker, DirectoryScanner files, Manifest.Stream manifest, String host, int port,
+                             AtomicInteger connected) {
         Socket socket = null;
-        byte[] chunk = new byte[chunkSize];
+        var lease = BufferPool.SHARED.lease(chunkSize, false);
+        byte[] chunk = lease.array();
+        var batch = new FileBatch();
+        Pipeline pipeline = null;
+        var load = connectionLoads.open();
+        load.bind();
         try {
             while (true) {
                 try {
-                    File file = files.pollLast(10, TimeUnit.MILLISECONDS);
+                    if (pipeline != null) {
+                        pipeline.ready();
+                    }
+                    tuner.awaitTurn(worker, files);
+                    if (socket == null) {
+                        if (files.isDrained()) {
+                            break;
+                        }
+                        try {
+                            socket = Protocol.admitted(() -> tuner.connect(host, port),
+                                    () -> connected.get() > 0 || files.isDrained());
+                        } catch (ReceiverBusyException e) {
+                            if (connected.get() == 0 && !files.isDrained()) {
+                                throw e;
+                            }
+                            logger.info("Receiver is busy, leaving the files to the other {} connections.", connected.get());
+                            break;
+                        }
+                        connected.incrementAndGet();
+                    }
+                    if (manifest != null) {
+                        var inFlight = pipeline;
+                        if (manifest.exchange(socket.getOutputStream(), socket.getInputStream(), () -> {
+                            if (inFlight != null) {
+                                inFlight.finish();
+                            }
+                        })) {
+                            pipeline = null;
+                            continue;
+                        }
+                    }
+                    File file = files.take();
                     if (file == null) {
                         break;
                     }
+                    load.add(file.length());
 
-                    if (!file.isDirectory()) {
-                        if (socket == null) {
-                            socket = new Socket(host, port);
-                        }
-                        transfer(file, socket, chunk);
-                    } else {
-                        File[] children = file.listFiles();
-                        if (children != null && children.length > 0) {
-                            for (var child : children) {
-                                files.addLast(child);
+                    if (file.length() < batchThreshold) {
+                        batch.add(file);
+                        if (batch.isFull(chunkSize)) {
+                            if (pipeline != null) {
+                                pipeline.finish();
+                                pipeline = null;
                             }
+                            transferBatch(batch, socket, chunk);
+                        }
+                    } else if (isPipelined()) {
+                        if (pipeline == null) {
+                            pipeline = new Pipeline(new PipelineConnection(socket, chunk), window, senderName,
+                                    compression != Compression.NONE);
                         }
+                        pipeline.offer(file, header(file));
+                    } else {
+                        transfer(file, socket, chunk);
                     }
                 } catch (InterruptedException e) {
                     Thread.currentThread().interrupt();
                     break;
                 }
             }
+            if (pipeline != null) {
+                pipeline.finish();
+            }
+            if (!batch.isEmpty()) {
+                transferBatch(batch, socket, chunk);
+            }
         } catch (IOException e) {
             throw new RuntimeException(e);
         } finally {
+            load.finish();
+            lease.close();
             if (socket != null) {
+                connected.decrementAndGet();
                 try {
                     socket.close();
                 } catch (IOException ignore) {}
@@ -121,40 +362,393 @@ public class SimpleBlockingSender implements Sender {
         }
     }
 
+    private boolean isPipelined() {
+        return window > 1 && !resume && !(validate && checksumMode == ChecksumMode.CHUNKS);
+    }
+
+    private void transferBatch(FileBatch batch, Socket s, byte[] chunk) throws IOException {
+        try {
+            var table = batch.table(checksumAlgorithm);
+            var header = FileBatch.header(senderName, checksumAlgorithm, table);
+            logger.debug("Sending batch of {} files: {}", batch.size(), header);
+            s.getOutputStream().write(header.encode());
+            var acceptance = Acceptance.decode(ByteBuffer.wrap(readFully(s.getInputStream(), Acceptance.LENGTH)));
+            if (!acceptance.accepted()) {
+                logger.warn("Cannot proceed with uploaded.");
+                skipped(batch.length());
+                return;
+            }
+            s.getOutputStream().write(table);
+
+            var length = ByteBuffer.wrap(readFully(s.getInputStream(), Integer.BYTES)).getInt();
+            var accepted = BitSet.valueOf(readFully(s.getInputStream(), length));
+            // Small files are gathered into the chunk so they do not go out one write each.
+            var out = s.getOutputStream();
+            long total = 0;
+            int gathered = 0;
+            for (int i = accepted.nextSetBit(0); i >= 0; i = accepted.nextSetBit(i + 1)) {
+                var content = batch.content(i);
+                if (gathered + content.length > chunkSize) {
+                    write(out, chunk, gathered);
+                    gathered = 0;
+                }
+                if (content.length > chunkSize) {
+                    write(out, content, content.length);
+                } else {
+                    System.arraycopy(content, 0, chunk, gathered, content.length);
+                    gathered += content.length;
+                }
+                total += content.length;
+            }
+            write(out, chunk, gathered);
+            skipped(batch.length() - total);
+            logger.debug("Batch complete: {} of {} files accepted.", accepted.cardinality(), batch.size());
+            transferred(accepted.cardinality());
+            bytesTransferred.add(total);
+        } finally {
+            batch.clear();
+        }
+    }
+
+    /**
+     * Writes the first length bytes of data at the pace the shared RateLimiter allows.
+     */
+    private void write(OutputStream out, byte[] data, int length) throws IOException {
+        for (int written = 0; written < length; ) {
+            int count = RateLimiter.SHARED.limit(length - written);
+            RateLimiter.SHARED.acquire(count);
+            out.write(data, written, count);
+            sent(count);
+            written += count;
+        }
+    }
+
     private void sendSingle(File source, String host, int port) {
-        try (Socket s = new Socket(host, port)) {
-            transfer(source, s, new byte[chunkSize]);
+        long stripeSize = StripedFile.stripeSize(source.length(), threadCount, minimumStripeSize, chunkSize);
+        if (stripeSize > 0) {
+            sendStriped(source, host, port, stripeSize);
+            return;
+        }
+        try (Socket s = Protocol.admitted(() -> tuner.connect(host, port), () -> false);
+             var lease = BufferPool.SHARED.lease(chunkSize, false)) {
+            transfer(source, s, lease.array());
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    private void sendStriped(File source, String host, int port, long stripeSize) {
+        var flags = validate ? Header.STRIPED | Header.TRAILING_CHECKSUM : Header.STRIPED;
+        var header = new Header(senderName, source.getAbsolutePath(), source.length(),
+                checksumAlgorithm, StripedFile.newSendId(), flags, (int) stripeSize, source.lastModified());
+        logger.debug("Sending {} in {} stripes: {}", source, header.blockCount(), header);
+        var nextStripe = new AtomicInteger();
+        var accepted = new AtomicBoolean();
+        var executor = newExecutor("tx", threadCount, virtualThreads);
+        try {
+            var uploads = new ArrayList<Future<?>>();
+            var connected = new AtomicInteger();
+            for (int i = 0; i < Math.min(threadCount, header.blockCount()); ++i) {
+                uploads.add(executor.submit(() -> sendStripes(source, host, port, header, nextStripe, accepted, connected)));
+            }
+            for (var upload : uploads) {
+                upload.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+
+        if (accepted.get()) {
+            logger.debug("Upload complete: {}", header.filePath());
+            transferred(1);
+        } else {
+            logger.warn("Cannot proceed with uploaded.");
+        }
+    }
+
+    private Void sendStripes(File source, String host, int port, Header header, AtomicInteger nextStripe,
+                             AtomicBoolean accepted, AtomicInteger connected) throws IOException {
+        Socket socket;
+        try {
+            socket = Protocol.admitted(() -> tuner.connect(host, port), () -> connected.get() > 0);
+        } catch (ReceiverBusyException e) {
+            if (connected.get() == 0) {
+                throw e;
+            }
+            logger.info("Receiver is busy, leaving the stripes to the other {} connections.", connected.get());
+            return null;
+        }
+        connected.incrementAndGet();
+        try (var s = socket; var fin = new FileInputStream(source);
+             var lease = BufferPool.SHARED.lease(chunkSize, false)) {
+            byte[] chunk = lease.array();
+            int stripe;
+            while ((stripe = nextStripe.getAndIncrement()) < header.blockCount()) {
+                // A rejected stripe is still offered so the receiver can count every stripe of the file.
+                s.getOutputStream().write(header.encode());
+                var acceptance = Acceptance.decode(ByteBuffer.wrap(readFully(s.getInputStream(), Acceptance.LENGTH)));
+                if (!acceptance.accepted()) {
+                    skipped(Math.min(header.blockSize(), header.fileLength() - (long) stripe * header.blockSize()));
+                    continue;
+                }
+                accepted.set(true);
+                s.getOutputStream().write(ByteBuffer.allocate(Integer.BYTES).putInt(stripe).array());
+                var digester = header.hasTrailingChecksum() ? hasher(acceptance.algorithm()) : null;
+                sendChunk(fin.getChannel(), s, header, stripe, digester, chunk, false);
+                bytesTransferred.add(Math.min(header.blockSize(), header.fileLength() - (long) stripe * header.blockSize()));
+            }
+        } finally {
+            connected.decrementAndGet();
+        }
+        return null;
+    }
+
+    private Header header(File source) {
+        var streaming = validate && checksumMode == ChecksumMode.TRAILER;
+        var chunked = validate && checksumMode == ChecksumMode.CHUNKS;
+        var checksum = validate && checksumMode == ChecksumMode.HEADER ? hash(source, checksumAlgorithm) : null;
+        var flags = streaming ? Header.TRAILING_CHECKSUM : chunked ? Header.CHUNK_CHECKSUMS : 0;
+        if (resume) {
+            flags |= Header.RESUME;
+        }
+        if (!chunked && compression.compresses(source)) {
+            flags |= Header.COMPRESSED;
+        }
+        return new Header(senderName, source.getAbsolutePath(), source.length(),
+                checksumAlgorithm, checksum, flags, chunkSize, source.lastModified());
+    }
+
     private void transfer(File source, Socket s, byte[] chunk) {
+        var event = new TransferEvents.FileSent();
+        event.begin();
         try (var fin = new FileInputStream(source)) {
-            var checksum = validate ? hash(source) : null;
-            var header = new Header(senderName, source.getAbsolutePath(), source.length(), checksum);
+            var header = header(source);
             byte[] encoded = header.encode();
             logger.debug("Sending upload request: {} {}", encoded.length, header);
             s.getOutputStream().write(encoded);
 
             // Wait for response for receiver to proceed.
-            int proceed = s.getInputStream().read();
-            if (proceed != 1) {
+            byte[] proceed = s.getInputStream().readNBytes(Acceptance.LENGTH);
+            if (proceed.length != Acceptance.LENGTH) {
+                logger.warn("Receiver closed connection before responding.");
+                return;
+            }
+            var acceptance = Acceptance.decode(ByteBuffer.wrap(proceed));
+            if (!acceptance.accepted()) {
                 logger.warn("Cannot proceed with uploaded.");
+                skipped(header.fileLength());
                 return;
             }
 
-            int transferred = 0;
-            int read;
-            while ((read = fin.read(chunk)) != -1) {
-                s.getOutputStream().write(chunk, 0, read);
-                transferred += read;
+            long startAt = resumeFrom(fin.getChannel(), s, header, acceptance);
+            skipped(startAt);
+            if (header.hasChunkChecksums()) {
+                sendChunks(fin.getChannel(), s, header, acceptance.algorithm(), chunk, (int) (startAt / header.blockSize()));
+                logger.debug("Upload complete: {}", header.filePath());
+                transferred(1);
+                bytesTransferred.add(source.length() - startAt);
+                return;
             }
-            logger.debug("Upload complete: {}", header.filePath());
-            filesTransferred.increment();
-            bytesTransferred.add(source.length());
+            sendContent(fin, s, header, acceptance, startAt, chunk);
         } catch (IOException e) {
             throw new RuntimeException(e);
+        } finally {
+            TransferEvents.sent(event, source);
+        }
+    }
+
+    private void sendContent(FileInputStream fin, Socket s, Header header, Acceptance acceptance, long startAt,
+                             byte[] chunk) throws IOException {
+        var hasher = header.hasTrailingChecksum() ? hasher(acceptance.algorithm()) : null;
+        int read;
+        if (hasher != null) {
+            // The trailer covers the whole file, including the part the receiver kept.
+            long skipped = 0;
+            while (skipped < startAt && (read = fin.read(chunk, 0, (int) Math.min(chunk.length, startAt - skipped))) != -1) {
+                hasher.update(chunk, 0, read);
+                skipped += read;
+            }
+        } else {
+            fin.getChannel().position(startAt);
+        }
+
+        if (header.isCompressed()) {
+            long sent = compression.send(fin.getChannel(), startAt, header.fileLength(), hasher, s.getOutputStream(),
+                    progressBytes::add);
+            wrote(sent);
+            logger.debug("Compressed {} bytes of {} to {}", header.fileLength() - startAt, header.filePath(), sent);
+        } else {
+            long remaining = header.fileLength() - startAt;
+            while (remaining > 0) {
+                var chunkRead = new TransferEvents.ChunkRead();
+                chunkRead.begin();
+                read = fin.read(chunk, 0, RateLimiter.SHARED.limit((int) Math.min(tuner.chunkSize(), remaining)));
+                if (read == -1) {
+                    throw new EOFException("File was truncated while sending: " + header.filePath());
+                }
+                if (chunkRead.shouldCommit()) {
+                    chunkRead.path = header.filePath();
+                    chunkRead.offset = header.fileLength() - remaining;
+                    chunkRead.bytes = read;
+                    chunkRead.commit();
+                }
+                RateLimiter.SHARED.acquire(read);
+                var stall = new TransferEvents.SocketStall();
+                stall.begin();
+                s.getOutputStream().write(chunk, 0, read);
+                if (stall.shouldCommit()) {
+                    stall.sending = true;
+                    stall.bytes = read;
+                    stall.commit();
+                }
+                sent(read);
+                if (hasher != null) {
+                    hasher.update(chunk, 0, read);
+                }
+                remaining -= read;
+            }
+        }
+        if (hasher != null) {
+            s.getOutputStream().write(Header.encodeTrailer(hasher.digest()));
+        }
+        logger.debug("Upload complete: {}", header.filePath());
+        transferred(1);
+        bytesTransferred.add(header.fileLength() - startAt);
+    }
+
+    /**
+     * The pipelined requests of one worker, sent over the same connection as its other requests.
+     */
+    private class PipelineConnection implements Pipeline.Connection {
+        private final Socket socket;
+        private final byte[] chunk;
+
+        PipelineConnection(Socket socket, byte[] chunk) {
+            this.socket = socket;
+            this.chunk = chunk;
+        }
+
+        @Override
+        public void send(ByteBuffer message) throws IOException {
+            socket.getOutputStream().write(message.array(), message.position(), message.remaining());
+        }
+
+        @Override
+        public boolean receive(ByteBuffer response) throws IOException {
+            var bytes = socket.getInputStream().readNBytes(response.remaining());
+            if (bytes.length == 0) {
+                return false;
+            }
+            if (bytes.length != response.remaining()) {
+                throw new EOFException("Connection closed by receiver.");
+            }
+            response.put(bytes).flip();
+            return true;
+        }
+
+        @Override
+        public void sendData(int requestId, File file, Header header, Acceptance acceptance) throws IOException {
+            send(ByteBuffer.allocate(Pipeline.MESSAGE_LENGTH).put(Pipeline.DATA).putInt(requestId).flip());
+            try (var fin = new FileInputStream(file)) {
+                sendContent(fin, socket, header, acceptance, 0, chunk);
+            }
+        }
+
+        @Override
+        public void rejected(Header header) {
+            skipped(header.fileLength());
+        }
+    }
+
+    /**
+     * Agrees with the receiver where the upload starts. The receiver reports how much of the
+     * file it already has along with a checksum of those bytes; the sender keeps that part
+     * only if the checksum matches its own copy.
+     */
+    private long resumeFrom(FileChannel channel, Socket s, Header header, Acceptance acceptance) throws IOException {
+        if (acceptance.offset() == 0) {
+            return 0;
+        }
+
+        var prefixLength = ByteBuffer.wrap(readFully(s.getInputStream(), Short.BYTES)).getShort();
+        var prefix = readFully(s.getInputStream(), prefixLength);
+
+        long startAt = acceptance.offset();
+        if (!Arrays.equals(prefix, hash(channel, 0, startAt, acceptance.algorithm()))) {
+            logger.warn("Receiver has a different version of {}, sending all of it.", header.filePath());
+            startAt = 0;
+        }
+        s.getOutputStream().write(ByteBuffer.allocate(Long.BYTES).putLong(startAt).array());
+        logger.debug("Resuming {} at {}", header.filePath(), startAt);
+        return startAt;
+    }
+
+    private void sendChunks(FileChannel channel, Socket s, Header header, ChecksumAlgorithm algorithm, byte[] chunk,
+                            int firstChunk) throws IOException {
+        var digester = hasher(algorithm);
+        for (int i = firstChunk; i < header.blockCount(); ++i) {
+            sendChunk(channel, s, header, i, digester, chunk, false);
+        }
+
+        int[] repairs;
+        while ((repairs = readRepairs(s.getInputStream())).length > 0) {
+            logger.warn("Receiver requested {} chunks of {} again.", repairs.length, header.filePath());
+            for (var i : repairs) {
+                sendChunk(channel, s, header, i, digester, chunk, true);
+            }
+        }
+    }
+
+    private void sendChunk(FileChannel channel, Socket s, Header header, int index, Digester digester, byte[] chunk,
+                           boolean again) throws IOException {
+        long position = (long) index * header.blockSize();
+        long end = position + Math.min(header.blockSize(), header.fileLength() - position);
+        while (position < end) {
+            var buffer = ByteBuffer.wrap(chunk, 0, RateLimiter.SHARED.limit((int) Math.min(tuner.chunkSize(), end - position)));
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new EOFException("File was truncated while sending: " + header.filePath());
+                }
+            }
+            RateLimiter.SHARED.acquire(buffer.limit());
+            s.getOutputStream().write(chunk, 0, buffer.limit());
+            if (again) {
+                wrote(buffer.limit());
+            } else {
+                sent(buffer.limit());
+            }
+            if (digester != null) {
+                digester.update(chunk, 0, buffer.limit());
+            }
+            position += buffer.limit();
+        }
+        if (digester != null) {
+            s.getOutputStream().write(Header.encodeTrailer(digester.digest()));
+        }
+    }
+
+    private static int[] readRepairs(InputStream in) throws IOException {
+        var count = ByteBuffer.wrap(readFully(in, Integer.BYTES)).getInt();
+        if (count == ChunkVerifier.GAVE_UP) {
+            throw new IOException("Receiver gave up on chunks that stayed corrupt.");
+        }
+        var chunks = ByteBuffer.wrap(readFully(in, count * Integer.BYTES));
+        var repairs = new int[count];
+        for (int i = 0; i < count; ++i) {
+            repairs[i] = chunks.getInt();
+        }
+        return repairs;
+    }
+
+    private static byte[] readFully(InputStream in, int length) throws IOException {
+        byte[] bytes = in.readNBytes(length);
+        if (bytes.length != length) {
+            throw new EOFException("Connection closed by receiver.");
         }
+        return bytes;
     }
 }
@@ -0,0 +1,245 @@
+package com.amazon;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A file that arrives in stripes of header.blockSize() bytes, possibly over several connections.
+ * The first stripe to arrive asks the acceptor and preallocates the file, every stripe writes
+ * its own range, and the last stripe to finish completes the file.
+ * <p>
+ * Stripes are matched by a random id of the send, so a retry of a send that broke off never
+ * picks up its stripe count or its answer. A stripe that fails drops the file at once, and
+ * the stripes of that send still in flight finish on their own copy. A file no stripe has
+ * arrived for in IDLE_TIMEOUT, because its sender went away between stripes, is dropped along
+ * with what was written of it.
+ */
+class StripedFile {
+    private static final Logger logger = LoggerFactory.getLogger(StripedFile.class);
+
+    static final long MAX_STRIPE_SIZE = 1 << 30;
+    static final long IDLE_TIMEOUT = TimeUnit.MINUTES.toNanos(5);
+
+    private final String key;
+    private final Header header;
+    private final AtomicInteger remaining;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile long lastActive = System.nanoTime();
+    // Not synchronized: the acceptor may wait for the user, which would pin a virtual thread's carrier.
+    private final ReentrantLock lock = new ReentrantLock();
+    private Boolean accepted;
+    private Path filePath;
+    private volatile boolean failed;
+
+    private StripedFile(String key, Header header) {
+        this.key = key;
+        this.header = header;
+        this.remaining = new AtomicInteger(header.blockCount());
+    }
+
+    interface Content {
+        /**
+         * Reads the length bytes of a stripe off the connection into fileChannel at position,
+         * updating validator with them unless it is null.
+         */
+        void receive(FileChannel fileChannel, long position, long length, Validator validator) throws IOException;
+    }
+
+    /**
+     * Receives one stripe of a file on a receiver: answers it and, if the file is accepted, reads
+     * the stripe's index, has content write its range and checks the trailing checksum. The last
+     * stripe of the file completes it.
+     */
+    static void receive(Map<String, StripedFile> files, Header header, ChecksumAlgorithm algorithm, InputStream upload,
+                        OutputStream response, Receiver.Acceptor acceptor, Path targetDirectory, boolean validate,
+                        Metrics.FileTimer timer, Content content) throws IOException {
+        var stripedFile = of(files, header);
+        try {
+            if (!stripedFile.accept(acceptor, targetDirectory)) {
+                response.write(new Acceptance(Acceptance.REJECTED, algorithm, 0).encode());
+                timer.answered();
+                return;
+            }
+            response.write(new Acceptance(Acceptance.ACCEPTED, algorithm, 0).encode());
+            timer.answered();
+
+            var in = new DataInputStream(upload);
+            int stripe = in.readInt();
+            if (stripe < 0 || stripe >= header.blockCount()) {
+                throw new ProtocolException("Stripe " + stripe + " of " + header.blockCount() + " is out of bounds.");
+            }
+            var validator = validate && header.hasTrailingChecksum() ? new Validator(algorithm) : null;
+            try (var fileChannel = FileChannel.open(stripedFile.filePath(),
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                content.receive(fileChannel, stripedFile.position(stripe), stripedFile.length(stripe), validator);
+            }
+            timer.lastByte();
+
+            if (header.hasTrailingChecksum()) {
+                int checksumLength = in.readUnsignedShort();
+                if (checksumLength > Manifest.MAX_CHECKSUM_LENGTH) {
+                    throw new ProtocolException("Checksum of " + checksumLength + " bytes is too long.");
+                }
+                var checksum = new byte[checksumLength];
+                in.readFully(checksum);
+                if (validator != null) {
+                    validator.expect(checksum);
+                    validator.validate();
+                    timer.validated();
+                }
+            }
+            logger.debug("Received stripe {} of {}", stripe, stripedFile.filePath());
+        } catch (IOException | RuntimeException e) {
+            stripedFile.fail(files);
+            throw e;
+        } finally {
+            if (stripedFile.finish(files)) {
+                Metrics.SHARED.receivedFiles.increment();
+                logger.debug("Received all stripes of {}", stripedFile.filePath());
+            }
+        }
+    }
+
+    /**
+     * Returns the file this stripe belongs to, creating it for the first stripe, and drops the
+     * files that have been idle for IDLE_TIMEOUT. Every call must be paired with a call to
+     * finish, whether the stripe was accepted or not.
+     */
+    static StripedFile of(Map<String, StripedFile> files, Header header) {
+        expire(files, IDLE_TIMEOUT);
+        var id = header.checksum() == null ? "" : Wormhole.toHex(header.checksum());
+        var key = header.sender() + ':' + header.filePath() + ':' + id;
+        return files.compute(key, (k, file) -> {
+            file = file == null ? new StripedFile(k, header) : file;
+            file.inFlight.incrementAndGet();
+            return file;
+        });
+    }
+
+    /**
+     * Drops the files that have had no stripe in flight for idleNanos and deletes what was
+     * written of them.
+     */
+    static void expire(Map<String, StripedFile> files, long idleNanos) {
+        long now = System.nanoTime();
+        for (var key : List.copyOf(files.keySet())) {
+            files.computeIfPresent(key, (k, file) -> {
+                if (file.inFlight.get() > 0 || now - file.lastActive < idleNanos) {
+                    return file;
+                }
+                file.drop();
+                return null;
+            });
+        }
+    }
+
+    private void drop() {
+        failed = true;
+        if (filePath != null) {
+            logger.warn("Dropping {}: no stripe arrived for {} seconds.", filePath,
+                    TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - lastActive));
+            try {
+                Files.deleteIfExists(filePath);
+            } catch (IOException e) {
+                logger.warn("Could not delete {}", filePath, e);
+            }
+        }
+    }
+
+    static byte[] newSendId() {
+        return ByteBuffer.allocate(Long.BYTES).putLong(ThreadLocalRandom.current().nextLong()).array();
+    }
+
+    /**
+     * Returns how many bytes each stripe of a file should carry, or 0 when the file is too small
+     * to be worth striping over the given number of connections. Stripes are whole chunks and
+     * there may be more stripes than connections, so each connection can carry several.
+     */
+    static long stripeSize(long fileLength, int connections, long minimumStripeSize, int chunkSize) {
+        if (connections < 2 || minimumStripeSize <= 0 || fileLength < 2 * minimumStripeSize) {
+            return 0;
+        }
+        long size = Math.max(minimumStripeSize, (fileLength + connections - 1) / connections);
+        size = (size + chunkSize - 1) / chunkSize * chunkSize;
+        return Math.min(size, Math.max(chunkSize, MAX_STRIPE_SIZE / chunkSize * chunkSize));
+    }
+
+    boolean accept(Receiver.Acceptor acceptor, Path targetDirectory) throws IOException {
+        lock.lock();
+        try {
+            if (accepted == null) {
+                accepted = TransferEvents.accept(acceptor, header.sender(), header.filePath(), header.fileLength());
+                if (accepted) {
+                    filePath = targetDirectory.resolve(Wormhole.removeRoot(header.filePath()));
+                    Files.createDirectories(filePath.getParent());
+                    try (var file = new RandomAccessFile(filePath.toFile(), "rw")) {
+                        file.setLength(header.fileLength());
+                    }
+                    logger.debug("Receiving {} in {} stripes.", filePath, header.blockCount());
+                }
+            }
+            return accepted;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    Path filePath() {
+        return filePath;
+    }
+
+    long position(int stripe) {
+        return (long) stripe * header.blockSize();
+    }
+
+    long length(int stripe) {
+        return Math.min(header.blockSize(), header.fileLength() - position(stripe));
+    }
+
+    void fail(Map<String, StripedFile> files) {
+        failed = true;
+        files.remove(key, this);
+    }
+
+    /**
+     * Returns true when this was the last stripe of an accepted file and all of them arrived intact.
+     */
+    boolean finish(Map<String, StripedFile> files) {
+        lastActive = System.nanoTime();
+        inFlight.decrementAndGet();
+        if (remaining.decrementAndGet() > 0) {
+            return false;
+        }
+        files.remove(key, this);
+        if (filePath == null || failed) {
+            return false;
+        }
+        if (header.lastModified() > 0) {
+            try {
+                Files.setLastModifiedTime(filePath, FileTime.fromMillis(header.lastModified()));
+            } catch (IOException e) {
+                logger.warn("Could not set modification time of {}", filePath, e);
+            }
+        }
+        return true;
+    }
+}
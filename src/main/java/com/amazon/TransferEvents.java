@@ -0,0 +1,194 @@
+package com.amazon;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+import java.io.File;
+import java.nio.file.Path;
+
+/**
+ * Flight recorder events for the phases of a transfer, so a profiling run shows whether a slow
+ * transfer waited on the disk, the network, the checksum or the person answering a prompt.
+ * <p>
+ * Events are created, begun and checked with shouldCommit, and their fields are only filled in
+ * when they will be committed. With no recording running that is a few inlined checks per
+ * chunk. The per-chunk events have thresholds, which a recording's settings can lower, so that
+ * only the reads, writes and stalls slow enough to matter are recorded.
+ */
+final class TransferEvents {
+    private static final String CATEGORY = "Wormhole";
+
+    private TransferEvents() {}
+
+    /**
+     * Asks the acceptor about a file, recording how long the answer took.
+     */
+    static boolean accept(Receiver.Acceptor acceptor, String sender, String path, long length) {
+        var event = new FileDecision();
+        event.begin();
+        boolean accepted = acceptor.accept(sender, path, length);
+        if (event.shouldCommit()) {
+            event.sender = sender;
+            event.path = path;
+            event.length = length;
+            event.accepted = accepted;
+            event.commit();
+        }
+        return accepted;
+    }
+
+    /**
+     * Whether a recording takes HashComputed events, so that hashing is worth timing.
+     */
+    static boolean hashTimed() {
+        return new HashComputed().isEnabled();
+    }
+
+    static void sent(FileSent event, File source) {
+        if (event.shouldCommit()) {
+            event.path = source.getPath();
+            event.length = source.length();
+            event.commit();
+        }
+    }
+
+    static void received(FileReceived event, Path path, long bytes, boolean validated) {
+        if (event.shouldCommit()) {
+            event.path = path.toString();
+            event.bytes = bytes;
+            event.validated = validated;
+            event.commit();
+        }
+    }
+
+    @Name("com.amazon.wormhole.FileDecision")
+    @Label("File Decision")
+    @Description("The receiver's acceptor deciding whether to take a file, a prompt unless every file is accepted.")
+    @Category({CATEGORY, "Receiver"})
+    @StackTrace(false)
+    static final class FileDecision extends Event {
+        @Label("Sender")
+        String sender;
+
+        @Label("Path")
+        String path;
+
+        @Label("Length")
+        @DataAmount
+        long length;
+
+        @Label("Accepted")
+        boolean accepted;
+    }
+
+    @Name("com.amazon.wormhole.FileSent")
+    @Label("File Sent")
+    @Description("One file sent on a connection, from its header to its last byte or trailer.")
+    @Category({CATEGORY, "Sender"})
+    @StackTrace(false)
+    static final class FileSent extends Event {
+        @Label("Path")
+        String path;
+
+        @Label("Length")
+        @DataAmount
+        long length;
+    }
+
+    @Name("com.amazon.wormhole.FileReceived")
+    @Label("File Received")
+    @Description("The content of one file received, from its first byte to its checksum verdict.")
+    @Category({CATEGORY, "Receiver"})
+    @StackTrace(false)
+    static final class FileReceived extends Event {
+        @Label("Path")
+        String path;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        @Label("Validated")
+        boolean validated;
+    }
+
+    @Name("com.amazon.wormhole.ChunkRead")
+    @Label("Chunk Read")
+    @Description("A chunk of a file read from disk to be sent.")
+    @Category({CATEGORY, "Disk"})
+    @Threshold("1 ms")
+    @StackTrace(false)
+    static final class ChunkRead extends Event {
+        @Label("Path")
+        String path;
+
+        @Label("Offset")
+        long offset;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("com.amazon.wormhole.ChunkWritten")
+    @Label("Chunk Written")
+    @Description("A chunk of a received file written to disk.")
+    @Category({CATEGORY, "Disk"})
+    @Threshold("1 ms")
+    @StackTrace(false)
+    static final class ChunkWritten extends Event {
+        @Label("Offset")
+        long offset;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("com.amazon.wormhole.SocketStall")
+    @Label("Socket Stall")
+    @Description("A write the socket took long to take, as with a full send window, or a read that waited long for data, as from a sender that fell behind.")
+    @Category({CATEGORY, "Network"})
+    @Threshold("20 ms")
+    @StackTrace(false)
+    static final class SocketStall extends Event {
+        @Label("Sending")
+        boolean sending;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("com.amazon.wormhole.HashComputed")
+    @Label("Hash Computed")
+    @Description("A file's checksum finished, with the time spent hashing it, which for a validator is spread over its chunks.")
+    @Category({CATEGORY, "Checksum"})
+    @StackTrace(false)
+    static final class HashComputed extends Event {
+        @Label("Algorithm")
+        String algorithm;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        @Label("Hashing")
+        @Timespan
+        long hashing;
+
+        @Label("Checked")
+        @Description("Whether the hash was compared with an expected one, as a validator's is.")
+        boolean checked;
+
+        @Label("Matched")
+        boolean matched;
+    }
+}
@@ -4,21 +4,24 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.nio.ByteBuffer;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 
 public class Validator {
     private static final Logger logger = LoggerFactory.getLogger(Validator.class);
-    private final MessageDigest digester;
+    private final ChecksumAlgorithm algorithm;
+    private final Digester digester;
     private byte[] expected;
+    // What was hashed and, while a recording takes them, how long it took, for the HashComputed event.
+    private long bytes;
+    private long hashingNanos;
+
+    public Validator(ChecksumAlgorithm algorithm) {
+        this.algorithm = algorithm;
+        this.digester = algorithm.newDigester();
+    }
 
     public Validator() {
-        try {
-            this.digester = MessageDigest.getInstance("MD5");
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);
-        }
+        this(ChecksumAlgorithm.MD5);
     }
 
     public void expect(byte[] expected) {
@@ -29,16 +32,47 @@ public class Validator {
     }
 
     public void update(byte[] data, int offset, int length) {
+        boolean timed = TransferEvents.hashTimed();
+        long start = timed ? System.nanoTime() : 0;
         digester.update(data, offset, length);
+        if (timed) {
+            hashingNanos += System.nanoTime() - start;
+        }
+        bytes += length;
     }
 
     public void update(ByteBuffer buffer) {
+        boolean timed = TransferEvents.hashTimed();
+        long start = timed ? System.nanoTime() : 0;
+        bytes += buffer.remaining();
         digester.update(buffer);
+        if (timed) {
+            hashingNanos += System.nanoTime() - start;
+        }
+    }
+
+    public void reset() {
+        digester.reset();
+        bytes = 0;
+        hashingNanos = 0;
     }
 
     public void validate() {
+        var event = new TransferEvents.HashComputed();
+        event.begin();
+        long start = System.nanoTime();
         byte[] digest = digester.digest();
-        if (!Arrays.equals(digest, expected)) {
+        boolean matched = Arrays.equals(digest, expected);
+        if (event.shouldCommit()) {
+            event.algorithm = algorithm.name();
+            event.bytes = bytes;
+            event.hashing = hashingNanos + System.nanoTime() - start;
+            event.checked = true;
+            event.matched = matched;
+            event.commit();
+        }
+        if (!matched) {
+            Metrics.SHARED.checksumFailures.increment();
             logger.error("Checksum mismatch: Expected: {}, Received: {}\n",
                     Wormhole.toHex(expected), Wormhole.toHex(digest));
             throw new IllegalStateException("Invalid digest.");
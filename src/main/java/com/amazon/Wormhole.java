@@ -8,22 +8,34 @@ import picocli.CommandLine;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
-@CommandLine.Command(name="wormhole", subcommands = {SenderCommand.class, ReceiverCommand.class})
+@CommandLine.Command(name="wormhole", subcommands = {SenderCommand.class, ReceiverCommand.class, BenchmarkCommand.class})
 public class Wormhole implements Runnable {
     public static final int DEFAULT_CHUNK_SIZE = 10 * 1024 * 1024;
     public static final int DEFAULT_THREAD_COUNT = Runtime.getRuntime().availableProcessors();
     public static final int DEFAULT_RECEIVER_PORT = 9000;
+    public static final long DEFAULT_STRIPE_SIZE = 64 * 1024 * 1024;
+    public static final int DEFAULT_WINDOW = 8;
+    public static final int DEFAULT_VIRTUAL_THREAD_COUNT = 1024;
 
     public static void main(String[] args) {
         long start = System.nanoTime();
-        if (args.length > 0 && ("send".equals(args[0]) || "recv".equals(args[0]))) {
+        if (args.length > 0 && ("send".equals(args[0]) || "recv".equals(args[0]) || "bench".equals(args[0]))) {
             PicocliRunner.run(Wormhole.class, args);
         } else {
             ApplicationContext context = Micronaut.run(Wormhole.class, args);
@@ -33,37 +45,129 @@ public class Wormhole implements Runnable {
     }
 
     static class Hasher {
-        private final MessageDigest md;
-        private final byte[] chunk;
-        private final byte[] digest;
-
-        public Hasher() {
-            try {
-                md = MessageDigest.getInstance("MD5");
-                chunk = new byte[DEFAULT_CHUNK_SIZE];
-                digest = new byte[16];
-            } catch (NoSuchAlgorithmException e) {
-                throw new RuntimeException(e);
-            }
-        }
+        private final Map<ChecksumAlgorithm, Digester> digesters = new EnumMap<>(ChecksumAlgorithm.class);
 
-        public final byte[] hash(File file) {
-            md.reset();
+        public final byte[] hash(File file, ChecksumAlgorithm algorithm) {
+            var event = new TransferEvents.HashComputed();
+            event.begin();
+            long start = System.nanoTime();
+            var digester = digester(algorithm);
+            long hashed = 0;
             int read;
-            try (var stream = new FileInputStream(file)) {
-                while ((read = stream.read(chunk)) != -1) {
-                    md.update(chunk, 0, read);
+            try (var stream = new FileInputStream(file); var lease = BufferPool.SHARED.lease(DEFAULT_CHUNK_SIZE, false)) {
+                var chunk = lease.array();
+                while ((read = stream.read(chunk, 0, DEFAULT_CHUNK_SIZE)) != -1) {
+                    digester.update(chunk, 0, read);
+                    hashed += read;
                 }
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
-            return md.digest();
+            var digest = digester.digest();
+            hashed(event, algorithm, hashed, start);
+            return digest;
+        }
+
+        public final byte[] hash(FileChannel channel, long position, long length, ChecksumAlgorithm algorithm) throws IOException {
+            var event = new TransferEvents.HashComputed();
+            event.begin();
+            long start = System.nanoTime();
+            var digester = digester(algorithm);
+            long hashed = read(channel, position, length, digester::update);
+            var digest = digester.digest();
+            hashed(event, algorithm, hashed, start);
+            return digest;
+        }
+
+        /**
+         * Commits the event of a hash read from disk, whose reads count as hashing time.
+         */
+        private static void hashed(TransferEvents.HashComputed event, ChecksumAlgorithm algorithm, long bytes, long start) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.algorithm = algorithm.name();
+                event.bytes = bytes;
+                event.hashing = System.nanoTime() - start;
+                event.commit();
+            }
+        }
+
+        final Digester digester(ChecksumAlgorithm algorithm) {
+            var digester = digesters.computeIfAbsent(algorithm, ChecksumAlgorithm::newDigester);
+            digester.reset();
+            return digester;
         }
     }
 
     private static final ThreadLocal<Hasher> hashers = ThreadLocal.withInitial(Hasher::new);
     public static byte[] hash(File file) {
-        return hashers.get().hash(file);
+        return hash(file, ChecksumAlgorithm.MD5);
+    }
+
+    public static byte[] hash(File file, ChecksumAlgorithm algorithm) {
+        return hashers.get().hash(file, algorithm);
+    }
+
+    public static byte[] hash(FileChannel channel, long position, long length, ChecksumAlgorithm algorithm) throws IOException {
+        return hashers.get().hash(channel, position, length, algorithm);
+    }
+
+    /**
+     * Reads length bytes of channel from position through a pooled buffer, handing each piece to
+     * consumer, and returns how many there were. Unlike mapping the region, this leaves nothing
+     * behind for the garbage collector to unmap.
+     */
+    static long read(FileChannel channel, long position, long length, Consumer<ByteBuffer> consumer) throws IOException {
+        long read = 0;
+        try (var lease = BufferPool.SHARED.lease(DEFAULT_CHUNK_SIZE, false)) {
+            var buffer = lease.buffer();
+            while (read < length) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), length - read));
+                int count = channel.read(buffer, position + read);
+                if (count < 0) {
+                    break;
+                }
+                buffer.flip();
+                consumer.accept(buffer);
+                read += count;
+            }
+        }
+        return read;
+    }
+
+    private static final MethodHandle UNMAP = unmapper();
+
+    /**
+     * Unmaps buffer now rather than when the garbage collector gets to it. There is no API for it
+     * in Java 17, so it goes through sun.misc.Unsafe if the runtime has it and is a no-op if not.
+     * Nothing may touch buffer afterwards.
+     */
+    static void unmap(MappedByteBuffer buffer) {
+        if (UNMAP == null) {
+            return;
+        }
+        try {
+            UNMAP.invokeExact((ByteBuffer) buffer);
+        } catch (Throwable e) {
+            // The mapping then goes when the buffer is collected.
+        }
+    }
+
+    private static MethodHandle unmapper() {
+        try {
+            var unsafeType = Class.forName("sun.misc.Unsafe");
+            var field = unsafeType.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            return MethodHandles.lookup().findVirtual(unsafeType, "invokeCleaner",
+                    MethodType.methodType(void.class, ByteBuffer.class)).bindTo(field.get(null));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    static Digester hasher(ChecksumAlgorithm algorithm) {
+        return hashers.get().digester(algorithm);
     }
 
     static String toHex(byte[] bytes) {
@@ -85,18 +189,53 @@ public class Wormhole implements Runnable {
         System.out.println("Registrar is listening");
     }
 
+    /**
+     * Returns an executor that runs up to threadCount tasks at once. Normally that is a fixed pool
+     * of platform threads; with virtualThreads every task gets a thread of its own and threadCount
+     * only bounds how many run, so it does not have to follow the number of cores.
+     */
+    static ExecutorService newExecutor(String prefix, int threadCount, boolean virtualThreads) {
+        if (!virtualThreads) {
+            return Executors.newFixedThreadPool(threadCount, new NamingThreadFactory(prefix));
+        }
+        return new BoundedExecutor(Executors.newCachedThreadPool(virtualThreadFactory(prefix)), threadCount);
+    }
+
+    /**
+     * Virtual threads arrived in Java 21 and we build for 17, so they are found reflectively.
+     * Older runtimes throw rather than quietly start a platform thread for every connection.
+     */
+    static ThreadFactory virtualThreadFactory(String prefix) {
+        try {
+            var builderType = Class.forName("java.lang.Thread$Builder");
+            var builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderType.getMethod("name", String.class, long.class).invoke(builder, prefix + "-", 1L);
+            return (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("Virtual threads need Java 21 or later, this is Java "
+                    + Runtime.version().feature() + ".", e);
+        }
+    }
+
     static class NamingThreadFactory implements ThreadFactory {
         private final AtomicInteger count = new AtomicInteger(1);
         private final String prefix;
+        private final boolean daemon;
 
         NamingThreadFactory(String prefix) {
+            this(prefix, false);
+        }
+
+        NamingThreadFactory(String prefix, boolean daemon) {
             this.prefix = prefix;
+            this.daemon = daemon;
         }
 
         @Override
         public Thread newThread(Runnable r) {
             Thread t = new Thread(r);
             t.setName(prefix + "-" + count.getAndIncrement());
+            t.setDaemon(daemon);
             return t;
         }
     }
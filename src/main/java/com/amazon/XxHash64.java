@@ -0,0 +1,168 @@
+package com.amazon;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Streaming XXH64 with a zero seed. The digest is the canonical (big endian) form of the hash.
+ */
+class XxHash64 implements Digester {
+    private static final long PRIME1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME3 = 0x165667B19E3779F9L;
+    private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME5 = 0x27D4EB2F165667C5L;
+    private static final int STRIPE = 32;
+
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle INTS = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private final byte[] pending = new byte[STRIPE];
+    private int pendingLength;
+    private long totalLength;
+    private long v1, v2, v3, v4;
+
+    XxHash64() {
+        reset();
+    }
+
+    @Override
+    public void reset() {
+        v1 = PRIME1 + PRIME2;
+        v2 = PRIME2;
+        v3 = 0;
+        v4 = -PRIME1;
+        totalLength = 0;
+        pendingLength = 0;
+    }
+
+    @Override
+    public void update(byte[] data, int offset, int length) {
+        totalLength += length;
+        if (pendingLength + length < STRIPE) {
+            System.arraycopy(data, offset, pending, pendingLength, length);
+            pendingLength += length;
+            return;
+        }
+
+        if (pendingLength > 0) {
+            int fill = STRIPE - pendingLength;
+            System.arraycopy(data, offset, pending, pendingLength, fill);
+            stripe(pending, 0);
+            offset += fill;
+            length -= fill;
+            pendingLength = 0;
+        }
+
+        while (length >= STRIPE) {
+            stripe(data, offset);
+            offset += STRIPE;
+            length -= STRIPE;
+        }
+
+        System.arraycopy(data, offset, pending, 0, length);
+        pendingLength = length;
+    }
+
+    @Override
+    public void update(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            buffer.position(buffer.limit());
+            return;
+        }
+
+        int length = buffer.remaining();
+        totalLength += length;
+        if (pendingLength + length < STRIPE) {
+            buffer.get(pending, pendingLength, length);
+            pendingLength += length;
+            return;
+        }
+
+        if (pendingLength > 0) {
+            int fill = STRIPE - pendingLength;
+            buffer.get(pending, pendingLength, fill);
+            stripe(pending, 0);
+            length -= fill;
+            pendingLength = 0;
+        }
+
+        // Read the stripes in place rather than copying them out of the (direct) buffer.
+        var le = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int position = buffer.position();
+        while (length >= STRIPE) {
+            v1 = round(v1, le.getLong(position));
+            v2 = round(v2, le.getLong(position + 8));
+            v3 = round(v3, le.getLong(position + 16));
+            v4 = round(v4, le.getLong(position + 24));
+            position += STRIPE;
+            length -= STRIPE;
+        }
+
+        buffer.position(position);
+        buffer.get(pending, 0, length);
+        pendingLength = length;
+    }
+
+    @Override
+    public byte[] digest() {
+        long hash;
+        if (totalLength >= STRIPE) {
+            hash = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            hash = merge(hash, v1);
+            hash = merge(hash, v2);
+            hash = merge(hash, v3);
+            hash = merge(hash, v4);
+        } else {
+            hash = PRIME5;
+        }
+        hash += totalLength;
+
+        int position = 0;
+        while (position + Long.BYTES <= pendingLength) {
+            hash ^= round(0, (long) LONGS.get(pending, position));
+            hash = Long.rotateLeft(hash, 27) * PRIME1 + PRIME4;
+            position += Long.BYTES;
+        }
+        if (position + Integer.BYTES <= pendingLength) {
+            hash ^= ((int) INTS.get(pending, position) & 0xFFFFFFFFL) * PRIME1;
+            hash = Long.rotateLeft(hash, 23) * PRIME2 + PRIME3;
+            position += Integer.BYTES;
+        }
+        while (position < pendingLength) {
+            hash ^= (pending[position] & 0xFF) * PRIME5;
+            hash = Long.rotateLeft(hash, 11) * PRIME1;
+            ++position;
+        }
+
+        hash ^= hash >>> 33;
+        hash *= PRIME2;
+        hash ^= hash >>> 29;
+        hash *= PRIME3;
+        hash ^= hash >>> 32;
+
+        reset();
+        return ByteBuffer.allocate(Long.BYTES).putLong(hash).array();
+    }
+
+    private void stripe(byte[] data, int offset) {
+        v1 = round(v1, (long) LONGS.get(data, offset));
+        v2 = round(v2, (long) LONGS.get(data, offset + 8));
+        v3 = round(v3, (long) LONGS.get(data, offset + 16));
+        v4 = round(v4, (long) LONGS.get(data, offset + 24));
+    }
+
+    private static long round(long accumulator, long input) {
+        accumulator += input * PRIME2;
+        accumulator = Long.rotateLeft(accumulator, 31);
+        return accumulator * PRIME1;
+    }
+
+    private static long merge(long hash, long accumulator) {
+        hash ^= round(0, accumulator);
+        return hash * PRIME1 + PRIME4;
+    }
+}
@@ -0,0 +1,101 @@
+package com.amazon;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.net.StandardSocketOptions;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static java.time.Duration.ofSeconds;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class AutoTunerTest {
+
+    @Test
+    public void testDisabledUsesTheGivenSettings() {
+        var tuner = new AutoTuner(false, 6, 1024 * 1024);
+        assertEquals(6, tuner.activeConnections());
+        assertEquals(1024 * 1024, tuner.chunkSize());
+        assertEquals(0, tuner.sendBufferSize());
+    }
+
+    @Test
+    public void testSettlesWhereMoreConnectionsStopHelping() {
+        var tuner = new AutoTuner(true, 16, 8 * 1024 * 1024);
+        var seen = new HashMap<Integer, Integer>();
+        for (int window = 0; window < 60; ++window) {
+            // The link fills at six connections, and writes under a megabyte cost a third.
+            double rate = Math.min(tuner.activeConnections(), 6) * 100e6
+                    * (tuner.chunkSize() < 1024 * 1024 ? 2 / 3d : 1);
+            tuner.adjust(rate);
+            if (window >= 20) {
+                seen.merge(tuner.activeConnections(), 1, Integer::sum);
+            }
+        }
+        // It keeps probing either side, but comes back to the best setting between probes.
+        var mostSeen = seen.entrySet().stream().max(Map.Entry.comparingByValue()).orElseThrow().getKey();
+        assertEquals(8, mostSeen);
+        assertTrue(tuner.chunkSize() >= 1024 * 1024);
+    }
+
+    @Test
+    public void testBufferIsBandwidthDelayProduct() {
+        // A gigabit over 80 ms holds ten megabytes.
+        assertEquals(10_000_000, AutoTuner.bandwidthDelayProduct(125_000_000, TimeUnit.MILLISECONDS.toNanos(80)));
+        // Too short a round trip to matter still gets a useful buffer.
+        assertEquals(AutoTuner.MIN_CHUNK_SIZE, AutoTuner.bandwidthDelayProduct(125_000_000, 1000));
+
+        var tuner = new AutoTuner(false, 1, 1024);
+        tuner.setBandwidth(125_000_000);
+        tuner.setSocketBuffer(4 * 1024 * 1024);
+        assertEquals(4 * 1024 * 1024, tuner.sendBufferSize());
+    }
+
+    @Test
+    public void testIdleWorkerStopsWaitingWhenFilesRunOut() {
+        var tuner = new AutoTuner(true, 16, 1024 * 1024);
+        assertTimeoutPreemptively(ofSeconds(10), () -> {
+            try (var files = DirectoryScanner.of(consumer -> {}, 8)) {
+                tuner.awaitTurn(15, files);
+            }
+        });
+    }
+
+    @Test
+    public void testSizesTheSendBuffer() throws Exception {
+        var tuner = new AutoTuner(true, 1, 1024);
+        tuner.setSocketBuffer(256 * 1024);
+        try (var channel = tuner.configure(SocketChannel.open())) {
+            assertTrue(channel.getOption(StandardSocketOptions.SO_SNDBUF) >= 256 * 1024);
+        }
+    }
+
+    @Test
+    public void testAutoTunedDirectoryStartsWithFewConnections(@TempDir Path sourceDirectory, @TempDir Path targetDirectory) throws Exception {
+        var receiver = new SimpleBlockingReceiver(Wormhole.DEFAULT_RECEIVER_PORT, Wormhole.DEFAULT_CHUNK_SIZE, 8, true);
+        receiver.setSocketBuffer(256 * 1024);
+        // More connections than the tuner starts with, so the idle ones must stop once the files run out.
+        var sender = new ChannelSender("sender", Wormhole.DEFAULT_CHUNK_SIZE, 8, true);
+        sender.setAutoTune(true);
+        sender.setSocketBuffer(256 * 1024);
+        TestReceiver.populate(sourceDirectory, 16);
+        receiver.setAcceptor((username, filename, length) -> true);
+        var running = TestReceiver.start(receiver, targetDirectory);
+        try {
+            sender.send(sourceDirectory.toFile(), "127.0.0.1", Wormhole.DEFAULT_RECEIVER_PORT);
+        } finally {
+            running.stop();
+        }
+        assertEquals(16, TestReceiver.fileCount(targetDirectory));
+        // The send ends before the first window, so only the connections the tuner starts with carry files.
+        var sending = Arrays.stream(sender.getProgress().connectionBytes()).filter(bytes -> bytes > 0).count();
+        assertTrue(sending >= 1 && sending <= 4, sending + " connections sent");
+    }
+}
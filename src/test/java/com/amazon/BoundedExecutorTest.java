@@ -0,0 +1,111 @@
+package com.amazon;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.amazon.Wormhole.DEFAULT_CHUNK_SIZE;
+import static com.amazon.Wormhole.DEFAULT_RECEIVER_PORT;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+public class BoundedExecutorTest {
+
+    @Test
+    public void testRunsNoMoreThanPermitsAtOnce() throws Exception {
+        var executor = new BoundedExecutor(Executors.newCachedThreadPool(), 2);
+        var release = new CountDownLatch(1);
+        var done = new CountDownLatch(5);
+        var running = new AtomicInteger();
+        var most = new AtomicInteger();
+        try {
+            // Submitting returns at once even though three tasks have to wait for a permit.
+            for (int i = 0; i < 5; ++i) {
+                executor.execute(() -> {
+                    most.accumulateAndGet(running.incrementAndGet(), Math::max);
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    running.decrementAndGet();
+                    done.countDown();
+                });
+            }
+            Thread.sleep(100);
+            assertEquals(2, running.get());
+            release.countDown();
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            assertEquals(2, most.get());
+        } finally {
+            executor.shutdown();
+        }
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testShutdownNowInterruptsWaitingTasks() throws Exception {
+        var executor = new BoundedExecutor(Executors.newCachedThreadPool(), 1);
+        var started = new CountDownLatch(1);
+        var finish = new Semaphore(0);
+        var ran = new AtomicInteger();
+        executor.execute(() -> {
+            ran.incrementAndGet();
+            started.countDown();
+            // Holds the permit through the interrupt, so the waiting task cannot get it first.
+            finish.acquireUninterruptibly();
+        });
+        // Queues the second task only once the first holds the permit, so it cannot take it first.
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        executor.execute(ran::incrementAndGet);
+        executor.shutdownNow();
+        finish.release();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(1, ran.get());
+    }
+
+    @Test
+    public void testVirtualThreadsNeedJava21() {
+        assumeTrue(Runtime.version().feature() < 21);
+        assertThrows(UnsupportedOperationException.class, () -> Wormhole.newExecutor("test", 1, true));
+    }
+
+    @Test
+    public void testSendDirectoryWithVirtualThreads(@TempDir Path sourceDirectory, @TempDir Path targetDirectory) throws Exception {
+        assumeTrue(Runtime.version().feature() >= 21);
+        var receiver = new ChannelReceiver(DEFAULT_RECEIVER_PORT, DEFAULT_CHUNK_SIZE, 2, true);
+        receiver.setVirtualThreads(true);
+        var sender = new ChannelSender("sender", DEFAULT_CHUNK_SIZE, 4, true);
+        sender.setVirtualThreads(true);
+        var platform = new AtomicInteger();
+        TestReceiver.populate(sourceDirectory, TestReceiver.FILE_COUNT);
+        // Thread.isVirtual is only there to call from Java 21 on.
+        var isVirtual = Thread.class.getMethod("isVirtual");
+        receiver.setAcceptor((username, filename, length) -> {
+            try {
+                if (!(boolean) isVirtual.invoke(Thread.currentThread())) {
+                    platform.incrementAndGet();
+                }
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException(e);
+            }
+            return true;
+        });
+        var running = TestReceiver.start(receiver, targetDirectory);
+        try {
+            sender.send(sourceDirectory.toFile(), "127.0.0.1", DEFAULT_RECEIVER_PORT);
+        } finally {
+            running.stop();
+        }
+        assertEquals(TestReceiver.FILE_COUNT, sender.getFilesTransferred());
+        assertEquals(0, platform.get());
+    }
+}
@@ -0,0 +1,104 @@
+package com.amazon;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class BufferPoolTest {
+
+    @Test
+    public void testSizeClasses() {
+        assertEquals(1024, BufferPool.sizeClass(8));
+        assertEquals(1280, BufferPool.sizeClass(1025));
+        assertEquals(8 * 1024 * 1024, BufferPool.sizeClass(8 * 1024 * 1024));
+        assertEquals(Wormhole.DEFAULT_CHUNK_SIZE, BufferPool.sizeClass(Wormhole.DEFAULT_CHUNK_SIZE));
+        assertEquals(12 * 1024 * 1024, BufferPool.sizeClass(Wormhole.DEFAULT_CHUNK_SIZE + 1));
+    }
+
+    @Test
+    public void testReturnedBuffersAreReused() {
+        var pool = new BufferPool(1 << 20, false);
+        byte[] array;
+        try (var lease = pool.lease(1000, false)) {
+            array = lease.array();
+            assertEquals(1000, lease.buffer().capacity());
+        }
+        try (var lease = pool.lease(900, false)) {
+            assertSame(array, lease.array());
+        }
+        try (var lease = pool.lease(900, true)) {
+            assertTrue(lease.buffer().isDirect());
+        }
+        assertEquals(2048, pool.allocated());
+        assertEquals(0, pool.leased());
+    }
+
+    @Test
+    public void testLeaseWaitsForLimit() throws Exception {
+        var pool = new BufferPool(4096, false);
+        var held = pool.lease(4096, false);
+        var waiting = CompletableFuture.supplyAsync(() -> pool.lease(2048, false));
+        assertThrows(TimeoutException.class, () -> waiting.get(300, TimeUnit.MILLISECONDS));
+
+        held.close();
+        waiting.get(5, TimeUnit.SECONDS).close();
+        assertEquals(2048, pool.allocated());
+    }
+
+    @Test
+    public void testDirectBuffersHaveTheirOwnLimit() throws Exception {
+        var pool = new BufferPool(4096, 8192, false);
+        var held = pool.lease(4096, false);
+        var direct = CompletableFuture.supplyAsync(() -> pool.lease(8192, true)).get(5, TimeUnit.SECONDS);
+        assertEquals(8192, pool.allocatedDirect());
+        direct.close();
+        held.close();
+        assertEquals(4096 + 8192, pool.allocated());
+    }
+
+    @Test
+    public void testTryLeaseGivesUpInsteadOfWaiting() {
+        var pool = new BufferPool(4096, false);
+        var held = pool.lease(4096, true);
+        // Holding a lease does not let this thread exceed the limit either.
+        assertNull(pool.tryLease(2048, true));
+        held.close();
+        try (var lease = pool.tryLease(2048, true)) {
+            assertEquals(2048, lease.buffer().capacity());
+        }
+    }
+
+    @Test
+    public void testNestedLeaseDoesNotWait() {
+        var pool = new BufferPool(4096, false);
+        var first = pool.lease(4096, false);
+        var second = pool.lease(4096, false);
+        assertEquals(8192, pool.allocated());
+        second.close();
+        first.close();
+        // Buffers beyond the limit are dropped when they come back.
+        assertEquals(4096, pool.allocated());
+    }
+
+    @Test
+    public void testReportsLeaks() {
+        var pool = new BufferPool(1 << 20, true);
+        var lease = pool.lease(100, false);
+        var leak = assertThrows(IllegalStateException.class, pool::checkLeaks);
+        assertFalse(leak.getCause().getStackTrace()[0].getClassName().isEmpty());
+
+        lease.close();
+        lease.close();
+        pool.checkLeaks();
+        assertEquals(0, pool.leased());
+    }
+}
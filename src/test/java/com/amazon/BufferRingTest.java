@@ -0,0 +1,78 @@
+package com.amazon;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static java.time.Duration.ofSeconds;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+public class BufferRingTest {
+    private static final int BUFFER_SIZE = 1024;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void testWritesAndValidatesEveryBuffer() throws Exception {
+        var data = new byte[10 * BUFFER_SIZE];
+        for (int i = 0; i < data.length; ++i) {
+            data[i] = (byte) i;
+        }
+        var expected = ChecksumAlgorithm.MD5.newDigester();
+        expected.update(data, 0, data.length);
+        try (var file = open()) {
+            var validator = new Validator(ChecksumAlgorithm.MD5);
+            var ring = new BufferRing(4, ByteBuffer.allocate(4 * BUFFER_SIZE));
+            ring.start(file, 0, data.length, validator);
+            try {
+                for (int sent = 0; sent < data.length; sent += BUFFER_SIZE) {
+                    ring.put(ring.take().put(data, sent, BUFFER_SIZE).flip());
+                }
+            } finally {
+                ring.finish();
+            }
+            assertEquals(data.length, file.size());
+            validator.expect(expected.digest());
+            validator.validate();
+        }
+    }
+
+    @Test
+    public void testHashFailureReachesTheReader() throws Exception {
+        var broken = new IllegalStateException("Hash failed");
+        var validator = new Validator(ChecksumAlgorithm.MD5) {
+            @Override
+            public void update(ByteBuffer buffer) {
+                throw broken;
+            }
+        };
+        try (var file = open()) {
+            var ring = new BufferRing(2, ByteBuffer.allocate(2 * BUFFER_SIZE));
+            ring.start(file, 0, 10 * BUFFER_SIZE, validator);
+            var thrown = assertTimeoutPreemptively(ofSeconds(10), () -> assertThrows(IOException.class, () -> {
+                try {
+                    // With no buffer coming back from the hasher, take would otherwise wait forever.
+                    for (int i = 0; i < 10; ++i) {
+                        ring.put(ring.take().position(BUFFER_SIZE).flip());
+                    }
+                } finally {
+                    ring.finish();
+                }
+            }));
+            assertSame(broken, thrown.getCause());
+        }
+    }
+
+    private FileChannel open() throws IOException {
+        return FileChannel.open(directory.resolve("file"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    }
+}
@@ -0,0 +1,59 @@
+package com.amazon;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class ChecksumAlgorithmTest {
+
+    @Test
+    public void testCrc32cKnownValue() {
+        assertEquals("e3069283", hex(ChecksumAlgorithm.CRC32C, "123456789"));
+    }
+
+    @Test
+    public void testXxHash64KnownValues() {
+        assertEquals("ef46db3751d8e999", hex(ChecksumAlgorithm.XXHASH64, ""));
+        assertEquals("d24ec4f1a98c6e5b", hex(ChecksumAlgorithm.XXHASH64, "a"));
+        assertEquals("44bc2cf5ad770999", hex(ChecksumAlgorithm.XXHASH64, "abc"));
+        assertEquals("fbcea83c8a378bf1", hex(ChecksumAlgorithm.XXHASH64, "Nobody inspects the spammish repetition"));
+    }
+
+    @Test
+    public void testIncrementalUpdatesMatchSingleUpdate() {
+        var random = new Random(7);
+        var data = new byte[100_003];
+        random.nextBytes(data);
+
+        for (var algorithm : ChecksumAlgorithm.values()) {
+            var digester = algorithm.newDigester();
+            digester.update(data, 0, data.length);
+            var expected = digester.digest();
+
+            var direct = ByteBuffer.allocateDirect(data.length).put(data).flip();
+            int offset = 0;
+            while (offset < data.length) {
+                int length = Math.min(random.nextInt(100), data.length - offset);
+                if (random.nextBoolean()) {
+                    digester.update(data, offset, length);
+                } else {
+                    digester.update(direct.limit(offset + length).position(offset));
+                }
+                offset += length;
+            }
+            assertArrayEquals(expected, digester.digest(), algorithm.name());
+        }
+    }
+
+    private static String hex(ChecksumAlgorithm algorithm, String input) {
+        var digester = algorithm.newDigester();
+        var bytes = input.getBytes(StandardCharsets.UTF_8);
+        digester.update(bytes, 0, bytes.length);
+        return Wormhole.toHex(digester.digest());
+    }
+}
@@ -0,0 +1,209 @@
+package com.amazon;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CompressionTest {
+
+    @Test
+    public void testRoundTrips() throws Exception {
+        var random = new Random(42);
+        var noise = new byte[100_000];
+        random.nextBytes(noise);
+        var runs = new byte[100_000];
+        Arrays.fill(runs, 50_000, runs.length, (byte) 'a');
+        for (var data : new byte[][] {new byte[0], "abc".getBytes(StandardCharsets.UTF_8), csv(100_000), noise, runs}) {
+            for (var codec : Compression.values()) {
+                var compressed = new byte[Compression.maxBlockLength()];
+                int length = codec.compress(data, 0, data.length, compressed, 0);
+                var restored = new byte[data.length];
+                codec.decompress(compressed, 0, length, restored, 0, data.length);
+                assertArrayEquals(data, restored, codec + " of " + data.length + " bytes");
+            }
+        }
+    }
+
+    @Test
+    public void testCorruptBlocksAreRejected() {
+        var data = csv(10_000);
+        var compressed = new byte[Compression.maxBlockLength()];
+        int length = Compression.LZ.compress(data, 0, data.length, compressed, 0);
+        assertTrue(length < data.length / 2);
+        var restored = new byte[data.length];
+        assertThrows(DataFormatException.class, () -> Compression.LZ.decompress(compressed, 0, length - 1, restored, 0, data.length));
+        assertThrows(DataFormatException.class, () -> Compression.LZ.decompress(compressed, 0, length, restored, 0, data.length - 1));
+        assertThrows(DataFormatException.class, () -> Compression.DEFLATE.decompress(compressed, 0, length, restored, 0, data.length));
+    }
+
+    @Test
+    public void testSampleDecides() throws IOException {
+        var text = Files.createTempFile("compress", ".csv");
+        Files.write(text, csv(200_000));
+        var noise = Files.createTempFile("compress", ".bin");
+        var bytes = new byte[200_000];
+        new Random(7).nextBytes(bytes);
+        Files.write(noise, bytes);
+
+        assertTrue(Compression.LZ.compresses(text.toFile()));
+        assertTrue(Compression.DEFLATE.compresses(text.toFile()));
+        assertFalse(Compression.LZ.compresses(noise.toFile()));
+        assertFalse(Compression.NONE.compresses(text.toFile()));
+    }
+
+    @Test
+    public void testSendAndReceive() throws IOException {
+        // More than one block, with a block of noise that has to go as it is.
+        var data = csv(3 * Compression.BLOCK_SIZE);
+        var noise = new byte[Compression.BLOCK_SIZE];
+        new Random(3).nextBytes(noise);
+        System.arraycopy(noise, 0, data, Compression.BLOCK_SIZE, noise.length);
+        var source = Files.createTempFile("compress", "source");
+        Files.write(source, data);
+
+        var wire = new ByteArrayOutputStream();
+        var digester = ChecksumAlgorithm.CRC32C.newDigester();
+        var progress = new long[1];
+        long sent;
+        try (var channel = FileChannel.open(source)) {
+            sent = Compression.LZ.send(channel, 10, data.length, digester, wire, bytes -> progress[0] += bytes);
+        }
+        assertEquals(sent, wire.size());
+        assertEquals(data.length - 10, progress[0]);
+        assertTrue(sent < data.length - 10);
+        assertTrue(sent > noise.length);
+
+        var target = Files.createTempFile("compress", "target");
+        var validator = new Validator(ChecksumAlgorithm.CRC32C);
+        validator.expect(digester.digest());
+        receive(wire.toByteArray(), target, data.length - 10, validator);
+        validator.validate();
+        assertArrayEquals(Arrays.copyOfRange(data, 10, data.length), Arrays.copyOf(Files.readAllBytes(target), data.length - 10));
+
+        var truncated = Arrays.copyOf(wire.toByteArray(), (int) sent - 1);
+        assertThrows(IOException.class, () -> receive(truncated, target, data.length - 10, null));
+        var tooLong = wire.toByteArray();
+        assertThrows(ProtocolException.class, () -> receive(tooLong, target, Compression.BLOCK_SIZE - 1, null));
+    }
+
+    @Test
+    public void testBlocksAreCutToTheBurst() throws IOException {
+        var data = new byte[Compression.BLOCK_SIZE];
+        new Random(5).nextBytes(data);
+        var source = Files.createTempFile("compress", "source");
+        Files.write(source, data);
+
+        var wire = new ByteArrayOutputStream();
+        RateLimiter.SHARED.setRate(1L << 30, RateLimiter.MIN_BURST);
+        try (var channel = FileChannel.open(source)) {
+            Compression.LZ.send(channel, 0, data.length, null, wire, bytes -> {});
+        } finally {
+            RateLimiter.SHARED.setRate(0, 0);
+        }
+        var blocks = ByteBuffer.wrap(wire.toByteArray());
+        int count = 0;
+        while (blocks.hasRemaining()) {
+            int compressed = blocks.getInt(blocks.position() + Byte.BYTES + Integer.BYTES);
+            assertTrue(Compression.BLOCK_HEADER_LENGTH + compressed <= RateLimiter.MIN_BURST);
+            blocks.position(blocks.position() + Compression.BLOCK_HEADER_LENGTH + compressed);
+            ++count;
+        }
+        assertTrue(count >= Compression.BLOCK_SIZE / RateLimiter.MIN_BURST);
+
+        var target = Files.createTempFile("compress", "target");
+        receive(wire.toByteArray(), target, data.length, null);
+        assertArrayEquals(data, Files.readAllBytes(target));
+    }
+
+    private static void receive(byte[] wire, Path target, long length, Validator validator) throws IOException {
+        try (var channel = FileChannel.open(target, StandardOpenOption.WRITE)) {
+            Compression.receive(new ByteArrayInputStream(wire), channel, 0, length, validator);
+        }
+    }
+
+    static byte[] csv(int length) {
+        var random = new Random(length);
+        var text = new StringBuilder();
+        while (text.length() < length) {
+            text.append("2024-05-").append(10 + random.nextInt(20)).append(",INFO,request served,")
+                    .append(random.nextInt(1000)).append(",ms\n");
+        }
+        return Arrays.copyOf(text.toString().getBytes(StandardCharsets.UTF_8), length);
+    }
+
+    static File csvFile(Path directory, int length) throws IOException {
+        var file = Files.createTempFile(directory, "log", ".csv");
+        Files.write(file, csv(length));
+        return file.toFile();
+    }
+
+    @Test
+    public void testCompressedPipelinedToSelectorReceiver(@TempDir Path sourceDirectory, @TempDir Path targetDirectory) throws Exception {
+        var receiver = new SelectorReceiver(Wormhole.DEFAULT_RECEIVER_PORT, Wormhole.DEFAULT_CHUNK_SIZE, 2, true);
+        receiver.setEventLoops(1);
+        var sender = new ChannelSender("sender");
+        sender.setChecksumMode(Sender.ChecksumMode.TRAILER);
+        sender.setCompression(Compression.LZ);
+        assertCompressedFilesArrive(receiver, sender, sourceDirectory, targetDirectory);
+    }
+
+    @Test
+    public void testCompressedToSimpleReceiver(@TempDir Path sourceDirectory, @TempDir Path targetDirectory) throws Exception {
+        var receiver = new SimpleBlockingReceiver();
+        var sender = new SimpleBlockingSender("sender");
+        sender.setWindow(1);
+        sender.setCompression(Compression.DEFLATE);
+        assertCompressedFilesArrive(receiver, sender, sourceDirectory, targetDirectory);
+    }
+
+    /**
+     * Sends two files that compress and one that does not, and expects all three to arrive as
+     * they were, with fewer bytes on the wire than in the files but progress counting them all.
+     */
+    private static void assertCompressedFilesArrive(Receiver receiver, Sender sender, Path sourceDirectory, Path targetDirectory) throws Exception {
+        var noise = new byte[100_000];
+        new Random(1).nextBytes(noise);
+        var media = Files.write(Files.createTempFile(sourceDirectory, "media", ".jpg"), noise).toFile();
+        var files = List.of(csvFile(sourceDirectory, 3 * Compression.BLOCK_SIZE + 5), csvFile(sourceDirectory, 1000), media);
+
+        receiver.setAcceptor((username, filename, length) -> true);
+        var running = TestReceiver.start(receiver, targetDirectory);
+        long sent = Metrics.SHARED.sentBytes.sum();
+        try {
+            sender.send(sourceDirectory.toFile(), "127.0.0.1", Wormhole.DEFAULT_RECEIVER_PORT);
+        } finally {
+            running.stop();
+        }
+        assertEquals(files.size(), sender.getFilesTransferred());
+        long length = files.stream().mapToLong(File::length).sum();
+        assertEquals(length, sender.getProgress().bytes());
+        // The noise goes as it is, while the csv files take less than half their size.
+        long wire = Metrics.SHARED.sentBytes.sum() - sent;
+        assertTrue(wire < noise.length + (length - noise.length) / 2, wire + " of " + length + " bytes on the wire");
+        for (var file : files) {
+            var received = targetDirectory.resolve(Wormhole.removeRoot(file.getAbsolutePath()));
+            assertArrayEquals(Files.readAllBytes(file.toPath()), Files.readAllBytes(received));
+        }
+    }
+}
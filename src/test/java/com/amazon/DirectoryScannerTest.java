@@ -0,0 +1,139 @@
+package com.amazon;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class DirectoryScannerTest {
+
+    @TempDir
+    Path root;
+
+    @Test
+    public void testWorkersTakeEveryFileThroughASmallQueue() throws Exception {
+        var expected = populate(root, 3, 4);
+        var taken = ConcurrentHashMap.<File>newKeySet();
+        var workers = Executors.newFixedThreadPool(3);
+        try (var scanner = DirectoryScanner.walk(root.toFile(), 3, 2)) {
+            var results = new ArrayList<Future<?>>();
+            for (int i = 0; i < 3; ++i) {
+                results.add(workers.submit(() -> {
+                    File file;
+                    while ((file = scanner.take()) != null) {
+                        taken.add(file);
+                    }
+                    return null;
+                }));
+            }
+            for (var result : results) {
+                result.get(30, TimeUnit.SECONDS);
+            }
+            assertNull(scanner.take());
+            assertEquals(expected.size(), scanner.found());
+        } finally {
+            workers.shutdown();
+        }
+        assertEquals(expected, taken);
+    }
+
+    @Test
+    public void testLargestFilesAreTakenFirst() throws Exception {
+        var sizes = List.of(5, 300, 0, 4000, 20);
+        var produced = new CountDownLatch(1);
+        try (var scanner = DirectoryScanner.of(files -> {
+            for (var size : sizes) {
+                files.accept(Files.write(root.resolve("file" + size), new byte[size]).toFile());
+            }
+            produced.countDown();
+        }, 8)) {
+            produced.await();
+            var lengths = new ArrayList<Long>();
+            File file;
+            while ((file = scanner.take()) != null) {
+                lengths.add(file.length());
+            }
+            assertEquals(List.of(4000L, 300L, 20L, 5L, 0L), lengths);
+        }
+    }
+
+    @Test
+    public void testSourceFailureFailsTakeAtOnce() throws Exception {
+        var failed = new CountDownLatch(1);
+        var scanner = DirectoryScanner.of(files -> {
+            files.accept(new File("one"));
+            failed.countDown();
+            throw new IOException("Receiver went away.");
+        }, 8);
+        failed.await();
+        // Once the scan failed, files still waiting are not handed out.
+        var thrown = assertThrows(IOException.class, () -> {
+            while (scanner.take() != null) {
+                Thread.sleep(10);
+            }
+        });
+        assertEquals("Receiver went away.", thrown.getCause().getMessage());
+        assertThrows(RuntimeException.class, scanner::close);
+    }
+
+    @Test
+    public void testDirectoriesBeyondTheQueueAreReadInPlace() throws Exception {
+        var expected = populate(root, 6, 1);
+        var taken = new HashSet<File>();
+        // One thread and room for one waiting directory, with 127 directories to read.
+        try (var scanner = DirectoryScanner.walk(root.toFile(), 1, 1)) {
+            File file;
+            while ((file = scanner.take()) != null) {
+                taken.add(file);
+            }
+        }
+        assertEquals(expected, taken);
+    }
+
+    @Test
+    public void testCloseStopsAScanNobodyTakesFrom() throws Exception {
+        populate(root, 1, 10);
+        var scanner = DirectoryScanner.walk(root.toFile(), 1, 1);
+        assertNotNull(scanner.take());
+        scanner.close();
+    }
+
+    /**
+     * Creates files in root and in depth levels of subdirectories under it, two per level.
+     */
+    private static Set<File> populate(Path root, int depth, int filesPerDirectory) throws IOException {
+        var files = new HashSet<File>();
+        var directories = List.of(root);
+        for (int level = 0; level <= depth; ++level) {
+            var next = new ArrayList<Path>();
+            for (var directory : directories) {
+                for (int i = 0; i < filesPerDirectory; ++i) {
+                    files.add(Files.writeString(directory.resolve("file" + i), "level " + level).toFile());
+                }
+                if (level < depth) {
+                    next.add(Files.createDirectory(directory.resolve("a")));
+                    next.add(Files.createDirectory(directory.resolve("b")));
+                }
+            }
+            directories = next;
+        }
+        return files;
+    }
+}
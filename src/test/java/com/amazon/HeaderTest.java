@@ -2,11 +2,16 @@ package com.amazon;
 
 import org.junit.jupiter.api.Test;
 
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class HeaderTest {
     @Test
@@ -31,6 +36,88 @@ public class HeaderTest {
         assertArrayEquals(header.checksum(), decoded.checksum());
     }
 
+    @Test
+    public void testMarshalHeaderWithTrailingChecksum() {
+        var header = new Header("Sender", "File.txt", 20, ChecksumAlgorithm.XXHASH64, null, Header.TRAILING_CHECKSUM, 0, 0);
+        var decoded = Header.decode(header.encode());
+        assertTrue(decoded.hasTrailingChecksum());
+        assertEquals(ChecksumAlgorithm.XXHASH64, decoded.algorithm());
+        assertNull(decoded.checksum());
+    }
+
+    @Test
+    public void testMarshalHeaderWithChunkChecksums() {
+        var header = new Header("Sender", "File.txt", 20, ChecksumAlgorithm.CRC32C, null, Header.CHUNK_CHECKSUMS, 8, 1234);
+        var decoded = Header.decode(header.encode());
+        assertTrue(decoded.hasChunkChecksums());
+        assertEquals(8, decoded.blockSize());
+        assertEquals(3, decoded.blockCount());
+        assertEquals(1234, decoded.lastModified());
+    }
+
+    @Test
+    public void testMarshalHeaderWithMultibyteCharacters() {
+        var header = new Header("Zo\u00EB", "/tmp/r\u00E9sum\u00E9/\u6587\u4EF6-\uD83D\uDE00.txt", 20, null);
+        var encoded = header.encode();
+        assertEquals(header.frameLength(), encoded.length);
+        assertEquals(encoded.length - Protocol.FRAME_PREFIX_LENGTH, ByteBuffer.wrap(encoded).getInt());
+        var decoded = Header.decode(encoded);
+        assertEquals(header.sender(), decoded.sender());
+        assertEquals(header.filePath(), decoded.filePath());
+        assertEquals(header.fileLength(), decoded.fileLength());
+    }
+
+    @Test
+    public void testViewReadsCoalescedFrames() throws Exception {
+        var first = new Header("Sender", "one.txt", 1, ChecksumAlgorithm.CRC32C, null, Header.TRAILING_CHECKSUM, 0, 5);
+        var second = new Header("Sender", "two.txt", 2, new byte[] {1, 2});
+        var buffer = ByteBuffer.allocateDirect(first.frameLength() + second.frameLength() + 3);
+        first.encodeTo(buffer);
+        second.encodeTo(buffer);
+        buffer.put(new byte[] {9, 9, 9}).flip();
+
+        var view = new HeaderView();
+        view.wrap(buffer);
+        assertEquals("one.txt", view.filePath());
+        assertEquals(Header.TRAILING_CHECKSUM, view.flags());
+        assertEquals(5, view.lastModified());
+        view.wrap(buffer);
+        assertEquals("two.txt", view.filePath());
+        assertArrayEquals(new byte[] {1, 2}, view.checksum());
+        assertEquals(3, buffer.remaining());
+        assertEquals(-1, Protocol.frameLength(buffer));
+    }
+
+    @Test
+    public void testIncompleteAndMalformedFrames() throws Exception {
+        var encoded = new Header("Sender", "File.txt", 20, null).encode();
+        assertEquals(-1, Protocol.frameLength(ByteBuffer.wrap(encoded, 0, encoded.length - 1)));
+        assertEquals(encoded.length, Protocol.frameLength(ByteBuffer.wrap(encoded)));
+
+        var tooLong = ByteBuffer.allocate(Integer.BYTES).putInt(Protocol.MAX_FRAME_LENGTH + 1).flip();
+        assertThrows(ProtocolException.class, () -> Protocol.frameLength(tooLong));
+
+        // The file path claims more bytes than the frame has.
+        ByteBuffer.wrap(encoded).putShort(Protocol.FRAME_PREFIX_LENGTH + Short.BYTES + "Sender".length(), (short) 100);
+        assertThrows(ProtocolException.class, () -> new HeaderView().wrap(ByteBuffer.wrap(encoded)));
+    }
+
+    @Test
+    public void testPreamble() throws Exception {
+        Protocol.checkPreamble(Protocol.preamble());
+        var otherVersion = ByteBuffer.allocate(Protocol.PREAMBLE_LENGTH).putInt(Protocol.MAGIC).put((byte) 1).flip();
+        assertThrows(ProtocolException.class, () -> Protocol.checkPreamble(otherVersion));
+        var notWormhole = ByteBuffer.wrap("GET / HTTP/1.1".getBytes());
+        assertThrows(ProtocolException.class, () -> Protocol.checkPreamble(notWormhole));
+    }
+
+    @Test
+    public void testAdmission() throws Exception {
+        Protocol.checkAdmission(ByteBuffer.wrap(new Admission(Admission.ADMITTED, 0).encode()));
+        var busy = ByteBuffer.wrap(new Admission(Admission.BUSY, 250).encode());
+        assertEquals(250, assertThrows(ReceiverBusyException.class, () -> Protocol.checkAdmission(busy)).retryAfterMillis());
+    }
+
     @Test
     public void testPaths() {
         Path path = Paths.get("/root/one/two");
@@ -0,0 +1,115 @@
+package com.amazon;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ManifestTest {
+
+    @TempDir
+    Path root;
+
+    @Test
+    public void testWantedFilesArriveBatchByBatch() throws Exception {
+        var sizes = List.of(100, 200, 300);
+        for (var size : sizes) {
+            Files.write(root.resolve("file" + size), new byte[size]);
+        }
+        try (var candidates = DirectoryScanner.walk(root.toFile());
+             var wanted = DirectoryScanner.fed(8)) {
+            while (!candidates.isScanned()) {
+                Thread.sleep(10);
+            }
+            var stream = new Manifest.Stream(candidates, wanted, root.toFile(), "sender", null);
+            var out = new ByteArrayOutputStream();
+            var settled = new int[1];
+            // The receiver has the largest file, which is listed first.
+            var needed = new BitSet();
+            needed.set(1, 3);
+            assertTrue(stream.exchange(out, answer(needed), () -> ++settled[0]));
+            assertEquals(1, settled[0]);
+
+            var request = ByteBuffer.wrap(out.toByteArray());
+            var header = Header.decode(request);
+            assertTrue(header.isManifest());
+            var entries = Manifest.decode(request);
+            assertEquals(3, entries.size());
+            assertEquals(300, entries.get(0).fileLength());
+
+            // Nothing goes out while wanted files wait to be sent.
+            assertFalse(stream.exchange(out, answer(new BitSet()), () -> ++settled[0]));
+            var taken = new ArrayList<Long>();
+            File file;
+            while ((file = wanted.poll()) != null) {
+                taken.add(file.length());
+            }
+            assertEquals(List.of(200L, 100L), taken);
+
+            // Once the candidates run out the wanted files end.
+            assertFalse(stream.exchange(out, answer(new BitSet()), () -> ++settled[0]));
+            assertEquals(1, settled[0]);
+            assertNull(wanted.take());
+        }
+    }
+
+    @Test
+    public void testMalformedManifestsAreRefused() throws Exception {
+        var entries = List.of(new Manifest.Entry("/a/b", 10, 20, new byte[16]));
+        var body = Manifest.encode(entries);
+
+        var negativeCount = ByteBuffer.wrap(body.clone()).putInt(0, -1);
+        assertThrows(ProtocolException.class, () -> Manifest.decode(negativeCount));
+        var tooMany = ByteBuffer.wrap(body.clone()).putInt(0, 2);
+        assertThrows(ProtocolException.class, () -> Manifest.decode(tooMany));
+        var negativePath = ByteBuffer.wrap(body.clone()).putShort(Integer.BYTES, (short) -1);
+        assertThrows(ProtocolException.class, () -> Manifest.decode(negativePath));
+        var pastEnd = ByteBuffer.wrap(body.clone()).putShort(body.length - 16 - Short.BYTES, (short) 17);
+        assertThrows(ProtocolException.class, () -> Manifest.decode(pastEnd));
+        assertEquals("/a/b", Manifest.decode(ByteBuffer.wrap(body)).get(0).filePath());
+
+        var oversized = new Header("sender", "", Manifest.MAX_LENGTH + 1L, ChecksumAlgorithm.MD5, null, Header.MANIFEST, 0, 0);
+        assertThrows(ProtocolException.class, () -> Manifest.read(oversized, new ByteArrayInputStream(body)));
+
+        var longPath = List.of(new Manifest.Entry("/" + "a".repeat(Short.MAX_VALUE), 10, 20, null));
+        assertThrows(IllegalArgumentException.class, () -> Manifest.encode(longPath));
+    }
+
+    @Test
+    public void testValidatingReceiverRefusesBatchedFilesWithoutChecksums() throws Exception {
+        var table = Manifest.encode(List.of(new Manifest.Entry("/a/b", 10, 20, null)));
+        var header = FileBatch.header("sender", ChecksumAlgorithm.MD5, table);
+        var response = new ByteArrayOutputStream();
+        var batch = FileBatch.receive(header, new ByteArrayInputStream(table), response,
+                (sender, path, length) -> true, true);
+        assertTrue(batch.files().isEmpty());
+        assertEquals(0, batch.length());
+
+        batch = FileBatch.receive(header, new ByteArrayInputStream(table), response,
+                (sender, path, length) -> true, false);
+        assertEquals(1, batch.files().size());
+    }
+
+    private static ByteArrayInputStream answer(BitSet needed) throws IOException {
+        var answer = new ByteArrayOutputStream();
+        answer.write(new Acceptance(Acceptance.ACCEPTED, ChecksumAlgorithm.MD5, 0).encode());
+        answer.write(Manifest.encodeNeeded(needed));
+        return new ByteArrayInputStream(answer.toByteArray());
+    }
+}
@@ -0,0 +1,103 @@
+package com.amazon;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class MetricsTest {
+
+    @Test
+    public void testHistogramBucketsAreCumulative() {
+        var metrics = new Metrics();
+        metrics.answer.record(TimeUnit.MICROSECONDS.toNanos(50));
+        metrics.answer.record(TimeUnit.MILLISECONDS.toNanos(3));
+        metrics.answer.record(TimeUnit.SECONDS.toNanos(200));
+        var text = metrics.scrape();
+        assertTrue(text.contains("# TYPE wormhole_file_answer_seconds histogram\n"), text);
+        assertTrue(text.contains("wormhole_file_answer_seconds_bucket{le=\"1.0E-4\"} 1\n"), text);
+        assertTrue(text.contains("wormhole_file_answer_seconds_bucket{le=\"0.0025\"} 1\n"), text);
+        assertTrue(text.contains("wormhole_file_answer_seconds_bucket{le=\"0.005\"} 2\n"), text);
+        assertTrue(text.contains("wormhole_file_answer_seconds_bucket{le=\"100.0\"} 2\n"), text);
+        assertTrue(text.contains("wormhole_file_answer_seconds_bucket{le=\"+Inf\"} 3\n"), text);
+        assertTrue(text.contains("wormhole_file_answer_seconds_count 3\n"), text);
+    }
+
+    @Test
+    public void testFileTimerRecordsEachStep() {
+        var metrics = new Metrics();
+        var timer = new Metrics.FileTimer(metrics);
+        timer.header();
+        timer.answered();
+        timer.received(10);
+        timer.received(5);
+        timer.lastByte();
+        timer.completed(true);
+
+        // A pipelined file was answered earlier, so only its transfer is timed.
+        timer.content();
+        timer.received(7);
+        timer.lastByte();
+        timer.completed(false);
+
+        assertEquals(1, metrics.answer.count());
+        assertEquals(1, metrics.firstByte.count());
+        assertEquals(2, metrics.lastByte.count());
+        assertEquals(1, metrics.validation.count());
+        assertEquals(22, metrics.receivedBytes.sum());
+        assertEquals(2, metrics.receivedFiles.sum());
+    }
+
+    @Test
+    public void testFileTimerTimesTheFilesOfABatch() {
+        var metrics = new Metrics();
+        var timer = new Metrics.FileTimer(metrics);
+        timer.header();
+        timer.answered();
+        for (int i = 0; i < 3; ++i) {
+            timer.received(10);
+            timer.lastByte();
+            timer.completed(i == 2);
+        }
+
+        // Only the first file of the batch waited on the answer.
+        assertEquals(1, metrics.answer.count());
+        assertEquals(1, metrics.firstByte.count());
+        assertEquals(3, metrics.lastByte.count());
+        assertEquals(1, metrics.validation.count());
+        assertEquals(3, metrics.receivedFiles.sum());
+    }
+
+    @Test
+    public void testServerAnswersScrapes() throws Exception {
+        try (var server = MetricsServer.start(0)) {
+            var client = HttpClient.newHttpClient();
+            var request = HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + server.port() + "/metrics")).build();
+            var response = client.send(request, HttpResponse.BodyHandlers.ofString());
+            assertEquals(200, response.statusCode());
+            assertEquals(Metrics.CONTENT_TYPE, response.headers().firstValue("Content-Type").orElse(null));
+            assertTrue(response.body().contains("\nwormhole_received_files_total "), response.body());
+        }
+    }
+
+    @Test
+    public void testTransfersAreCountedInMetrics(@TempDir Path sourceDirectory, @TempDir Path targetDirectory) throws Exception {
+        long sent = Metrics.SHARED.sentFiles.sum();
+        long received = Metrics.SHARED.receivedFiles.sum();
+        long answers = Metrics.SHARED.answer.count();
+        var sender = new ChannelSender("sender");
+        TestReceiver.sendDirectory(new ChannelReceiver(), sender, sourceDirectory, targetDirectory);
+        assertEquals(TestReceiver.FILE_COUNT, Metrics.SHARED.sentFiles.sum() - sent);
+        assertEquals(TestReceiver.FILE_COUNT, Metrics.SHARED.receivedFiles.sum() - received);
+        assertEquals(TestReceiver.FILE_COUNT, Metrics.SHARED.answer.count() - answers);
+        assertEquals(0, Metrics.SHARED.activeConnections.sum());
+    }
+}
@@ -0,0 +1,55 @@
+package com.amazon;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ProgressReporterTest {
+    private static final long SECOND = 1_000_000_000L;
+    private static final long MB = 1024 * 1024;
+
+    @Test
+    public void testReportsRatesAndTimeLeft() {
+        var reporter = new ProgressReporter(null, false, System.out, 0);
+        var line = reporter.report(new Sender.Progress(10 * MB, 0, 3, 100 * MB, 10, true, new long[] {4 * MB, 6 * MB}), SECOND);
+        assertEquals("Sent 10mb of 100mb (10.0%), 3 of 10 files, 10mb/s, average 10mb/s,"
+                + " 2 connections at 4mb/s to 6mb/s, 0:00:09 left", line);
+    }
+
+    @Test
+    public void testSkippedBytesAreDoneButNotThroughput() {
+        var reporter = new ProgressReporter(null, false, System.out, 0);
+        var line = reporter.report(new Sender.Progress(10 * MB, 40 * MB, 3, 100 * MB, 10, true, new long[0]), SECOND);
+        assertEquals("Sent 10mb and skipped 40mb of 100mb (50.0%), 3 of 10 files, 10mb/s, average 10mb/s,"
+                + " 0:00:05 left", line);
+    }
+
+    @Test
+    public void testAverageFollowsSlowly() {
+        var reporter = new ProgressReporter(null, true, System.out, 0);
+        reporter.report(new Sender.Progress(100 * MB, 0, 0, 0, 0, false, new long[0]), SECOND);
+        // Ten seconds at a tenth of the rate move the average a little over a quarter of the way.
+        var line = reporter.report(new Sender.Progress(200 * MB, 0, 0, 0, 0, false, new long[0]), 11 * SECOND);
+        long average = Long.parseLong(line.replaceAll(".*\"averageRate\":(\\d+).*", "$1"));
+        double expected = 100 * MB - (1 - Math.exp(-10 / ProgressReporter.EWMA_SECONDS)) * 90 * MB;
+        assertEquals(expected, average, 1);
+        assertTrue(line.contains("\"rate\":" + 10 * MB + ","), line);
+        assertTrue(line.endsWith("\"eta\":null}"), line);
+    }
+
+    @Test
+    public void testJsonLines() {
+        var out = new ByteArrayOutputStream();
+        var progress = new Sender.Progress(MB, 0, 1, 2 * MB, 2, true, new long[] {MB});
+        // Closing prints the last report.
+        new ProgressReporter(() -> progress, true, new PrintStream(out, true), System.nanoTime()).close();
+        var line = out.toString().trim();
+        assertTrue(line.matches("\\{\"elapsed\":[0-9.]+,\"bytes\":1048576,\"skippedBytes\":0,\"totalBytes\":2097152,\"files\":1,"
+                + "\"totalFiles\":2,\"totalKnown\":true,\"rate\":\\d+,\"averageRate\":\\d+,"
+                + "\"connectionRates\":\\[\\d+\\],\"eta\":[0-9.]+\\}"), line);
+    }
+}
@@ -0,0 +1,154 @@
+package com.amazon;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class RateLimiterTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void testUncappedNeverWaits() {
+        var limiter = new RateLimiter(() -> {
+            throw new AssertionError("Read the clock while uncapped");
+        });
+        for (int i = 0; i < 1000; ++i) {
+            assertEquals(0, limiter.take(Long.MAX_VALUE / 2));
+        }
+        assertEquals(10 << 20, limiter.limit(10 << 20));
+    }
+
+    @Test
+    public void testSendsAtTheRate() {
+        var now = new long[1];
+        var limiter = new RateLimiter(() -> now[0]);
+        limiter.setRate(2_000_000, 64 * 1024);
+        assertEquals(64 * 1024, limiter.limit(10 << 20));
+        int sent = 0;
+        while (sent < 1_000_000) {
+            now[0] += limiter.take(64 * 1024);
+            sent += 64 * 1024;
+        }
+        // The bucket starts empty, so every byte goes at two megabytes a second.
+        assertEquals(sent * 1e9 / 2_000_000, now[0], 1000);
+
+        // A pause fills the bucket up to the burst and no further.
+        now[0] += TimeUnit.SECONDS.toNanos(10);
+        assertEquals(0, limiter.take(64 * 1024));
+        assertEquals(64 * 1024 * 1e9 / 2_000_000, limiter.take(64 * 1024), 1000);
+    }
+
+    @Test
+    public void testUnsentBytesAreRefunded() {
+        var now = new long[1];
+        var limiter = new RateLimiter(() -> now[0]);
+        limiter.setRate(1_000_000, 64 * 1024);
+        now[0] += TimeUnit.SECONDS.toNanos(1);
+        // A write that took tokens for the burst sent only half of it.
+        assertEquals(0, limiter.take(64 * 1024));
+        limiter.refund(32 * 1024);
+        assertEquals(0, limiter.take(32 * 1024));
+        assertEquals(1024 * 1e9 / 1_000_000, limiter.take(1024), 1000);
+
+        // Refunds never fill the bucket past the burst.
+        limiter.refund(1 << 20);
+        assertEquals(0, limiter.take(64 * 1024));
+        assertEquals(1024 * 1e9 / 1_000_000, limiter.take(1024), 1000);
+    }
+
+    @Test
+    public void testSmallSendGetsTurnDuringLargeOne() throws Exception {
+        var limiter = new RateLimiter(System::nanoTime);
+        limiter.setRate(1_000_000, 64 * 1024);
+        var started = new CountDownLatch(1);
+        var large = new Thread(() -> {
+            try {
+                for (int i = 0; i < 320; ++i) {
+                    limiter.acquire(64 * 1024);
+                    started.countDown();
+                }
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        large.start();
+        started.await();
+        long start = System.nanoTime();
+        limiter.acquire(64 * 1024);
+        limiter.acquire(1024);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        assertTrue(large.isAlive(), "Waited for the large send to finish");
+        // The large send needs twenty seconds, the small one two bursts' worth behind it.
+        assertTrue(seconds < 5, "Took " + seconds + "s");
+
+        // Lifting the cap lets the large send finish at once.
+        limiter.setRate(0, 0);
+        large.join(TimeUnit.SECONDS.toMillis(5));
+        assertFalse(large.isAlive());
+    }
+
+    @Test
+    public void testWatchReadsTheRateWhenTheFileChanges() throws Exception {
+        var limiter = new RateLimiter(System::nanoTime);
+        var file = directory.resolve("rate");
+        Files.writeString(file, "1000000 65536\n");
+        Files.setLastModifiedTime(file, FileTime.fromMillis(1000));
+        var watch = limiter.watch(file, 10);
+        try {
+            assertEquals(1_000_000, limiter.rate());
+            assertEquals(65536, limiter.limit(10 << 20));
+
+            // A file that does not parse leaves the rate as it was.
+            Files.writeString(file, "fast");
+            Files.setLastModifiedTime(file, FileTime.fromMillis(2000));
+            Thread.sleep(100);
+            assertEquals(1_000_000, limiter.rate());
+
+            Files.writeString(file, "0");
+            Files.setLastModifiedTime(file, FileTime.fromMillis(3000));
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (limiter.rate() != 0 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(0, limiter.rate());
+        } finally {
+            watch.close();
+        }
+    }
+
+    @Test
+    public void testRateLimitedDirectory(@TempDir Path sourceDirectory, @TempDir Path targetDirectory) throws Exception {
+        for (int i = 0; i < 3; ++i) {
+            Files.write(Files.createTempFile(sourceDirectory, "source", "source"), new byte[256 * 1024]);
+        }
+        var receiver = new ChannelReceiver();
+        receiver.setAcceptor((username, filename, length) -> true);
+        var running = TestReceiver.start(receiver, targetDirectory);
+
+        var sender = new ChannelSender("sender", Wormhole.DEFAULT_CHUNK_SIZE, 2, true);
+        RateLimiter.SHARED.setRate(1_000_000, 64 * 1024);
+        long start = System.nanoTime();
+        try {
+            sender.send(sourceDirectory.toFile(), "127.0.0.1", Wormhole.DEFAULT_RECEIVER_PORT);
+        } finally {
+            RateLimiter.SHARED.setRate(0, 0);
+            running.stop();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        // Both connections together get a megabyte a second, so the 768kb take at least most of a
+        // second; the bound leaves room for a bucket that was full when the cap was set.
+        assertTrue(seconds > 0.3, "Took " + seconds + "s");
+        assertEquals(3, TestReceiver.fileCount(targetDirectory));
+    }
+}
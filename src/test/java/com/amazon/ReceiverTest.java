@@ -0,0 +1,348 @@
+package com.amazon;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.DataInputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.amazon.Wormhole.DEFAULT_CHUNK_SIZE;
+import static com.amazon.Wormhole.DEFAULT_RECEIVER_PORT;
+import static java.time.Duration.ofSeconds;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Receivers talking to a sender that misbehaves, spoken to over the wire directly.
+ */
+public class ReceiverTest {
+    private static final int BLOCK_SIZE = 1024;
+
+    @TempDir
+    Path targetDirectory;
+
+    @TempDir
+    Path sourceDirectory;
+
+    private TestReceiver receiver;
+
+    private void start(Receiver receiver) throws InterruptedException {
+        this.receiver = TestReceiver.start(receiver, targetDirectory);
+    }
+
+    @AfterEach
+    public void stop() throws InterruptedException {
+        if (receiver != null) {
+            receiver.stop();
+            receiver = null;
+        }
+    }
+
+    @Test
+    public void testChannelReceiverGivesUpOnChunksThatStayCorrupt() throws Exception {
+        var receiver = new ChannelReceiver();
+        receiver.setAcceptor((sender, path, length) -> true);
+        start(receiver);
+        assertGivesUpOnCorruptChunk();
+    }
+
+    @Test
+    public void testSimpleReceiverGivesUpOnChunksThatStayCorrupt() throws Exception {
+        var receiver = new SimpleBlockingReceiver();
+        receiver.setAcceptor((sender, path, length) -> true);
+        start(receiver);
+        assertGivesUpOnCorruptChunk();
+    }
+
+    @Test
+    public void testSelectorReceiverGivesUpOnChunksThatStayCorrupt() throws Exception {
+        var receiver = new SelectorReceiver();
+        receiver.setAcceptor((sender, path, length) -> true);
+        start(receiver);
+        assertGivesUpOnCorruptChunk();
+    }
+
+    @Test
+    public void testChannelReceiverRejectsWhenTheAcceptorThrows() throws Exception {
+        assertRejectsWhenTheAcceptorThrows(new ChannelReceiver());
+    }
+
+    @Test
+    public void testSimpleReceiverRejectsWhenTheAcceptorThrows() throws Exception {
+        assertRejectsWhenTheAcceptorThrows(new SimpleBlockingReceiver());
+    }
+
+    /**
+     * Pipelines files to an acceptor that throws on every other one, and expects those to be
+     * rejected rather than leave the sender waiting on their answers.
+     */
+    private void assertRejectsWhenTheAcceptorThrows(Receiver receiver) throws Exception {
+        var asked = new AtomicInteger();
+        receiver.setAcceptor((sender, path, length) -> {
+            if (asked.incrementAndGet() % 2 == 0) {
+                throw new IllegalStateException("Acceptor failed");
+            }
+            return true;
+        });
+        start(receiver);
+        for (int i = 0; i < 4; ++i) {
+            Files.write(sourceDirectory.resolve("file" + i), new byte[BLOCK_SIZE]);
+        }
+        var sender = new ChannelSender("sender", DEFAULT_CHUNK_SIZE, 1, true);
+        sender.setWindow(2);
+        assertTimeoutPreemptively(ofSeconds(10), () -> sender.send(sourceDirectory.toFile(), "127.0.0.1", DEFAULT_RECEIVER_PORT));
+        assertEquals(4, asked.get());
+        assertEquals(2, sender.getFilesTransferred());
+    }
+
+    @Test
+    public void testOtherProtocolClosedByChannelReceiver() throws Exception {
+        assertOtherProtocolClosed(new ChannelReceiver(), new ChannelSender("sender"));
+    }
+
+    @Test
+    public void testOtherProtocolClosedBySelectorReceiver() throws Exception {
+        assertOtherProtocolClosed(new SelectorReceiver(), new SimpleBlockingSender("sender"));
+    }
+
+    /**
+     * Speaks something else to the receiver, and expects it to close that connection and still
+     * take the next send.
+     */
+    private void assertOtherProtocolClosed(Receiver receiver, Sender sender) throws Exception {
+        var transferFile = Files.writeString(sourceDirectory.resolve("file"), "Uninteresting text content");
+        receiver.setAcceptor((username, filename, length) -> true);
+        start(receiver);
+        try (var socket = new Socket("127.0.0.1", DEFAULT_RECEIVER_PORT)) {
+            socket.getOutputStream().write("HELLO".getBytes());
+            // The receiver admits every connection before it knows what it speaks.
+            assertEquals(Admission.LENGTH, socket.getInputStream().readNBytes(Admission.LENGTH).length);
+            assertEquals(-1, socket.getInputStream().read());
+        }
+        sender.send(transferFile.toFile(), "127.0.0.1", DEFAULT_RECEIVER_PORT);
+        stop();
+        assertTrue(Files.isRegularFile(targetDirectory.resolve(Wormhole.removeRoot(transferFile.toString()))));
+    }
+
+    @Test
+    public void testBusyReceiverTurnsConnectionsAway() throws Exception {
+        var transferFile = Files.writeString(sourceDirectory.resolve("file"), "Uninteresting text content");
+        var receiver = new ChannelReceiver(DEFAULT_RECEIVER_PORT, DEFAULT_CHUNK_SIZE, 1, true);
+        receiver.setMaxQueued(0);
+        receiver.setRetryAfter(50);
+        receiver.setAcceptor((username, filename, length) -> true);
+        start(receiver);
+
+        var first = Protocol.connect("127.0.0.1", DEFAULT_RECEIVER_PORT);
+        var executor = Executors.newSingleThreadExecutor();
+        try {
+            var busy = assertThrows(ReceiverBusyException.class, () -> Protocol.connect("127.0.0.1", DEFAULT_RECEIVER_PORT));
+            assertEquals(50, busy.retryAfterMillis());
+            assertEquals(1, receiver.getAdmissionControl().rejected());
+            assertThrows(ReceiverBusyException.class, () -> Protocol.admitted(
+                    () -> Protocol.connect("127.0.0.1", DEFAULT_RECEIVER_PORT), () -> true));
+
+            // A sender waits its turn and gets in once the first connection is done.
+            var sent = executor.submit(
+                    () -> new ChannelSender("sender").send(transferFile.toFile(), "127.0.0.1", DEFAULT_RECEIVER_PORT));
+            while (receiver.getAdmissionControl().rejected() < 3) {
+                Thread.sleep(10);
+            }
+            first.close();
+            sent.get(30, TimeUnit.SECONDS);
+        } finally {
+            first.close();
+            executor.shutdownNow();
+        }
+        stop();
+        assertTrue(Files.isRegularFile(targetDirectory.resolve(Wormhole.removeRoot(transferFile.toString()))));
+    }
+
+    @Test
+    public void testWorkersTurnedAwayLeaveFilesToConnectedOnes() throws Exception {
+        var receiver = new SimpleBlockingReceiver(DEFAULT_RECEIVER_PORT, DEFAULT_CHUNK_SIZE, 1, true);
+        receiver.setMaxQueued(0);
+        receiver.setRetryAfter(50);
+        var sender = new SimpleBlockingSender("sender", DEFAULT_CHUNK_SIZE, 4, true);
+        TestReceiver.sendDirectory(receiver, sender, sourceDirectory, targetDirectory);
+        assertEquals(TestReceiver.FILE_COUNT, sender.getFilesTransferred());
+        assertTrue(receiver.getAdmissionControl().rejected() > 0);
+    }
+
+    @Test
+    public void testSelectorReceiverWithSeveralAcceptors() throws Exception {
+        var receiver = new SelectorReceiver(DEFAULT_RECEIVER_PORT, DEFAULT_CHUNK_SIZE, 3, true);
+        receiver.setAcceptors(3);
+        assertAcceptsOnEveryChannel(receiver, 3, new ChannelSender("sender", DEFAULT_CHUNK_SIZE, 6, true));
+    }
+
+    @Test
+    public void testSimpleReceiverWithSeveralAcceptors() throws Exception {
+        var receiver = new SimpleBlockingReceiver();
+        receiver.setAcceptors(2);
+        assertAcceptsOnEveryChannel(receiver, 2, new SimpleBlockingSender("sender", DEFAULT_CHUNK_SIZE, 6, true));
+    }
+
+    /**
+     * Expects receiver to accept on a thread per SO_REUSEPORT channel, and a send over more
+     * connections than there are channels to get through.
+     */
+    private void assertAcceptsOnEveryChannel(Receiver receiver, int acceptors, Sender sender) throws Exception {
+        TestReceiver.populate(sourceDirectory, 2 * acceptors);
+        receiver.setAcceptor((username, filename, length) -> true);
+        start(receiver);
+        var accepting = Thread.getAllStackTraces().keySet().stream()
+                .map(Thread::getName).filter(name -> name.startsWith("accept-")).count();
+        assertEquals(acceptors, accepting);
+        sender.send(sourceDirectory.toFile(), "127.0.0.1", DEFAULT_RECEIVER_PORT);
+        assertEquals(2 * acceptors, sender.getFilesTransferred());
+    }
+
+    /**
+     * Holds two handed-off requests open on a receiver with one disk thread, and expects both to
+     * be answered and a plain send to still get through.
+     */
+    @Test
+    public void testSelectorReceiverServesMoreConnectionsThanDiskThreads() throws Exception {
+        var receiver = new SelectorReceiver(DEFAULT_RECEIVER_PORT, DEFAULT_CHUNK_SIZE, 1, true);
+        receiver.setEventLoops(1);
+        receiver.setAcceptor((sender, path, length) -> true);
+        start(receiver);
+        var header = new Header("sender", "/data/stalled", 2 * BLOCK_SIZE, ChecksumAlgorithm.MD5, null,
+                Header.CHUNK_CHECKSUMS, BLOCK_SIZE, 0);
+        try (var first = Protocol.connect("127.0.0.1", DEFAULT_RECEIVER_PORT);
+             var second = Protocol.connect("127.0.0.1", DEFAULT_RECEIVER_PORT)) {
+            assertTimeoutPreemptively(ofSeconds(10), () -> {
+                for (var stalled : new Socket[] {first, second}) {
+                    stalled.getOutputStream().write(header.encode());
+                    var in = new DataInputStream(stalled.getInputStream());
+                    var acceptance = Acceptance.decode(ByteBuffer.wrap(in.readNBytes(Acceptance.LENGTH)));
+                    assertEquals(Acceptance.ACCEPTED, acceptance.status());
+                }
+                Files.write(sourceDirectory.resolve("file"), new byte[BLOCK_SIZE]);
+                var sender = new ChannelSender("sender");
+                sender.send(sourceDirectory.toFile(), "127.0.0.1", DEFAULT_RECEIVER_PORT);
+                assertEquals(1, sender.getFilesTransferred());
+            });
+        }
+    }
+
+    /**
+     * Lets the selector receiver's connections have one direct buffer between them, so all but
+     * one must wait for it on the event loop without blocking it.
+     */
+    @Test
+    public void testSelectorReceiverWaitsForBuffersWithoutBlocking() throws Exception {
+        long directLimit = BufferPool.SHARED.directLimit();
+        BufferPool.SHARED.setDirectLimit(1);
+        try {
+            var receiver = new SelectorReceiver(DEFAULT_RECEIVER_PORT, DEFAULT_CHUNK_SIZE, 2, true);
+            receiver.setEventLoops(1);
+            receiver.setAcceptor((sender, path, length) -> true);
+            start(receiver);
+            for (int i = 0; i < 8; ++i) {
+                Files.write(sourceDirectory.resolve("file" + i), new byte[64 * BLOCK_SIZE]);
+            }
+            var sender = new ChannelSender("sender", DEFAULT_CHUNK_SIZE, 4, true);
+            assertTimeoutPreemptively(ofSeconds(30), () -> sender.send(sourceDirectory.toFile(), "127.0.0.1", DEFAULT_RECEIVER_PORT));
+            assertEquals(8, sender.getFilesTransferred());
+        } finally {
+            BufferPool.SHARED.setDirectLimit(directLimit);
+        }
+    }
+
+    /**
+     * Opens more connections than the selector receiver has disk threads and queues, and expects
+     * it to turn one away only once another waits for the one buffer there is.
+     */
+    @Test
+    public void testSelectorReceiverAdmitsUntilConnectionsWaitForBuffers() throws Exception {
+        long directLimit = BufferPool.SHARED.directLimit();
+        BufferPool.SHARED.setDirectLimit(1);
+        try {
+            var receiver = new SelectorReceiver(DEFAULT_RECEIVER_PORT, DEFAULT_CHUNK_SIZE, 1, true);
+            receiver.setEventLoops(1);
+            receiver.setMaxQueued(1);
+            receiver.setAcceptor((sender, path, length) -> true);
+            start(receiver);
+            var admission = receiver.getAdmissionControl();
+            var header = new Header("sender", "/data/stalled", 2 * BLOCK_SIZE, new byte[16]);
+            var idle = Protocol.connect("127.0.0.1", DEFAULT_RECEIVER_PORT);
+            var holding = Protocol.connect("127.0.0.1", DEFAULT_RECEIVER_PORT);
+            var starved = Protocol.connect("127.0.0.1", DEFAULT_RECEIVER_PORT);
+            try {
+                assertTimeoutPreemptively(ofSeconds(10), () -> {
+                    for (var stalled : new Socket[] {holding, starved}) {
+                        stalled.getOutputStream().write(header.encode());
+                        var in = new DataInputStream(stalled.getInputStream());
+                        var acceptance = Acceptance.decode(ByteBuffer.wrap(in.readNBytes(Acceptance.LENGTH)));
+                        assertEquals(Acceptance.ACCEPTED, acceptance.status());
+                        stalled.getOutputStream().write(new byte[BLOCK_SIZE]);
+                    }
+                    while (admission.queued() < 1) {
+                        Thread.sleep(10);
+                    }
+                    assertThrows(ReceiverBusyException.class, () -> Protocol.connect("127.0.0.1", DEFAULT_RECEIVER_PORT).close());
+
+                    holding.close();
+                    while (admission.queued() > 0) {
+                        Thread.sleep(10);
+                    }
+                    Protocol.connect("127.0.0.1", DEFAULT_RECEIVER_PORT).close();
+                    assertEquals(1, admission.rejected());
+                });
+            } finally {
+                idle.close();
+                holding.close();
+                starved.close();
+            }
+        } finally {
+            BufferPool.SHARED.setDirectLimit(directLimit);
+        }
+    }
+
+    /**
+     * Sends two chunks with checksums that never match the second, and expects the receiver to
+     * ask for it MAX_REPAIRS times and then say it gave up rather than leave the sender waiting.
+     */
+    private void assertGivesUpOnCorruptChunk() {
+        assertTimeoutPreemptively(ofSeconds(10), () -> {
+            var data = new byte[2 * BLOCK_SIZE];
+            var good = ChecksumAlgorithm.MD5.newDigester();
+            good.update(data, 0, BLOCK_SIZE);
+            var goodChecksum = good.digest();
+            var badChecksum = new byte[goodChecksum.length];
+            var header = new Header("sender", "/data/corrupt", data.length, ChecksumAlgorithm.MD5, null,
+                    Header.CHUNK_CHECKSUMS, BLOCK_SIZE, 0);
+            try (var socket = Protocol.connect("127.0.0.1", DEFAULT_RECEIVER_PORT)) {
+                var out = socket.getOutputStream();
+                var in = new DataInputStream(socket.getInputStream());
+                out.write(header.encode());
+                var acceptance = Acceptance.decode(ByteBuffer.wrap(in.readNBytes(Acceptance.LENGTH)));
+                assertEquals(Acceptance.ACCEPTED, acceptance.status());
+                sendChunk(socket, goodChecksum);
+                sendChunk(socket, badChecksum);
+                for (int attempt = 0; attempt < ChunkVerifier.MAX_REPAIRS; ++attempt) {
+                    assertEquals(1, in.readInt());
+                    assertEquals(1, in.readInt());
+                    sendChunk(socket, badChecksum);
+                }
+                assertEquals(ChunkVerifier.GAVE_UP, in.readInt());
+            }
+        });
+    }
+
+    private static void sendChunk(Socket socket, byte[] checksum) throws Exception {
+        socket.getOutputStream().write(new byte[BLOCK_SIZE]);
+        socket.getOutputStream().write(Header.encodeTrailer(checksum));
+    }
+}
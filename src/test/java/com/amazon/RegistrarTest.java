@@ -9,6 +9,8 @@ import org.junit.jupiter.api.Test;
 
 import static com.amazon.Wormhole.DEFAULT_RECEIVER_PORT;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 @MicronautTest
 public class RegistrarTest {
@@ -37,4 +39,15 @@ public class RegistrarTest {
         Registration fetched = client.toBlocking().retrieve(fetch, Registration.class);
         assertEquals(created, fetched);
     }
+
+    @Test
+    void testMetrics() {
+        var register = HttpRequest.GET("/register");
+        register.getParameters().add("username", "Dr. Rock");
+        register.getParameters().add("target", String.valueOf(DEFAULT_RECEIVER_PORT));
+        client.toBlocking().retrieve(register, Registration.class);
+        String metrics = client.toBlocking().retrieve(HttpRequest.GET("/metrics"));
+        assertTrue(metrics.contains("\nwormhole_registrations 1\n"), metrics);
+        assertFalse(metrics.contains("wormhole_received_bytes_total"), metrics);
+    }
 }
@@ -1,15 +1,16 @@
 package com.amazon;
 
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.SimpleFileVisitor;
-import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Stream;
 
 import static com.amazon.Wormhole.*;
@@ -18,22 +19,20 @@ import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class SenderTest {
 
-    private Thread receiverThread;
-    private Receiver receiver;
+    @TempDir
+    Path targetDirectory;
+
+    @TempDir
+    Path sourceDirectory;
+
+    private TestReceiver receiver;
 
     public void setupChannelReceiver(final Receiver receiver) throws InterruptedException {
-        this.receiver = receiver;
-        receiverThread = new Thread(receiver::receive);
-        receiverThread.setDaemon(true);
-        receiverThread.start();
-        receiverThread.setName("Receiver");
-        Thread.sleep(100);
+        this.receiver = TestReceiver.start(receiver, targetDirectory);
     }
 
     public void teardownReceiver() throws InterruptedException {
         receiver.stop();
-        receiverThread.interrupt();
-        receiverThread.join();
     }
 
     @Test
@@ -53,11 +52,9 @@ public class SenderTest {
     }
 
     private void testAcceptedByReceiver(Receiver receiver, Sender sender) throws Exception {
-        var targetDirectory = Files.createTempDirectory("transfer-test");
         File transferFile = createTransferFile();
 
         receiver.setAcceptor((username, filename, length) -> true);
-        receiver.setTargetDirectory(targetDirectory);
         setupChannelReceiver(receiver);
 
         try {
@@ -66,7 +63,15 @@ public class SenderTest {
             teardownReceiver();
         }
 
-        assertTrue(Files.isRegularFile(targetDirectory.resolve(transferFile.getName())));
+        assertTrue(Files.isRegularFile(targetDirectory.resolve(Wormhole.removeRoot(transferFile.getAbsolutePath()))));
+    }
+
+    @Test
+    public void testAcceptedBySelectorReceiver() throws Exception {
+        var receiver = new SelectorReceiver();
+        var sender = new SimpleBlockingSender("sender");
+
+        testAcceptedByReceiver(receiver, sender);
     }
 
     @Test
@@ -86,11 +91,9 @@ public class SenderTest {
     }
 
     private void testRejectedByReceiver(Receiver receiver, Sender sender) throws Exception {
-        var targetDirectory = Files.createTempDirectory("transfer-test");
         var transferFile = createTransferFile();
 
         receiver.setAcceptor((username, filename, length) -> false);
-        receiver.setTargetDirectory(targetDirectory);
         setupChannelReceiver(receiver);
 
         try {
@@ -102,6 +105,74 @@ public class SenderTest {
         assertTrue(isDirectoryEmpty(targetDirectory));
     }
 
+    @Test
+    public void testResumeWithChannelReceiver() throws Exception {
+        var receiver = new ChannelReceiver();
+        var sender = new ChannelSender("sender");
+        sender.setChecksumMode(Sender.ChecksumMode.TRAILER);
+        testResume(receiver, sender, "Uninteresting");
+    }
+
+    @Test
+    public void testResumeThroughBufferRingOfChannelReceiver() throws Exception {
+        // Four byte ring buffers, so every stage sees many of them.
+        var receiver = new ChannelReceiver(DEFAULT_RECEIVER_PORT, 4096, DEFAULT_THREAD_COUNT, true);
+        receiver.setRingBuffers(1024);
+        var sender = new ChannelSender("sender");
+        sender.setChecksumMode(Sender.ChecksumMode.TRAILER);
+        testResume(receiver, sender, "Uninteresting");
+    }
+
+    @Test
+    public void testBufferRingOfSimpleReceiver() throws Exception {
+        var receiver = new SimpleBlockingReceiver(DEFAULT_RECEIVER_PORT, 8, DEFAULT_THREAD_COUNT, true);
+        receiver.setRingBuffers(2);
+        var sender = new SimpleBlockingSender("sender");
+        testResume(receiver, sender, "Interesting");
+    }
+
+    @Test
+    public void testSingleBufferRingOfSimpleReceiver() throws Exception {
+        // The reader writes each buffer itself before it takes the only one again.
+        var receiver = new SimpleBlockingReceiver(DEFAULT_RECEIVER_PORT, 8, DEFAULT_THREAD_COUNT, true);
+        receiver.setRingBuffers(1);
+        var sender = new SimpleBlockingSender("sender");
+        testResume(receiver, sender, "Interesting");
+    }
+
+    @Test
+    public void testResumeDifferentFileWithSimpleReceiver() throws Exception {
+        var receiver = new SimpleBlockingReceiver();
+        var sender = new SimpleBlockingSender("sender");
+        testResume(receiver, sender, "Interesting");
+    }
+
+    @Test
+    public void testResumeDifferentFileWithoutValidation() throws Exception {
+        var receiver = new ChannelReceiver(DEFAULT_RECEIVER_PORT, DEFAULT_CHUNK_SIZE, DEFAULT_THREAD_COUNT, false);
+        var sender = new ChannelSender("sender");
+        testResume(receiver, sender, "Interesting");
+    }
+
+    private void testResume(Receiver receiver, Sender sender, String partialContent) throws Exception {
+        var transferFile = createTransferFile();
+        var partialFile = targetDirectory.resolve(Wormhole.removeRoot(transferFile.getAbsolutePath()));
+        Files.createDirectories(partialFile.getParent());
+        Files.writeString(partialFile, partialContent);
+
+        receiver.setAcceptor((username, filename, length) -> true);
+        setupChannelReceiver(receiver);
+
+        try {
+            sender.setResume(true);
+            sender.send(transferFile, "127.0.0.1", DEFAULT_RECEIVER_PORT);
+        } finally {
+            teardownReceiver();
+        }
+
+        assertEquals(Files.readString(transferFile.toPath()), Files.readString(partialFile));
+    }
+
     @Test
     public void testSendDirectoryWithSimpleReceiver() throws Exception {
         var receiver = new SimpleBlockingReceiver();
@@ -144,53 +215,247 @@ public class SenderTest {
         testSendDirectory(receiver, sender);
     }
 
-    private void testSendDirectory(Receiver receiver, Sender sender) throws Exception {
+    @Test
+    public void testSendDirectoryWithTrailingChecksumToSimpleReceiver() throws Exception {
+        var receiver = new SimpleBlockingReceiver();
+        var sender = new SimpleBlockingSender("sender");
+        sender.setChecksumMode(Sender.ChecksumMode.TRAILER);
+        testSendDirectory(receiver, sender);
+    }
+
+    @Test
+    public void testSendDirectoryWithTrailingChecksumToChannelReceiver() throws Exception {
+        var receiver = new ChannelReceiver();
+        var sender = new ChannelSender("sender");
+        sender.setChecksumMode(Sender.ChecksumMode.TRAILER);
+        testSendDirectory(receiver, sender);
+    }
+
+    @Test
+    public void testSendDirectoryWithChunkChecksumsToSimpleReceiver() throws Exception {
+        var receiver = new SimpleBlockingReceiver(DEFAULT_RECEIVER_PORT, 3, DEFAULT_THREAD_COUNT, true);
+        var sender = new ChannelSender("sender", 4, DEFAULT_THREAD_COUNT, true);
+        sender.setChecksumMode(Sender.ChecksumMode.CHUNKS);
+        testSendDirectory(receiver, sender);
+    }
+
+    @Test
+    public void testSendDirectoryWithChunkChecksumsToChannelReceiver() throws Exception {
+        var receiver = new ChannelReceiver();
+        var sender = new SimpleBlockingSender("sender", 4, DEFAULT_THREAD_COUNT, true);
+        sender.setChecksumMode(Sender.ChecksumMode.CHUNKS);
+        testSendDirectory(receiver, sender);
+    }
+
+    @Test
+    public void testSendDirectoryToZeroCopyReceiver() throws Exception {
+        var receiver = new ChannelReceiver();
+        receiver.setZeroCopy(true);
+        var sender = new ChannelSender("sender");
+        sender.setChecksumMode(Sender.ChecksumMode.TRAILER);
+        testSendDirectory(receiver, sender);
+    }
+
+    @Test
+    public void testReceiverChoosesTrailingChecksumAlgorithm() throws Exception {
+        var receiver = new ChannelReceiver();
+        receiver.setChecksumAlgorithm(ChecksumAlgorithm.CRC32C);
+        var sender = new SimpleBlockingSender("sender");
+        sender.setChecksumMode(Sender.ChecksumMode.TRAILER);
+        sender.setChecksumAlgorithm(ChecksumAlgorithm.XXHASH64);
+        testSendDirectory(receiver, sender);
+    }
+
+    @Test
+    public void testSendDirectoryInBatches() throws Exception {
+        var receiver = new ChannelReceiver();
+        var sender = new SimpleBlockingSender("sender");
+        sender.setBatchThreshold(256 * 1024);
+        testSendDirectory(receiver, sender);
+    }
+
+    @Test
+    public void testBatchValidatedByReceiverOnly() throws Exception {
+        // The receiver validates and the sender does not, yet every batched file is checked.
+        var receiver = new SimpleBlockingReceiver();
+        var sender = new ChannelSender("sender", DEFAULT_CHUNK_SIZE, 1, false);
+        sender.setBatchThreshold(256 * 1024);
+        long validated = Metrics.SHARED.validation.count();
+        testSendDirectory(receiver, sender);
+        assertEquals(TestReceiver.FILE_COUNT, Metrics.SHARED.validation.count() - validated);
+    }
+
+    @Test
+    public void testBatchWithSomeFilesRejected() throws Exception {
         final var fileCount = 5;
-        var targetDirectory = Files.createTempDirectory("directory-test");
-        var sourceDirectory = populateSourceDirectory(fileCount);
+        TestReceiver.populate(sourceDirectory, fileCount);
+        var accepted = new AtomicInteger();
 
-        receiver.setAcceptor((username, filename, length) -> true);
-        receiver.setTargetDirectory(targetDirectory);
+        var receiver = new ChannelReceiver();
+        receiver.setAcceptor((username, filename, length) -> accepted.incrementAndGet() % 2 == 1);
         setupChannelReceiver(receiver);
 
+        var sender = new ChannelSender("sender", DEFAULT_CHUNK_SIZE, 1, true);
+        sender.setBatchThreshold(256 * 1024);
         try {
             sender.send(sourceDirectory.toFile(), "127.0.0.1", DEFAULT_RECEIVER_PORT);
         } finally {
             teardownReceiver();
         }
-        assertEquals(fileCount, getFileCount(targetDirectory));
-    }
 
-    private static long getFileCount(Path targetDirectory) {
-        class FileCounter extends SimpleFileVisitor<Path> {
-            long count = 0;
-            @Override
-            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
-                if (Files.isRegularFile(file)) {
-                    ++count;
+        assertEquals(3, sender.getFilesTransferred());
+        assertEquals(3, TestReceiver.fileCount(targetDirectory));
+        try (var files = Files.list(sourceDirectory)) {
+            for (var source : files.toList()) {
+                var received = targetDirectory.resolve(Wormhole.removeRoot(source.toAbsolutePath().toString()));
+                if (Files.exists(received)) {
+                    assertEquals(Files.readString(source), Files.readString(received));
                 }
-                return FileVisitResult.CONTINUE;
             }
         }
+    }
+
+    @Test
+    public void testPipelinedWithSomeFilesRejected() throws Exception {
+        final var fileCount = 5;
+        TestReceiver.populate(sourceDirectory, fileCount);
+        var accepted = new AtomicInteger();
+
+        var receiver = new SimpleBlockingReceiver();
+        receiver.setAcceptor((username, filename, length) -> accepted.incrementAndGet() % 2 == 1);
+        setupChannelReceiver(receiver);
 
+        var sender = new ChannelSender("sender", DEFAULT_CHUNK_SIZE, 1, true);
+        sender.setWindow(2);
+        sender.setChecksumMode(Sender.ChecksumMode.TRAILER);
         try {
-            var counter = new FileCounter();
-            Files.walkFileTree(targetDirectory, counter);
-            return counter.count;
-        } catch (IOException e) {
-            return 0;
+            sender.send(sourceDirectory.toFile(), "127.0.0.1", DEFAULT_RECEIVER_PORT);
+        } finally {
+            teardownReceiver();
         }
+
+        assertEquals(3, sender.getFilesTransferred());
+        assertEquals(3, TestReceiver.fileCount(targetDirectory));
     }
 
-    private Path populateSourceDirectory(int fileCount) throws IOException {
-        Path sourceDirectory = Files.createTempDirectory("source");
-        for (int i = 0; i < fileCount; ++i) {
-            Path f = Files.createTempFile(sourceDirectory, "source", "source");
-            try (var writer = new FileWriter(f.toFile())) {
-                writer.write("This is file: " + i);
-            }
+    @Test
+    public void testPipelinedToSelectorReceiver() throws Exception {
+        var receiver = new SelectorReceiver(DEFAULT_RECEIVER_PORT, DEFAULT_CHUNK_SIZE, 2, true);
+        receiver.setEventLoops(1);
+        var sender = new ChannelSender("sender");
+        sender.setChecksumMode(Sender.ChecksumMode.TRAILER);
+        testSendDirectory(receiver, sender);
+    }
+
+    @Test
+    public void testConnectionLoadsCoverEveryFile() throws Exception {
+        long total = 0;
+        for (var size : List.of(3_000_000, 1_000_000, 1_000_000, 500_000, 100)) {
+            Files.write(Files.createTempFile(sourceDirectory, "source", "source"), new byte[size]);
+            total += size;
+        }
+
+        var receiver = new ChannelReceiver();
+        receiver.setAcceptor((username, filename, length) -> true);
+        setupChannelReceiver(receiver);
+
+        var sender = new SimpleBlockingSender("sender", DEFAULT_CHUNK_SIZE, 2, true);
+        try {
+            sender.send(sourceDirectory.toFile(), "127.0.0.1", DEFAULT_RECEIVER_PORT);
+        } finally {
+            teardownReceiver();
         }
-        return sourceDirectory;
+        var loads = sender.getConnectionLoads();
+        assertEquals(2, loads.connections());
+        assertEquals(total, loads.minBytes() + loads.maxBytes());
+        assertTrue(loads.imbalance() >= 1);
+
+        var progress = sender.getProgress();
+        assertTrue(progress.totalKnown());
+        assertEquals(total, progress.totalBytes());
+        assertEquals(total, progress.bytes());
+        assertEquals(5, progress.totalFiles());
+        assertEquals(5, progress.files());
+        assertEquals(total, Arrays.stream(progress.connectionBytes()).sum());
+    }
+
+    @Test
+    public void testResumeWithSelectorReceiver() throws Exception {
+        var receiver = new SelectorReceiver();
+        var sender = new ChannelSender("sender");
+        sender.setChecksumMode(Sender.ChecksumMode.TRAILER);
+        testResume(receiver, sender, "Uninteresting");
+    }
+
+    @Test
+    public void testPipelinedBetweenBatches() throws Exception {
+        TestReceiver.populate(sourceDirectory, 5);
+        for (int i = 0; i < 3; ++i) {
+            Files.writeString(Files.createTempFile(sourceDirectory, "large", "source"), "This is a larger file: " + i);
+        }
+
+        var receiver = new ChannelReceiver();
+        receiver.setAcceptor((username, filename, length) -> true);
+        setupChannelReceiver(receiver);
+
+        var sender = new SimpleBlockingSender("sender", DEFAULT_CHUNK_SIZE, 1, true);
+        sender.setBatchThreshold(20);
+        try {
+            sender.send(sourceDirectory.toFile(), "127.0.0.1", DEFAULT_RECEIVER_PORT);
+        } finally {
+            teardownReceiver();
+        }
+
+        assertEquals(8, sender.getFilesTransferred());
+        assertEquals(8, TestReceiver.fileCount(targetDirectory));
+    }
+
+    private void testSendDirectory(Receiver receiver, Sender sender) throws Exception {
+        TestReceiver.sendDirectory(receiver, sender, sourceDirectory, targetDirectory);
+    }
+
+    @Test
+    public void testSyncByMetadataWithChannelReceiver() throws Exception {
+        var receiver = new ChannelReceiver();
+        var sender = new ChannelSender("sender");
+        sender.setSyncMode(Sender.SyncMode.METADATA);
+        testSyncDirectory(receiver, sender);
+    }
+
+    @Test
+    public void testSyncByChecksumWithSimpleReceiver() throws Exception {
+        var receiver = new SimpleBlockingReceiver();
+        var sender = new SimpleBlockingSender("sender");
+        sender.setSyncMode(Sender.SyncMode.CHECKSUM);
+        sender.setChecksumAlgorithm(ChecksumAlgorithm.XXHASH64);
+        testSyncDirectory(receiver, sender);
+    }
+
+    private void testSyncDirectory(Receiver receiver, Sender sender) throws Exception {
+        final var fileCount = 5;
+        TestReceiver.populate(sourceDirectory, fileCount);
+
+        receiver.setAcceptor((username, filename, length) -> true);
+        setupChannelReceiver(receiver);
+
+        Path changed;
+        try (var files = Files.list(sourceDirectory)) {
+            changed = files.findFirst().orElseThrow();
+        }
+        try {
+            sender.send(sourceDirectory.toFile(), "127.0.0.1", DEFAULT_RECEIVER_PORT);
+            assertEquals(fileCount, sender.getFilesTransferred());
+
+            Files.writeString(changed, "This file has changed");
+            sender.send(sourceDirectory.toFile(), "127.0.0.1", DEFAULT_RECEIVER_PORT);
+            assertEquals(fileCount + 1, sender.getFilesTransferred());
+        } finally {
+            teardownReceiver();
+        }
+
+        assertEquals(fileCount, TestReceiver.fileCount(targetDirectory));
+        var received = targetDirectory.resolve(Wormhole.removeRoot(changed.toAbsolutePath().toString()));
+        assertEquals("This file has changed", Files.readString(received));
     }
 
     private boolean isDirectoryEmpty(Path targetDirectory) throws IOException {
@@ -201,8 +466,7 @@ public class SenderTest {
 
     private File createTransferFile() {
         try {
-            File f = File.createTempFile("test", "test");
-            f.deleteOnExit();
+            File f = Files.createTempFile(sourceDirectory, "test", "test").toFile();
             try (FileWriter writer = new FileWriter(f)) {
                 writer.write("Uninteresting text content");
             }
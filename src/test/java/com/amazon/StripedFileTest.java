@@ -0,0 +1,122 @@
+package com.amazon;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.amazon.Wormhole.DEFAULT_RECEIVER_PORT;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class StripedFileTest {
+
+    @TempDir
+    Path targetDirectory;
+
+    @TempDir
+    Path sourceDirectory;
+
+    private static Header stripe(byte[] sendId) {
+        return new Header("sender", "/data/striped", 300, ChecksumAlgorithm.MD5, sendId, Header.STRIPED, 100, 0);
+    }
+
+    @Test
+    public void testStripesOfOneSendShareAFile() throws Exception {
+        var files = new HashMap<String, StripedFile>();
+        var id = StripedFile.newSendId();
+        var first = StripedFile.of(files, stripe(id));
+        assertSame(first, StripedFile.of(files, stripe(id)));
+        assertNotSame(first, StripedFile.of(files, stripe(StripedFile.newSendId())));
+    }
+
+    @Test
+    public void testRetryAfterFailureAsksAgain() throws Exception {
+        var files = new HashMap<String, StripedFile>();
+        var asked = new AtomicInteger();
+        Receiver.Acceptor acceptor = (sender, path, length) -> asked.incrementAndGet() > 1;
+
+        var broken = StripedFile.of(files, stripe(StripedFile.newSendId()));
+        assertFalse(broken.accept(acceptor, targetDirectory));
+        broken.fail(files);
+        assertFalse(broken.finish(files));
+        assertTrue(files.isEmpty());
+
+        var retry = StripedFile.newSendId();
+        for (int i = 0; i < 3; ++i) {
+            var file = StripedFile.of(files, stripe(retry));
+            assertTrue(file.accept(acceptor, targetDirectory));
+            assertEquals(i == 2, file.finish(files));
+        }
+        assertEquals(2, asked.get());
+        assertTrue(files.isEmpty());
+    }
+
+    @Test
+    public void testIdleFileIsDropped() throws Exception {
+        var files = new HashMap<String, StripedFile>();
+        Receiver.Acceptor acceptor = (sender, path, length) -> true;
+        var id = StripedFile.newSendId();
+
+        var file = StripedFile.of(files, stripe(id));
+        assertTrue(file.accept(acceptor, targetDirectory));
+        assertTrue(Files.exists(file.filePath()));
+        // A stripe in flight keeps the file however long it takes.
+        StripedFile.expire(files, 0);
+        assertSame(file, files.values().iterator().next());
+
+        // The sender goes away after the first of three stripes.
+        assertFalse(file.finish(files));
+        StripedFile.expire(files, StripedFile.IDLE_TIMEOUT);
+        assertEquals(1, files.size());
+        StripedFile.expire(files, 0);
+        assertTrue(files.isEmpty());
+        assertFalse(Files.exists(file.filePath()));
+    }
+
+    @Test
+    public void testStripedFileWithChannelReceiver() throws Exception {
+        var receiver = new ChannelReceiver();
+        var sender = new ChannelSender("sender", 4, 3, true);
+        sender.setChecksumAlgorithm(ChecksumAlgorithm.CRC32C);
+        assertStripedFileArrives(receiver, sender);
+    }
+
+    @Test
+    public void testStripedFileWithSimpleReceiver() throws Exception {
+        var receiver = new SimpleBlockingReceiver();
+        var sender = new SimpleBlockingSender("sender", 4, 3, true);
+        assertStripedFileArrives(receiver, sender);
+    }
+
+    /**
+     * Sends a 26 byte file over three connections in stripes of 12 bytes, the 8 byte minimum
+     * rounded up to the 4 byte chunks, and expects each stripe to be answered on its own and
+     * the file to arrive whole with its modification time and be counted once.
+     */
+    private void assertStripedFileArrives(Receiver receiver, Sender sender) throws Exception {
+        var transferFile = Files.writeString(sourceDirectory.resolve("file"), "Uninteresting text content").toFile();
+        receiver.setAcceptor((username, filename, length) -> true);
+        long answers = Metrics.SHARED.answer.count();
+        var running = TestReceiver.start(receiver, targetDirectory);
+        try {
+            sender.setMinimumStripeSize(8);
+            sender.send(transferFile, "127.0.0.1", DEFAULT_RECEIVER_PORT);
+        } finally {
+            running.stop();
+        }
+
+        var received = targetDirectory.resolve(Wormhole.removeRoot(transferFile.getAbsolutePath()));
+        assertEquals(Files.readString(transferFile.toPath()), Files.readString(received));
+        assertEquals(transferFile.lastModified(), received.toFile().lastModified());
+        assertEquals(1, sender.getFilesTransferred());
+        assertEquals(transferFile.length(), sender.getBytesTransferred());
+        assertEquals(3, Metrics.SHARED.answer.count() - answers);
+    }
+}
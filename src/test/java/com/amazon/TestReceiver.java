@@ -0,0 +1,95 @@
+package com.amazon;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import static com.amazon.Wormhole.DEFAULT_RECEIVER_PORT;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * A receiver running on a thread of its own on the default port, for tests that send to it.
+ * Stopping it checks that it returned every buffer it leased while the shared pool tracked them.
+ */
+class TestReceiver {
+    static final int FILE_COUNT = 5;
+
+    private final Receiver receiver;
+    private final Thread thread;
+
+    private TestReceiver(Receiver receiver) {
+        this.receiver = receiver;
+        this.thread = new Thread(receiver::receive, "Receiver");
+    }
+
+    /**
+     * Starts receiver into targetDirectory and gives it a moment to bind. The shared pool tracks
+     * its leases from then on.
+     */
+    static TestReceiver start(Receiver receiver, Path targetDirectory) throws InterruptedException {
+        BufferPool.SHARED.setTracking(true);
+        receiver.setTargetDirectory(targetDirectory);
+        var running = new TestReceiver(receiver);
+        running.thread.setDaemon(true);
+        running.thread.start();
+        Thread.sleep(100);
+        return running;
+    }
+
+    void stop() throws InterruptedException {
+        receiver.stop();
+        thread.interrupt();
+        thread.join();
+        BufferPool.SHARED.checkLeaks();
+    }
+
+    /**
+     * Sends FILE_COUNT small files from sourceDirectory to a receiver that accepts them all, and
+     * expects every one of them in targetDirectory.
+     */
+    static void sendDirectory(Receiver receiver, Sender sender, Path sourceDirectory, Path targetDirectory) throws Exception {
+        populate(sourceDirectory, FILE_COUNT);
+        receiver.setAcceptor((username, filename, length) -> true);
+        var running = start(receiver, targetDirectory);
+        try {
+            sender.send(sourceDirectory.toFile(), "127.0.0.1", DEFAULT_RECEIVER_PORT);
+        } finally {
+            running.stop();
+        }
+        assertEquals(FILE_COUNT, fileCount(targetDirectory));
+    }
+
+    static void populate(Path sourceDirectory, int fileCount) throws IOException {
+        for (int i = 0; i < fileCount; ++i) {
+            Path f = Files.createTempFile(sourceDirectory, "source", "source");
+            try (var writer = new FileWriter(f.toFile())) {
+                writer.write("This is file: " + i);
+            }
+        }
+    }
+
+    static long fileCount(Path targetDirectory) {
+        class FileCounter extends SimpleFileVisitor<Path> {
+            long count = 0;
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (Files.isRegularFile(file)) {
+                    ++count;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        }
+
+        try {
+            var counter = new FileCounter();
+            Files.walkFileTree(targetDirectory, counter);
+            return counter.count;
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.amazon;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.List;
+
+import static com.amazon.Wormhole.DEFAULT_RECEIVER_PORT;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TransferEventsTest {
+
+    @Test
+    public void testPhasesAreRecorded() throws Exception {
+        var file = Files.write(Files.createTempFile("events", ".bin"), new byte[100_000]);
+        List<RecordedEvent> events;
+        try (var recording = new Recording()) {
+            for (var name : List.of("FileDecision", "HashComputed", "ChunkWritten")) {
+                recording.enable("com.amazon.wormhole." + name).withThreshold(Duration.ZERO);
+            }
+            recording.start();
+
+            assertTrue(TransferEvents.accept((sender, path, length) -> true, "sender", "/a/file", 7));
+            assertFalse(TransferEvents.accept((sender, path, length) -> false, "sender", "/a/other", 9));
+
+            var expected = Wormhole.hash(file.toFile(), ChecksumAlgorithm.XXHASH64);
+            var validator = new Validator(ChecksumAlgorithm.XXHASH64);
+            validator.update(ByteBuffer.wrap(Files.readAllBytes(file)));
+            validator.expect(expected);
+            validator.validate();
+            validator.reset();
+            validator.update(new byte[] {1}, 0, 1);
+            assertThrows(IllegalStateException.class, validator::validate);
+
+            try (var channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                var ring = new BufferRing(1, ByteBuffer.allocate(1000));
+                ring.start(channel, 0, 1000, null);
+                var data = ring.take();
+                ring.put(data.limit(1000));
+                ring.finish();
+            }
+
+            recording.stop();
+            var dump = Files.createTempFile("events", ".jfr");
+            recording.dump(dump);
+            events = RecordingFile.readAllEvents(dump);
+        }
+
+        var decisions = named(events, "FileDecision");
+        assertEquals(2, decisions.size());
+        assertTrue(decisions.stream().anyMatch(e -> e.getBoolean("accepted") && e.getString("path").equals("/a/file")));
+        assertTrue(decisions.stream().anyMatch(e -> !e.getBoolean("accepted") && e.getLong("length") == 9));
+
+        var hashes = named(events, "HashComputed");
+        assertEquals(3, hashes.size());
+        assertTrue(hashes.stream().allMatch(e -> e.getString("algorithm").equals("XXHASH64")));
+        assertEquals(2, hashes.stream().filter(e -> e.getLong("bytes") == 100_000).count());
+        // The hash to compare with was not checked against anything, the validators' were.
+        assertEquals(1, hashes.stream().filter(e -> !e.getBoolean("checked") && !e.getBoolean("matched")).count());
+        assertEquals(1, hashes.stream().filter(e -> e.getBoolean("checked") && e.getBoolean("matched")).count());
+        assertEquals(1, hashes.stream().filter(e -> e.getBoolean("checked") && !e.getBoolean("matched") && e.getLong("bytes") == 1).count());
+
+        var writes = named(events, "ChunkWritten");
+        assertEquals(1, writes.size());
+        assertEquals(1000, writes.get(0).getLong("bytes"));
+    }
+
+    @Test
+    public void testChannelSenderReadsChunksApartFromTheSocket(@TempDir Path directory) throws Exception {
+        var source = Files.createDirectory(directory.resolve("source"));
+        Files.write(source.resolve("file"), new byte[4 * 64 * 1024]);
+        var receiver = new ChannelReceiver();
+        receiver.setAcceptor((sender, path, length) -> true);
+        var running = TestReceiver.start(receiver, Files.createDirectory(directory.resolve("target")));
+        List<RecordedEvent> events;
+        try (var recording = new Recording()) {
+            for (var name : List.of("ChunkRead", "SocketStall")) {
+                recording.enable("com.amazon.wormhole." + name).withThreshold(Duration.ZERO);
+            }
+            recording.start();
+            var sender = new ChannelSender("sender", 64 * 1024, 1, true);
+            sender.send(source.toFile(), "127.0.0.1", DEFAULT_RECEIVER_PORT);
+            assertEquals(1, sender.getFilesTransferred());
+            recording.stop();
+            var dump = Files.createTempFile(directory, "events", ".jfr");
+            recording.dump(dump);
+            events = RecordingFile.readAllEvents(dump);
+        } finally {
+            running.stop();
+        }
+
+        var reads = named(events, "ChunkRead");
+        assertEquals(4 * 64 * 1024, reads.stream().mapToLong(e -> e.getLong("bytes")).sum());
+        var sends = named(events, "SocketStall").stream().filter(e -> e.getBoolean("sending")).toList();
+        assertEquals(4 * 64 * 1024, sends.stream().mapToLong(e -> e.getLong("bytes")).sum());
+    }
+
+    private static List<RecordedEvent> named(List<RecordedEvent> events, String name) {
+        return events.stream().filter(e -> e.getEventType().getName().equals("com.amazon.wormhole." + name)).toList();
+    }
+}